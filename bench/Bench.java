@@ -0,0 +1,237 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A small benchmark harness run the way JMH runs its benchmarks: every benchmark is warmed up for a
+ * few timed iterations so the JIT settles, then measured for a few more, and the average time per
+ * operation is reported with its spread across iterations.
+ *
+ * Operations are called in batches between two reads of the clock, the batch doubling until it takes
+ * a millisecond, so the clock costs nothing next to operations of a few nanoseconds. What an operation
+ * returns is handed to consume so the JIT cannot drop the work that produced it.
+ *
+ * Options: -f regex runs the benchmarks whose name matches, -wi n warmup iterations, -i n measured
+ * iterations, -r ms the length of an iteration, -p name=v1,v2 the values of a parameter.
+ */
+public class Bench {
+	private static final long BATCH_NANOS = 1000000;
+
+	// read on every consume, the JIT cannot tell it is never set to the value consumed
+	private static volatile Object trap = new Object();
+	private static volatile Object sink;
+
+	private Pattern filter = Pattern.compile(".*");
+	private int warmupIterations = 3;
+	private int iterations = 5;
+	private long iterationMillis = 1000;
+	private final Map<String, List<String>> params = new LinkedHashMap<String, List<String>>();
+	private boolean headerPrinted = false;
+
+	/**
+	 * An operation to measure
+	 */
+	public interface Operation {
+		/**
+		 * Runs the operation once
+		 * @return the result of the operation, consumed by the harness
+		 * @throws Exception
+		 */
+		Object run() throws Exception;
+	}
+
+	/**
+	 * Work done before every iteration, outside of the measured time
+	 */
+	public interface Setup {
+		/**
+		 * Prepares the next iteration
+		 * @throws Exception
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Constructs a harness from the command line
+	 * @param args the options
+	 */
+	public Bench(String[] args) {
+		for (int i = 0; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			switch (args[i]) {
+			case "-f":
+				filter = Pattern.compile(value);
+				break;
+			case "-wi":
+				warmupIterations = Integer.parseInt(value);
+				break;
+			case "-i":
+				iterations = Integer.parseInt(value);
+				break;
+			case "-r":
+				iterationMillis = Long.parseLong(value);
+				break;
+			case "-p":
+				int equals = value.indexOf('=');
+				params.put(value.substring(0, equals), Arrays.asList(value.substring(equals + 1).split(",")));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+		if (iterations < 1) {
+			throw new IllegalArgumentException("At least one iteration must be measured");
+		}
+	}
+
+	/**
+	 * Keeps a result alive so the work producing it is not optimized away
+	 * @param value the result
+	 */
+	public static void consume(Object value) {
+		if (value == trap) {
+			sink = value;
+		}
+	}
+
+	/**
+	 * Gets the values a parameter takes, given with -p or the defaults
+	 * @param name the name of the parameter
+	 * @param defaults the values used when none were given
+	 * @return the values
+	 */
+	public List<String> param(String name, String... defaults) {
+		List<String> values = params.get(name);
+		return values != null ? values : Arrays.asList(defaults);
+	}
+
+	/**
+	 * Tells if any benchmark of a group was asked for, so the setup shared by the group can be skipped
+	 * @param names the names of the benchmarks of the group
+	 * @return true if at least one of them runs
+	 */
+	public boolean selected(String... names) {
+		for (String name : names) {
+			if (filter.matcher(name).find()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a benchmark that has no parameter
+	 * @param name the name of the benchmark
+	 * @param operation the operation to measure
+	 * @throws Exception if the operation failed
+	 */
+	public void run(String name, Operation operation) throws Exception {
+		run(name, "-", null, operation);
+	}
+
+	/**
+	 * Runs a benchmark if its name matches the filter and prints its score
+	 * @param name the name of the benchmark
+	 * @param param the value of its parameter, for printing
+	 * @param setup work done before every iteration, may be null
+	 * @param operation the operation to measure
+	 * @throws Exception if the operation failed
+	 */
+	public void run(String name, String param, Setup setup, Operation operation) throws Exception {
+		if (!filter.matcher(name).find()) {
+			return;
+		}
+		if (!headerPrinted) {
+			System.out.println(String.format("%-28s %10s %5s %4s %14s %12s  %s", "Benchmark", "(param)", "Mode", "Cnt", "Score", "Stdev", "Units"));
+			headerPrinted = true;
+		}
+		long iterationNanos = iterationMillis * 1000000;
+		long[] batch = { 1 };
+		for (int i = 0; i < warmupIterations; i++) {
+			iterate(setup, operation, iterationNanos, batch);
+		}
+		double[] scores = new double[iterations];
+		for (int i = 0; i < iterations; i++) {
+			scores[i] = iterate(setup, operation, iterationNanos, batch);
+		}
+		print(name, param, scores);
+	}
+
+	/**
+	 * Runs one iteration
+	 * @param setup work done first, may be null
+	 * @param operation the operation to measure
+	 * @param iterationNanos how long to keep calling the operation
+	 * @param batch how many calls are made between two reads of the clock, grows as needed
+	 * @return the average time of one call in nanoseconds
+	 * @throws Exception if the operation failed
+	 */
+	private static double iterate(Setup setup, Operation operation, long iterationNanos, long[] batch) throws Exception {
+		if (setup != null) {
+			setup.run();
+		}
+		long calls = 0;
+		long start = System.nanoTime();
+		long now = start;
+		while (now - start < iterationNanos) {
+			long batchStart = now;
+			for (long i = 0; i < batch[0]; i++) {
+				consume(operation.run());
+			}
+			calls += batch[0];
+			now = System.nanoTime();
+			if (now - batchStart < BATCH_NANOS) {
+				batch[0] *= 2;
+			}
+		}
+		return (double) (now - start) / calls;
+	}
+
+	/**
+	 * Prints the score of a benchmark, in the unit that suits its magnitude
+	 * @param name the name of the benchmark
+	 * @param param the value of its parameter
+	 * @param scores the nanoseconds per operation of every measured iteration
+	 */
+	private static void print(String name, String param, double[] scores) {
+		double mean = 0;
+		for (double score : scores) {
+			mean += score;
+		}
+		mean /= scores.length;
+		double variance = 0;
+		for (double score : scores) {
+			variance += (score - mean) * (score - mean);
+		}
+		double stdev = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : Double.NaN;
+
+		String unit = "ns/op";
+		double scale = 1;
+		if (mean >= 1e6) {
+			unit = "ms/op";
+			scale = 1e6;
+		} else if (mean >= 1e3) {
+			unit = "us/op";
+			scale = 1e3;
+		}
+		System.out.println(String.format(Locale.ROOT, "%-28s %10s %5s %4d %14.3f %12.3f  %s",
+				name, param, "avgt", scores.length, mean / scale, stdev / scale, unit));
+	}
+
+	/**
+	 * Builds the list of values of a numeric parameter
+	 * @param values the values as given
+	 * @return the values as numbers
+	 */
+	public static List<Integer> integers(List<String> values) {
+		List<Integer> numbers = new ArrayList<Integer>();
+		for (String value : values) {
+			numbers.add(Integer.parseInt(value.trim()));
+		}
+		return numbers;
+	}
+}
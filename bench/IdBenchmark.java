@@ -0,0 +1,194 @@
+import java.io.File;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Benchmarks of the IdServer, so every change to it can be measured against a baseline:
+ * store.* the operations of the UserStore in memory,
+ * persist and reload a checkpoint of the whole database, the way persistData and a restart do,
+ * rmi.* round trips to a server started in this JVM over the loopback interface,
+ * server.getAll get("all") called on the server without RMI.
+ *
+ * The users parameter sets the size of the database for persist, reload and server.getAll, the rmi.*
+ * benchmarks run once the server holds the largest. Run with make bench, which starts from an empty
+ * directory so the server does not reload an earlier run.
+ */
+public class IdBenchmark {
+	// the size of the database of the store.* benchmarks and the least the rmi.* ones run against, a power of two
+	private static final int STORE_USERS = 1 << 17;
+	private static final int BATCH_SIZE = 8192;
+	private static final String PASSWORD = "password";
+
+	/**
+	 * Runs the benchmarks
+	 * @param args the options of Bench, with -p port=n for the registry of the server started
+	 * @throws Exception if a benchmark failed
+	 */
+	public static void main(String[] args) throws Exception {
+		Bench bench = new Bench(args);
+		List<Integer> sizes = Bench.integers(bench.param("users", "10000", "100000", "1000000"));
+		storeBenchmarks(bench);
+		persistenceBenchmarks(bench, sizes);
+		serverBenchmarks(bench, sizes, Integer.parseInt(bench.param("port", "5199").get(0)));
+		System.exit(0);
+	}
+
+	/**
+	 * Measures create, lookup, reverseLookup and modify against a UserStore
+	 * @param bench the harness
+	 * @throws Exception
+	 */
+	private static void storeBenchmarks(Bench bench) throws Exception {
+		if (!bench.selected("store.create", "store.lookup", "store.reverseLookup", "store.modify")) {
+			return;
+		}
+		UserStore[] fresh = new UserStore[1];
+		int[] next = { 0 };
+		bench.run("store.create", "-", () -> {
+			fresh[0] = new UserStore();
+			next[0] = 0;
+		}, () -> fresh[0].create("new" + next[0]++, "New User", PASSWORD));
+		fresh[0] = null;
+
+		UserStore store = new UserStore();
+		String[] names = loginNames(STORE_USERS);
+		UUID[] uuids = new UUID[STORE_USERS];
+		for (int i = 0; i < STORE_USERS; i++) {
+			uuids[i] = store.create(names[i], "Real Name " + i, PASSWORD);
+		}
+		int mask = STORE_USERS - 1;
+		int[] at = { 0 };
+		bench.run("store.lookup", () -> store.lookup(names[at[0]++ & mask]));
+		bench.run("store.reverseLookup", () -> store.reverseLookup(uuids[at[0]++ & mask]));
+
+		// every user is renamed to a second login name and back
+		boolean[] renamed = new boolean[STORE_USERS];
+		bench.run("store.modify", () -> {
+			int i = at[0]++ & mask;
+			String from = renamed[i] ? names[i] + "-renamed" : names[i];
+			String to = renamed[i] ? names[i] : names[i] + "-renamed";
+			renamed[i] = !renamed[i];
+			return store.modify(from, to, PASSWORD);
+		});
+	}
+
+	/**
+	 * Measures writing a checkpoint of the whole database, as persistData does, and reading it back
+	 * into an empty store, as reloadDatabase does when the server starts
+	 * @param bench the harness
+	 * @param sizes the sizes of the database
+	 * @throws Exception
+	 */
+	private static void persistenceBenchmarks(Bench bench, List<Integer> sizes) throws Exception {
+		if (!bench.selected("persist", "reload")) {
+			return;
+		}
+		File file = new File("bench.snapshot");
+		for (int size : sizes) {
+			UserStore store = new UserStore();
+			fill(store, size);
+			Checkpointer checkpointer = new Checkpointer(store, new ReplicationLog(BATCH_SIZE, store.getSeq()), null, file, 0);
+			bench.run("persist", String.valueOf(size), null, () -> checkpointer.request(true).get());
+			store = null;
+
+			checkpointer.request(true).get();
+			bench.run("reload", String.valueOf(size), null, () -> {
+				SnapshotFile.Contents contents = SnapshotFile.read(file);
+				UserStore reloaded = new UserStore();
+				reloaded.replace(contents.getUsers(), contents.getSeq());
+				return reloaded;
+			});
+		}
+		file.delete();
+	}
+
+	/**
+	 * Starts a server in this JVM and measures get("all") as the database grows, then round trips to it
+	 * @param bench the harness
+	 * @param sizes the sizes of the database for server.getAll
+	 * @param port the port of the registry of the server
+	 * @throws Exception
+	 */
+	private static void serverBenchmarks(Bench bench, List<Integer> sizes, int port) throws Exception {
+		if (!bench.selected("rmi.isAlive", "rmi.lookup", "rmi.reverseLookup", "rmi.lookupRecord", "rmi.reverseLookupRecord", "rmi.create", "server.getAll")) {
+			return;
+		}
+		IdServer.main(new String[] { "-n", String.valueOf(port), "-L", "warn" });
+		Id stub = (Id) LocateRegistry.getRegistry("localhost", port).lookup("server");
+
+		// any instance answers from the database of the server, it is static
+		IdServer server = new IdServer();
+		List<UUID> uuids = new ArrayList<UUID>();
+		for (int size : bench.selected("server.getAll") ? sizes : Collections.<Integer>emptyList()) {
+			load(stub, uuids, size);
+			bench.run("server.getAll", String.valueOf(size), null, () -> server.get("all"));
+		}
+		load(stub, uuids, STORE_USERS);
+
+		// lookups go to users in a random order
+		int[] order = new int[STORE_USERS];
+		Random random = new Random(42);
+		for (int i = 0; i < STORE_USERS; i++) {
+			order[i] = random.nextInt(uuids.size());
+		}
+		int mask = STORE_USERS - 1;
+		int[] at = { 0 };
+		bench.run("rmi.isAlive", () -> stub.isAlive());
+		bench.run("rmi.lookup", () -> stub.lookup("user" + order[at[0]++ & mask]));
+		bench.run("rmi.reverseLookup", () -> stub.reverseLookup(uuids.get(order[at[0]++ & mask])));
+		bench.run("rmi.lookupRecord", () -> stub.lookupRecord("user" + order[at[0]++ & mask]));
+		bench.run("rmi.reverseLookupRecord", () -> stub.reverseLookupRecord(uuids.get(order[at[0]++ & mask])));
+		int[] created = { 0 };
+		bench.run("rmi.create", () -> stub.create("rmi" + created[0]++, "New User", PASSWORD));
+	}
+
+	/**
+	 * Creates users on the server until it holds a number of them
+	 * @param stub the server
+	 * @param uuids the UUIDs of the users created so far, user0 onwards, added to
+	 * @param size how many users the server should hold
+	 * @throws Exception
+	 */
+	private static void load(Id stub, List<UUID> uuids, int size) throws Exception {
+		for (int from = uuids.size(); from < size; from += BATCH_SIZE) {
+			List<NewUser> batch = new ArrayList<NewUser>(BATCH_SIZE);
+			for (int i = from; i < Math.min(size, from + BATCH_SIZE); i++) {
+				batch.add(new NewUser("user" + i, "Real Name " + i, PASSWORD));
+			}
+			uuids.addAll(stub.createAll(batch));
+		}
+	}
+
+	/**
+	 * Adds users to a store
+	 * @param store the store
+	 * @param count how many users to add
+	 */
+	private static void fill(UserStore store, int count) {
+		for (int from = 0; from < count; from += BATCH_SIZE) {
+			List<NewUser> batch = new ArrayList<NewUser>(BATCH_SIZE);
+			for (int i = from; i < Math.min(count, from + BATCH_SIZE); i++) {
+				batch.add(new NewUser("user" + i, "Real Name " + i, PASSWORD));
+			}
+			store.createAll(batch);
+		}
+	}
+
+	/**
+	 * Makes login names in a random order, so lookups do not walk the maps in the order they were filled
+	 * @param count how many names
+	 * @return the names
+	 */
+	private static String[] loginNames(int count) {
+		List<String> names = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			names.add("user" + i);
+		}
+		Collections.shuffle(names, new Random(42));
+		return names.toArray(new String[0]);
+	}
+}
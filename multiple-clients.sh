@@ -1,8 +1,7 @@
 #!/bin/sh
-# Spawns 10 RMI client processes, all trying to hit the RMI server
-# simultaneously.
+# Drives concurrent clients at the RMI servers and reports throughput and
+# latency percentiles. Options given to the script come first and win over
+# the defaults below, e.g. -R 500 for a fixed request rate instead of a
+# closed loop or -c 50 for more clients.
 
-for i in 0 1 2 3 4 5 6 7 8 9
-do
-  ./run-client.sh 2>&1
-done
+java -cp ./src/:./inc/commons-cli-1.4/commons-cli-1.4.jar LoadGenerator "$@" -c 10 -d 30 -n 5654 -s 172.17.0.1 172.17.0.2 172.17.0.3 2>&1
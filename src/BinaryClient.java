@@ -0,0 +1,296 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Talks to a server over the binary protocol of BinaryProtocol. Every call sends its request at once and
+ * returns a future for the response, so many requests can be in flight on the one connection. One
+ * thread reads the responses and completes the futures, keep the work done on them short.
+ *
+ * The client talks to a single server: requests it cannot answer fail with a Redirect naming the leader
+ * or the shard to ask instead. Passwords are hashed the same way IdClient hashes them.
+ */
+public class BinaryClient implements Closeable {
+	private final SocketChannel channel;
+	private final Object writeLock = new Object();
+	private final AtomicInteger nextId = new AtomicInteger();
+	private final Map<Integer, CompletableFuture<BinaryProtocol.FrameReader>> pending =
+			new ConcurrentHashMap<Integer, CompletableFuture<BinaryProtocol.FrameReader>>();
+	private volatile IOException failure = null;
+
+	/**
+	 * Signals a request the server sent somewhere else
+	 */
+	public static class Redirect extends IOException {
+		static public final long serialVersionUID = 3390147718205517L;
+
+		private final String leader;
+		private final int shard;
+
+		private Redirect(String message, String leader, int shard) {
+			super(message);
+			this.leader = leader;
+			this.shard = shard;
+		}
+
+		/**
+		 * Gets the leader a change should be sent to
+		 * @return the address of the leader, or null if this is not a change refused by a backup
+		 */
+		public String getLeader() {
+			return leader;
+		}
+
+		/**
+		 * Gets the shard a user belongs to
+		 * @return the shard, or -1 if this is not a request for a user of another shard
+		 */
+		public int getShard() {
+			return shard;
+		}
+	}
+
+	/**
+	 * Reads the result of a successful response
+	 * @param <T> the type of the result
+	 */
+	private interface Decoder<T> {
+		T decode(BinaryProtocol.FrameReader response) throws BinaryProtocol.ProtocolException;
+	}
+
+	/**
+	 * Connects to a server
+	 * @param host the address of the server
+	 * @param port the port given to the server with --binary-port
+	 * @throws IOException if the server could not be reached
+	 */
+	public BinaryClient(String host, int port) throws IOException {
+		channel = SocketChannel.open(new InetSocketAddress(host, port));
+		channel.socket().setTcpNoDelay(true);
+		Thread reader = new Thread(this::readResponses, "binary-client");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Looks up a user by login name
+	 * @param loginName the login name
+	 * @return the user, or "User does not exist!"
+	 */
+	public CompletableFuture<String> lookup(String loginName) {
+		return call(request(BinaryProtocol.LOOKUP).putString(loginName), response -> response.getString());
+	}
+
+	/**
+	 * Looks up a user by UUID
+	 * @param uuid the UUID
+	 * @return the user, or "User does not exist!"
+	 */
+	public CompletableFuture<String> reverseLookup(UUID uuid) {
+		return call(request(BinaryProtocol.REVERSE_LOOKUP).putUUID(uuid), response -> response.getString());
+	}
+
+	/**
+	 * Gets every user, UUID or both
+	 * @param listToGet users, uuids or all
+	 * @return the list
+	 */
+	public CompletableFuture<String> get(String listToGet) {
+		return call(request(BinaryProtocol.GET).putString(listToGet), response -> response.getString());
+	}
+
+	/**
+	 * Lists users in login name order one page at a time
+	 * @param cursor the next cursor of the previous page, or null for the first page
+	 * @param prefix only list login names starting with this, null or empty for every user
+	 * @param pageSize the most users on the page, at most BinaryProtocol.MAX_LIST_PAGE
+	 * @return the page, with a next cursor unless it is the last one
+	 */
+	public CompletableFuture<UserPage> list(String cursor, String prefix, int pageSize) {
+		return call(request(BinaryProtocol.LIST).putString(cursor).putString(prefix).putInt(pageSize), response -> {
+			int count = response.getInt();
+			if (count < 0 || count > BinaryProtocol.MAX_LIST_PAGE) {
+				throw new BinaryProtocol.ProtocolException("Bad page size " + count);
+			}
+			List<UserPage.Entry> entries = new ArrayList<UserPage.Entry>(count);
+			for (int i = 0; i < count; i++) {
+				entries.add(new UserPage.Entry(response.getString(), response.getUUID()));
+			}
+			return new UserPage(entries, response.getString());
+		});
+	}
+
+	/**
+	 * Creates a user
+	 * @param loginName the login name of the new user
+	 * @param realName the real name of the new user
+	 * @param password the password of the new user, hashed before it is sent
+	 * @return the UUID of the new user, or null if the login name is taken
+	 */
+	public CompletableFuture<UUID> create(String loginName, String realName, String password) {
+		return call(request(BinaryProtocol.CREATE).putString(loginName).putString(realName).putString(IdClient.hash(password)),
+				response -> response.getUUID());
+	}
+
+	/**
+	 * Renames a user
+	 * @param oldLoginName the current login name
+	 * @param newLoginName the new login name
+	 * @param password the password of the user, hashed before it is sent
+	 * @return true if the user was renamed
+	 */
+	public CompletableFuture<Boolean> modify(String oldLoginName, String newLoginName, String password) {
+		return call(request(BinaryProtocol.MODIFY).putString(oldLoginName).putString(newLoginName).putString(IdClient.hash(password)),
+				response -> response.getBoolean());
+	}
+
+	/**
+	 * Deletes a user
+	 * @param loginName the login name
+	 * @param password the password of the user, hashed before it is sent
+	 * @return true if the user was deleted
+	 */
+	public CompletableFuture<Boolean> delete(String loginName, String password) {
+		return call(request(BinaryProtocol.DELETE).putString(loginName).putString(IdClient.hash(password)),
+				response -> response.getBoolean());
+	}
+
+	/**
+	 * Gets the sequence number of the last change the server applied
+	 * @return the version
+	 */
+	public CompletableFuture<Long> getVersion() {
+		return call(request(BinaryProtocol.VERSION), response -> response.getLong());
+	}
+
+	/**
+	 * Closes the connection, requests still in flight fail
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Starts a request with a fresh id
+	 * @param op the opcode
+	 * @return the request
+	 */
+	private BinaryProtocol.FrameWriter request(byte op) {
+		return new BinaryProtocol.FrameWriter(nextId.getAndIncrement()).putByte(op);
+	}
+
+	/**
+	 * Sends a request
+	 * @param request the request
+	 * @param decoder reads the result of a successful response
+	 * @param <T> the type of the result
+	 * @return completes with the result, or with the reason the request failed
+	 */
+	private <T> CompletableFuture<T> call(BinaryProtocol.FrameWriter request, Decoder<T> decoder) {
+		ByteBuffer frame = request.finish();
+		int id = frame.getInt(4);
+		CompletableFuture<BinaryProtocol.FrameReader> response = new CompletableFuture<BinaryProtocol.FrameReader>();
+		pending.put(id, response);
+		try {
+			synchronized (writeLock) {
+				if (failure != null) {
+					throw failure;
+				}
+				while (frame.hasRemaining()) {
+					channel.write(frame);
+				}
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			response.completeExceptionally(e);
+		}
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		response.whenComplete((reader, e) -> {
+			if (e != null) {
+				result.completeExceptionally(e);
+				return;
+			}
+			try {
+				byte status = reader.getByte();
+				switch (status) {
+				case BinaryProtocol.OK:
+					result.complete(decoder.decode(reader));
+					break;
+				case BinaryProtocol.NOT_LEADER:
+					String leader = reader.getString();
+					result.completeExceptionally(new Redirect(leader == null ? "Not the leader, no leader is known"
+							: "Not the leader, the leader is " + leader, leader, -1));
+					break;
+				case BinaryProtocol.WRONG_SHARD:
+					int shard = reader.getInt();
+					result.completeExceptionally(new Redirect("User belongs to shard " + shard, null, shard));
+					break;
+				default:
+					result.completeExceptionally(new IOException(reader.getString()));
+				}
+			} catch (BinaryProtocol.ProtocolException pe) {
+				result.completeExceptionally(pe);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Reads responses until the connection closes and hands each to the request it answers
+	 */
+	private void readResponses() {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				length.clear();
+				readFully(length);
+				int size = length.getInt(0);
+				if (size < 5 || size > BinaryProtocol.MAX_FRAME) {
+					throw new IOException("Bad frame length " + size);
+				}
+				ByteBuffer frame = ByteBuffer.allocate(size);
+				readFully(frame);
+				frame.flip();
+				int id = frame.getInt();
+				CompletableFuture<BinaryProtocol.FrameReader> response = pending.remove(id);
+				if (response != null) {
+					response.complete(new BinaryProtocol.FrameReader(frame));
+				}
+			}
+		} catch (IOException e) {
+			synchronized (writeLock) {
+				failure = e;
+			}
+			for (Integer id : pending.keySet()) {
+				CompletableFuture<BinaryProtocol.FrameReader> response = pending.remove(id);
+				if (response != null) {
+					response.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills a buffer from the connection
+	 * @param buffer the buffer to fill
+	 * @throws IOException if the connection closed first
+	 */
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Connection closed by the server");
+			}
+		}
+	}
+}
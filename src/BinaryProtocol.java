@@ -0,0 +1,264 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * The binary protocol spoken by BinaryServer and BinaryClient, a compact alternative to RMI for the
+ * client operations of Id.
+ *
+ * Every message is a frame: the length of the rest of the frame as an int, then the request id the
+ * client chose. A request continues with its opcode and arguments, a response with a status and its
+ * result. A client may send any number of requests before reading a response, responses carry the id
+ * of their request and can come back in a different order than the requests were sent.
+ *
+ * Strings are length-prefixed UTF-8 (-1 for null), UUIDs a presence byte followed by two longs and
+ * booleans a single byte. A NOT_LEADER response carries the address of the leader, WRONG_SHARD the
+ * shard of the user and ERROR a message. No frame is larger than MAX_FRAME: an answer that would be,
+ * such as GET of every user of a large database, is an ERROR instead and LIST pages through the users.
+ */
+public class BinaryProtocol {
+	public static final int MAX_FRAME = 1024 * 1024;
+
+	// requests
+	public static final byte LOOKUP = 1;         // login name -> string
+	public static final byte REVERSE_LOOKUP = 2; // uuid -> string
+	public static final byte GET = 3;            // list to get -> string
+	public static final byte CREATE = 4;         // login name, real name, hashed password -> uuid
+	public static final byte MODIFY = 5;         // old login name, new login name, hashed password -> boolean
+	public static final byte DELETE = 6;         // login name, hashed password -> boolean
+	public static final byte VERSION = 7;        // -> long
+	public static final byte LIST = 8;           // cursor, prefix, page size -> count, (login name, uuid) * count, next cursor
+	// the most users of a LIST response, so a page of long login names still fits in a frame
+	public static final int MAX_LIST_PAGE = 1024;
+
+	// responses
+	public static final byte OK = 0;
+	public static final byte NOT_LEADER = 1;
+	public static final byte WRONG_SHARD = 2;
+	public static final byte ERROR = 3;
+
+	private BinaryProtocol() {
+	}
+
+	/**
+	 * Signals a frame that does not follow the protocol
+	 */
+	public static class ProtocolException extends Exception {
+		static public final long serialVersionUID = 6109285319907453L;
+
+		/**
+		 * Constructs the exception
+		 * @param message what was wrong with the frame
+		 */
+		public ProtocolException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Builds a frame, growing as fields are added
+	 */
+	public static class FrameWriter {
+		private ByteBuffer buffer = ByteBuffer.allocate(64);
+
+		/**
+		 * Starts a frame
+		 * @param id the request id
+		 */
+		public FrameWriter(int id) {
+			buffer.putInt(0);
+			buffer.putInt(id);
+		}
+
+		/**
+		 * Adds a byte
+		 * @param value the value
+		 * @return this writer
+		 */
+		public FrameWriter putByte(byte value) {
+			ensure(1);
+			buffer.put(value);
+			return this;
+		}
+
+		/**
+		 * Adds a boolean
+		 * @param value the value
+		 * @return this writer
+		 */
+		public FrameWriter putBoolean(boolean value) {
+			return putByte(value ? (byte) 1 : (byte) 0);
+		}
+
+		/**
+		 * Adds an int
+		 * @param value the value
+		 * @return this writer
+		 */
+		public FrameWriter putInt(int value) {
+			ensure(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		/**
+		 * Adds a long
+		 * @param value the value
+		 * @return this writer
+		 */
+		public FrameWriter putLong(long value) {
+			ensure(8);
+			buffer.putLong(value);
+			return this;
+		}
+
+		/**
+		 * Adds a string
+		 * @param value the value, may be null
+		 * @return this writer
+		 */
+		public FrameWriter putString(String value) {
+			if (value == null) {
+				ensure(4);
+				buffer.putInt(-1);
+				return this;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			ensure(4 + bytes.length);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+			return this;
+		}
+
+		/**
+		 * Adds a UUID
+		 * @param value the value, may be null
+		 * @return this writer
+		 */
+		public FrameWriter putUUID(UUID value) {
+			putBoolean(value != null);
+			if (value != null) {
+				putLong(value.getMostSignificantBits());
+				putLong(value.getLeastSignificantBits());
+			}
+			return this;
+		}
+
+		/**
+		 * Finishes the frame
+		 * @return the frame ready to be written
+		 */
+		public ByteBuffer finish() {
+			buffer.putInt(0, buffer.position() - 4);
+			buffer.flip();
+			return buffer;
+		}
+
+		/**
+		 * Makes room for more bytes
+		 * @param bytes the number of bytes about to be written
+		 */
+		private void ensure(int bytes) {
+			if (buffer.remaining() < bytes) {
+				ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+				buffer.flip();
+				larger.put(buffer);
+				buffer = larger;
+			}
+		}
+	}
+
+	/**
+	 * Reads the fields of a frame whose length prefix was already consumed
+	 */
+	public static class FrameReader {
+		private final ByteBuffer buffer;
+
+		/**
+		 * Constructs a reader
+		 * @param buffer the rest of the frame
+		 */
+		public FrameReader(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Reads a byte
+		 * @return the value
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public byte getByte() throws ProtocolException {
+			try {
+				return buffer.get();
+			} catch (BufferUnderflowException e) {
+				throw new ProtocolException("Frame ended early");
+			}
+		}
+
+		/**
+		 * Reads an int
+		 * @return the value
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public int getInt() throws ProtocolException {
+			try {
+				return buffer.getInt();
+			} catch (BufferUnderflowException e) {
+				throw new ProtocolException("Frame ended early");
+			}
+		}
+
+		/**
+		 * Reads a boolean
+		 * @return the value
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public boolean getBoolean() throws ProtocolException {
+			return getByte() != 0;
+		}
+
+		/**
+		 * Reads a long
+		 * @return the value
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public long getLong() throws ProtocolException {
+			try {
+				return buffer.getLong();
+			} catch (BufferUnderflowException e) {
+				throw new ProtocolException("Frame ended early");
+			}
+		}
+
+		/**
+		 * Reads a string
+		 * @return the value, possibly null
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public String getString() throws ProtocolException {
+			int length = getInt();
+			if (length < 0) {
+				return null;
+			}
+			if (length > buffer.remaining()) {
+				throw new ProtocolException("String runs past the end of the frame");
+			}
+			String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+			buffer.position(buffer.position() + length);
+			return value;
+		}
+
+		/**
+		 * Reads a UUID
+		 * @return the value, possibly null
+		 * @throws ProtocolException if the frame ends first
+		 */
+		public UUID getUUID() throws ProtocolException {
+			if (!getBoolean()) {
+				return null;
+			}
+			return new UUID(getLong(), getLong());
+		}
+	}
+}
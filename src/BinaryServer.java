@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves the client operations of Id over the binary protocol of BinaryProtocol, next to the RMI binding.
+ *
+ * One selector thread accepts connections, reads requests and writes responses. Lookups only touch
+ * memory and are answered on the selector thread, everything else may wait for the disk or the backups
+ * and runs on a worker so the other requests of the connection keep flowing. At most MAX_IN_FLIGHT
+ * requests of a connection are on workers at once, the ones after wait in its buffer and the connection
+ * is not read from until a worker answers, so a client pipelining writes cannot start a thread for each.
+ * A connection whose client stops reading its responses is not read from until they drain.
+ */
+public class BinaryServer {
+	private static final int READ_BUFFER = 64 * 1024;
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	static final int MAX_IN_FLIGHT = 64;
+
+	private final Id server;
+	private final int port;
+	private Selector selector;
+	private Thread selectorThread;
+	// connections that were handed a response by a worker and must be watched for writing, and may
+	// have buffered requests that waited for that worker
+	private final ConcurrentLinkedQueue<Connection> responded = new ConcurrentLinkedQueue<Connection>();
+	private final ExecutorService workers = Threads.newExecutor("binary-worker");
+
+	/**
+	 * Constructs a server, nothing is listened on until start is called
+	 * @param server the server to answer requests from
+	 * @param port the TCP port to listen on
+	 */
+	public BinaryServer(Id server, int port) {
+		this.server = server;
+		this.port = port;
+	}
+
+	/**
+	 * Starts listening
+	 * @throws IOException if the port could not be bound
+	 */
+	public void start() throws IOException {
+		selector = Selector.open();
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port));
+		listener.configureBlocking(false);
+		listener.register(selector, SelectionKey.OP_ACCEPT);
+		selectorThread = new Thread(this::run, "binary-server");
+		selectorThread.setDaemon(true);
+		selectorThread.start();
+	}
+
+	/**
+	 * The selector loop
+	 */
+	private void run() {
+		while (true) {
+			try {
+				selector.select();
+				Connection connection;
+				while ((connection = responded.poll()) != null) {
+					try {
+						connection.resume();
+					} catch (BinaryProtocol.ProtocolException e) {
+						Log.debug(Log.Subsystem.RPC, "closing binary connection {}: {}", connection.channel.socket().getRemoteSocketAddress(), e.getMessage());
+						connection.close();
+					}
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write();
+						}
+					} catch (IOException | BinaryProtocol.ProtocolException e) {
+						Log.debug(Log.Subsystem.RPC, "closing binary connection {}: {}", connection.channel.socket().getRemoteSocketAddress(), e.getMessage());
+						connection.close();
+					}
+				}
+			} catch (IOException e) {
+				Log.error(Log.Subsystem.RPC, "binary protocol selector failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Accepts a new connection
+	 * @param listener the listening channel
+	 * @throws IOException
+	 */
+	private void accept(ServerSocketChannel listener) throws IOException {
+		SocketChannel channel = listener.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		Connection connection = new Connection(channel);
+		connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		Log.debug(Log.Subsystem.RPC, "binary connection from {}", channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Answers a request, with an error if the answer would not fit in a frame: the client would take
+	 * it for a broken stream and fail every request in flight on the connection
+	 * @param frame the request without its length prefix
+	 * @return the response frame
+	 */
+	private ByteBuffer handle(ByteBuffer frame) {
+		ByteBuffer response = respond(frame);
+		int length = response.limit() - 4;
+		if (length > BinaryProtocol.MAX_FRAME) {
+			return error(response.getInt(4), "The answer of " + length + " bytes is larger than a frame, page through the users with LIST");
+		}
+		return response;
+	}
+
+	/**
+	 * Builds the answer to a request
+	 * @param frame the request without its length prefix
+	 * @return the response frame
+	 */
+	private ByteBuffer respond(ByteBuffer frame) {
+		BinaryProtocol.FrameReader request = new BinaryProtocol.FrameReader(frame);
+		int id = 0;
+		try {
+			id = request.getInt();
+			byte op = request.getByte();
+			BinaryProtocol.FrameWriter response = new BinaryProtocol.FrameWriter(id).putByte(BinaryProtocol.OK);
+			switch (op) {
+			case BinaryProtocol.LOOKUP:
+				return response.putString(server.lookup(request.getString())).finish();
+			case BinaryProtocol.REVERSE_LOOKUP:
+				return response.putString(server.reverseLookup(request.getUUID())).finish();
+			case BinaryProtocol.GET:
+				return response.putString(server.get(request.getString())).finish();
+			case BinaryProtocol.CREATE:
+				return response.putUUID(server.create(request.getString(), request.getString(), request.getString())).finish();
+			case BinaryProtocol.MODIFY:
+				return response.putBoolean(server.modify(request.getString(), request.getString(), request.getString())).finish();
+			case BinaryProtocol.DELETE:
+				return response.putBoolean(server.delete(request.getString(), request.getString())).finish();
+			case BinaryProtocol.VERSION:
+				return response.putLong(server.getVersion()).finish();
+			case BinaryProtocol.LIST:
+				String cursor = request.getString();
+				String prefix = request.getString();
+				UserPage page = server.list(cursor, prefix, Math.min(request.getInt(), BinaryProtocol.MAX_LIST_PAGE));
+				response.putInt(page.getEntries().size());
+				for (UserPage.Entry entry : page.getEntries()) {
+					response.putString(entry.getLoginName()).putUUID(entry.getUUID());
+				}
+				return response.putString(page.getNextCursor()).finish();
+			default:
+				return error(id, "Unknown request " + op);
+			}
+		} catch (NotLeaderException e) {
+			ServerInfo leader = e.getLeader();
+			return new BinaryProtocol.FrameWriter(id).putByte(BinaryProtocol.NOT_LEADER)
+					.putString(leader == null ? null : leader.getAddress()).finish();
+		} catch (WrongShardException e) {
+			return new BinaryProtocol.FrameWriter(id).putByte(BinaryProtocol.WRONG_SHARD).putInt(e.getShard()).finish();
+		} catch (RemoteException | BinaryProtocol.ProtocolException | RuntimeException e) {
+			return error(id, e.getMessage());
+		}
+	}
+
+	/**
+	 * Builds an error response
+	 * @param id the request id
+	 * @param message what went wrong
+	 * @return the response frame
+	 */
+	private static ByteBuffer error(int id, String message) {
+		return new BinaryProtocol.FrameWriter(id).putByte(BinaryProtocol.ERROR).putString(message).finish();
+	}
+
+	/**
+	 * Tells if a request only reads memory and can be answered on the selector thread
+	 * @param op the opcode of the request
+	 * @return true if it can be answered without blocking
+	 */
+	private static boolean answersAtOnce(byte op) {
+		return op == BinaryProtocol.LOOKUP || op == BinaryProtocol.REVERSE_LOOKUP || op == BinaryProtocol.VERSION;
+	}
+
+	/**
+	 * A client connection and its partly read request and unsent responses
+	 */
+	private class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+		private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		private int pendingBytes = 0;
+		// requests on workers, guarded by out like pendingBytes
+		private int inFlight = 0;
+		private boolean closed = false;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		/**
+		 * Reads what arrived and handles every complete request. Called on the selector thread.
+		 * @throws IOException
+		 * @throws BinaryProtocol.ProtocolException if a frame is too large
+		 */
+		private void read() throws IOException, BinaryProtocol.ProtocolException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			handleBuffered();
+			// stops reading if the requests just read filled the workers
+			updateInterest();
+		}
+
+		/**
+		 * Handles the requests left in the buffer now that a worker answered, and starts reading again
+		 * if they no longer fill the workers. Called on the selector thread.
+		 * @throws BinaryProtocol.ProtocolException if a frame is too large
+		 */
+		private void resume() throws BinaryProtocol.ProtocolException {
+			if (!key.isValid()) {
+				return;
+			}
+			handleBuffered();
+			updateInterest();
+		}
+
+		/**
+		 * Handles every complete request in the buffer, until MAX_IN_FLIGHT of them are on workers
+		 * @throws BinaryProtocol.ProtocolException if a frame is too large
+		 */
+		private void handleBuffered() throws BinaryProtocol.ProtocolException {
+			in.flip();
+			while (in.remaining() >= 4 && !full()) {
+				int length = in.getInt(in.position());
+				if (length < 5 || length > BinaryProtocol.MAX_FRAME) {
+					throw new BinaryProtocol.ProtocolException("Bad frame length " + length);
+				}
+				if (in.remaining() < 4 + length) {
+					if (in.capacity() < 4 + length) {
+						ByteBuffer larger = ByteBuffer.allocate(4 + length);
+						larger.put(in);
+						in = larger;
+						return;
+					}
+					break;
+				}
+				in.position(in.position() + 4);
+				byte[] frame = new byte[length];
+				in.get(frame);
+				dispatch(ByteBuffer.wrap(frame));
+			}
+			in.compact();
+		}
+
+		/**
+		 * Answers a request on the selector thread if it only reads memory, on a worker otherwise
+		 * @param frame the request without its length prefix
+		 */
+		private void dispatch(ByteBuffer frame) {
+			if (answersAtOnce(frame.get(4))) {
+				respond(handle(frame));
+			} else {
+				synchronized (out) {
+					inFlight++;
+				}
+				workers.execute(() -> {
+					ByteBuffer response = handle(frame);
+					synchronized (out) {
+						inFlight--;
+					}
+					respond(response);
+				});
+			}
+		}
+
+		/**
+		 * Tells if the connection has as many requests on workers as it may
+		 * @return true if no more requests should be handled until a worker answers
+		 */
+		private boolean full() {
+			synchronized (out) {
+				return inFlight >= MAX_IN_FLIGHT;
+			}
+		}
+
+		/**
+		 * Queues a response for writing
+		 * @param response the response frame
+		 */
+		private void respond(ByteBuffer response) {
+			synchronized (out) {
+				if (closed) {
+					return;
+				}
+				out.add(response);
+				pendingBytes += response.remaining();
+			}
+			if (Thread.currentThread() == selectorThread) {
+				updateInterest();
+			} else {
+				responded.add(this);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Writes as many queued responses as the socket takes. Called on the selector thread.
+		 * @throws IOException
+		 */
+		private void write() throws IOException {
+			synchronized (out) {
+				// pipelined responses go out together in one gathering write
+				ByteBuffer[] queued = out.toArray(new ByteBuffer[0]);
+				pendingBytes -= channel.write(queued);
+				while (!out.isEmpty() && !out.peek().hasRemaining()) {
+					out.poll();
+				}
+			}
+			updateInterest();
+		}
+
+		/**
+		 * Watches for writing while responses are queued, and stops reading while too many are or while
+		 * too many requests are on workers. Called on the selector thread.
+		 */
+		private void updateInterest() {
+			if (!key.isValid()) {
+				return;
+			}
+			int ops;
+			synchronized (out) {
+				ops = pendingBytes < MAX_PENDING_BYTES && inFlight < MAX_IN_FLIGHT ? SelectionKey.OP_READ : 0;
+				if (!out.isEmpty()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+			}
+			key.interestOps(ops);
+		}
+
+		/**
+		 * Closes the connection, responses still being worked on are dropped
+		 */
+		private void close() {
+			synchronized (out) {
+				closed = true;
+				out.clear();
+			}
+			key.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The users changed on a server since a version a client cache is at, so the cache can drop its
+ * copies of them. Only login names and uuids are sent, never the users themselves.
+ */
+public class CacheInvalidation implements Serializable {
+	static public final long serialVersionUID = 2904417785013396521L;
+
+	private final long seq;
+	private final boolean more;
+	private final List<String> loginNames;
+	private final List<UUID> uuids;
+
+	/**
+	 * Constructs the invalidation of every user, sent when the changes asked for are no longer known
+	 * @param seq the version of the database every cached copy must be dropped at
+	 */
+	public CacheInvalidation(long seq) {
+		this(seq, false, null, null);
+	}
+
+	/**
+	 * Constructs the invalidation of some users
+	 * @param seq the sequence number of the last change the invalidation covers
+	 * @param more true if later changes were left for the next call
+	 * @param loginNames the login names of the changed users, after the change
+	 * @param uuids the uuids of the changed users
+	 */
+	public CacheInvalidation(long seq, boolean more, List<String> loginNames, List<UUID> uuids) {
+		this.seq = seq;
+		this.more = more;
+		this.loginNames = loginNames;
+		this.uuids = uuids;
+	}
+
+	/**
+	 * Gets the version the cache is at once the invalidation is applied
+	 * @return the sequence number of the last change covered
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Tells if there are changes after this invalidation that the server did not send at once
+	 * @return true if the caller should ask again straight away
+	 */
+	public boolean hasMore() {
+		return more;
+	}
+
+	/**
+	 * Tells if every cached user must be dropped
+	 * @return true if the changes since the version asked for are no longer known
+	 */
+	public boolean isAll() {
+		return loginNames == null;
+	}
+
+	/**
+	 * Gets the login names of the changed users
+	 * @return the login names, null if every user is invalidated
+	 */
+	public List<String> getLoginNames() {
+		return loginNames;
+	}
+
+	/**
+	 * Gets the uuids of the changed users
+	 * @return the uuids, null if every user is invalidated
+	 */
+	public List<UUID> getUUIDs() {
+		return uuids;
+	}
+}
@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes checkpoints of a UserStore on a background thread so no request ever waits for one.
+ *
+ * A checkpoint is a point-in-time view of the store: the users are copied while writers carry on,
+ * then every change made during the copy is taken from the replication log and applied to the copy,
+ * which leaves it exactly as the store was at one sequence number. If the replication log no longer
+ * has those changes the copy is labelled with the sequence number from before it was taken, replaying
+ * the write-ahead log over it still ends in the right state.
+ */
+public class Checkpointer {
+	private final UserStore users;
+	private final ReplicationLog changes;
+	private final WriteAheadLog log;
+	private final File file;
+	private final long logThreshold;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "checkpointer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	// the checkpoint waiting to start, shared by every request made until it does, null when none is
+	private CompletableFuture<Void> queued = null;
+	private final Object queueLock = new Object();
+	private final Metrics.Histogram writeTime = Metrics.histogram("idserver_checkpoint_seconds");
+	private final LongAdder bytesWritten = Metrics.counter("idserver_checkpoint_bytes_total");
+	private volatile long lastSize = 0;
+
+	/**
+	 * Constructs a checkpointer
+	 * @param users the store to checkpoint
+	 * @param changes the replication log of the store
+	 * @param log the write-ahead log of the store, may be null
+	 * @param file the file checkpoints are written to
+	 * @param logThreshold the size the write-ahead log must reach before an unforced checkpoint runs
+	 */
+	public Checkpointer(UserStore users, ReplicationLog changes, WriteAheadLog log, File file, long logThreshold) {
+		this.users = users;
+		this.changes = changes;
+		this.log = log;
+		this.file = file;
+		this.logThreshold = logThreshold;
+		Metrics.gauge("idserver_checkpoint_size_bytes", () -> lastSize);
+	}
+
+	/**
+	 * Asks for a checkpoint. Requests made while one is still queued share it.
+	 * @param force false to skip the checkpoint while the write-ahead log is still small
+	 * @return completes once the checkpoint is on disk
+	 */
+	public Future<?> request(boolean force) {
+		if (!force && log != null && log.size() < logThreshold) {
+			return CompletableFuture.completedFuture(null);
+		}
+		CompletableFuture<Void> done;
+		synchronized (queueLock) {
+			if (queued != null) {
+				return queued;
+			}
+			done = queued = new CompletableFuture<Void>();
+		}
+		executor.execute(() -> {
+			synchronized (queueLock) {
+				// the checkpoint starts now, later requests need one that starts after them
+				queued = null;
+			}
+			try {
+				write();
+				done.complete(null);
+			} catch (Throwable e) {
+				done.completeExceptionally(e);
+			}
+		});
+		return done;
+	}
+
+	/**
+	 * Writes a checkpoint and drops the part of the write-ahead log it covers
+	 * @throws IOException
+	 */
+	private void write() throws IOException {
+		long start = System.nanoTime();
+		if (log != null) {
+			log.startCheckpoint();
+		}
+
+		long[] seq = new long[1];
+		Collection<User> view = capture(seq);
+		lastSize = SnapshotFile.write(file, seq[0], view);
+		bytesWritten.add(lastSize);
+
+		if (log != null) {
+			log.finishCheckpoint();
+		}
+		writeTime.recordSince(start);
+	}
+
+	/**
+	 * Takes a point-in-time view of the store without blocking readers or writers
+	 * @param seq receives the sequence number the view is at
+	 * @return the users in the view
+	 */
+	private Collection<User> capture(long[] seq) {
+		long from = users.getSeq();
+		Map<UUID, User> copy = users.copyReverseLookupUsers();
+		// changes still being made when the copy finished get a number once they are published
+		users.awaitWriters();
+		long to = users.getSeq();
+
+		List<UserChange> missed = to - from <= Integer.MAX_VALUE ? changes.since(from, (int) (to - from)) : null;
+		if (missed == null || missed.size() != to - from) {
+			seq[0] = from;
+			return copy.values();
+		}
+		for (UserChange change : missed) {
+			if (change.getType() == UserChange.Type.DELETE) {
+				copy.remove(change.getUser().getUUID());
+			} else {
+				copy.put(change.getUser().getUUID(), change.getUser());
+			}
+		}
+		seq[0] = to;
+		return copy.values();
+	}
+}
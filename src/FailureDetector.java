@@ -0,0 +1,152 @@
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of which servers are alive by sending each of them a heartbeat in the background, so
+ * asking if a server is alive never waits on the network.
+ *
+ * A server is alive while its lease is valid, that is while it answered a heartbeat in the last
+ * LEASE_MS. Heartbeats are isAlive calls through the cached stub of each server, which RMI sends over
+ * a pooled connection rather than opening a new socket every time.
+ */
+public class FailureDetector {
+	private static final long HEARTBEAT_MS = 200;
+	private static final long LEASE_MS = 1000;
+	private static final int CONNECT_TIMEOUT_MS = 500;
+
+	private final int registryPort;
+	private final PeerStubs stubs;
+	private final ConcurrentHashMap<ServerInfo, Peer> peers = new ConcurrentHashMap<ServerInfo, Peer>();
+	private volatile ServerInfo self = null;
+
+	/**
+	 * What we know about one server
+	 */
+	private class Peer implements Runnable {
+		private final ServerInfo server;
+		private volatile long lastHeard = 0;
+		private volatile boolean alive = false;
+		private volatile boolean tracked = true;
+
+		private Peer(ServerInfo server) {
+			this.server = server;
+		}
+
+		/**
+		 * Checks if the lease of the server is still valid
+		 * @return true if the server answered a heartbeat recently
+		 */
+		private boolean leaseValid() {
+			return lastHeard != 0 && System.nanoTime() - lastHeard < LEASE_MS * 1000000;
+		}
+
+		/**
+		 * Sends one heartbeat and records the answer
+		 */
+		private void heartbeat() {
+			boolean answered = false;
+			try {
+				if (!stubs.contains(server)) {
+					// a plain connect with a timeout first, looking up a dead registry can hang for a long time
+					try (Socket socket = new Socket()) {
+						socket.connect(new InetSocketAddress(server.getAddress(), registryPort), CONNECT_TIMEOUT_MS);
+					}
+				}
+				answered = stubs.call(server, stub -> stub.isAlive());
+			} catch (Exception e) {
+				answered = false;
+			}
+
+			if (answered) {
+				lastHeard = System.nanoTime();
+			}
+			boolean now = answered || leaseValid();
+			if (now != alive) {
+				alive = now;
+				Log.info(Log.Subsystem.ELECTION, "{} is now {}", server.getAddress(), now ? "alive" : "dead");
+			}
+		}
+
+		@Override
+		public void run() {
+			while (tracked) {
+				long started = System.nanoTime();
+				heartbeat();
+				long sleep = HEARTBEAT_MS - (System.nanoTime() - started) / 1000000;
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Constructs a failure detector
+	 * @param registryPort the port every server's registry listens on
+	 * @param stubs the stubs of the other servers
+	 */
+	public FailureDetector(int registryPort, PeerStubs stubs) {
+		this.registryPort = registryPort;
+		this.stubs = stubs;
+	}
+
+	/**
+	 * Tells the detector which server it runs on, that server is always alive
+	 * @param self this server
+	 */
+	public void setSelf(ServerInfo self) {
+		this.self = self;
+	}
+
+	/**
+	 * Checks if a server is alive. The first time a server is asked about it is checked right away,
+	 * after that the answer comes from the background heartbeats.
+	 * @param server the server to check
+	 * @return true if the server answered a heartbeat within its lease
+	 */
+	public boolean isAlive(ServerInfo server) {
+		if (server == null) {
+			return false;
+		}
+		if (server.equals(self)) {
+			return true;
+		}
+		Peer peer = peers.get(server);
+		if (peer == null) {
+			peer = track(server);
+		}
+		return peer.leaseValid();
+	}
+
+	/**
+	 * Starts sending heartbeats to a server
+	 * @param server the server to watch
+	 * @return what we know about the server
+	 */
+	private Peer track(ServerInfo server) {
+		Peer peer = new Peer(server);
+		Peer existing = peers.putIfAbsent(server, peer);
+		if (existing != null) {
+			return existing;
+		}
+		peer.heartbeat();
+		Threads.start("heartbeat-" + server.getAddress(), peer);
+		return peer;
+	}
+
+	/**
+	 * Stops sending heartbeats to a server that left
+	 * @param server the server to forget
+	 */
+	public void forget(ServerInfo server) {
+		Peer peer = peers.remove(server);
+		if (peer != null) {
+			peer.tracked = false;
+		}
+	}
+}
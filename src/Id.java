@@ -1,4 +1,5 @@
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.rmi.RemoteException;
@@ -41,6 +42,22 @@ public interface Id extends java.rmi.Remote
      */
     public String reverseLookup(UUID uuid) throws RemoteException;
 
+    /**
+     * Queries the database for a particular user with loginName
+     * @param loginName the login name of the user to lookup
+     * @return the user, a record that does not exist if there is no such user
+     * @throws RemoteException
+     */
+    public UserRecord lookupRecord(String loginName) throws RemoteException;
+
+    /**
+     * Queries the database for a particular user with uuid
+     * @param uuid the uuid of the user to look for
+     * @return the user, a record that does not exist if there is no such user
+     * @throws RemoteException
+     */
+    public UserRecord reverseLookupRecord(UUID uuid) throws RemoteException;
+
     /**
      * Returns all of the users and uuid's corresponding to those users
      * @param listToGet the command of what kind of information to get from server
@@ -49,6 +66,78 @@ public interface Id extends java.rmi.Remote
      */
     public String get(String listToGet) throws RemoteException;
 
+    /**
+     * Looks up a user by login name on any server, backups included
+     * @param loginName the login name of the user to lookup
+     * @param minSeq the version returned by getVersion after the caller's last change, or 0
+     * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+     * @return the user with info
+     * @throws StaleReplicaException if this backup is too far behind the leader
+     * @throws RemoteException
+     */
+    public String lookup(String loginName, long minSeq, long maxStalenessMillis) throws RemoteException;
+
+    /**
+     * Looks up a user by uuid on any server, backups included
+     * @param uuid the uuid of the user to look for
+     * @param minSeq the version returned by getVersion after the caller's last change, or 0
+     * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+     * @return the name of the user
+     * @throws StaleReplicaException if this backup is too far behind the leader
+     * @throws RemoteException
+     */
+    public String reverseLookup(UUID uuid, long minSeq, long maxStalenessMillis) throws RemoteException;
+
+    /**
+     * Returns the users of any server, backups included
+     * @param listToGet the command of what kind of information to get from server
+     * @param minSeq the version returned by getVersion after the caller's last change, or 0
+     * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+     * @return the query of the users of the databse from the given listToGet
+     * @throws StaleReplicaException if this backup is too far behind the leader
+     * @throws RemoteException
+     */
+    public String get(String listToGet, long minSeq, long maxStalenessMillis) throws RemoteException;
+
+    /**
+     * Lists users in login name order one page at a time, without building the whole list on the
+     * server or holding up other requests while it is made
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param prefix only list login names starting with this, null or empty for every user
+     * @param pageSize the most users on the page, at most 8192
+     * @return the page, with a next cursor unless it is the last one
+     * @throws RemoteException
+     */
+    public UserPage list(String cursor, String prefix, int pageSize) throws RemoteException;
+
+    /**
+     * Lists users one page at a time on any server, backups included
+     * @param cursor the next cursor of the previous page, or null for the first page
+     * @param prefix only list login names starting with this, null or empty for every user
+     * @param pageSize the most users on the page, at most 8192
+     * @param minSeq the version returned by getVersion after the caller's last change, or 0
+     * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+     * @return the page, with a next cursor unless it is the last one
+     * @throws StaleReplicaException if this backup is too far behind the leader
+     * @throws RemoteException
+     */
+    public UserPage list(String cursor, String prefix, int pageSize, long minSeq, long maxStalenessMillis) throws RemoteException;
+
+    /**
+     * Gets the version of the database, the sequence number of the last change made to it
+     * @return the version
+     * @throws RemoteException
+     */
+    public long getVersion() throws RemoteException;
+
+    /**
+     * Gets the login names and uuids of the users changed since a version, for client caches to drop
+     * @param seq the version the caller's cache is at, or -1 to only learn the current version
+     * @return the users changed since seq, or the invalidation of every user if they are no longer known
+     * @throws RemoteException
+     */
+    public CacheInvalidation getInvalidationsSince(long seq) throws RemoteException;
+
     /**
      * Removes a user form the IdServer with loginName
      * @param loginName username of user to remove
@@ -58,6 +147,38 @@ public interface Id extends java.rmi.Remote
      */
     public boolean delete(String loginName, String password) throws RemoteException;
     
+    /**
+     * Creates many users in one request. The users are logged and replicated as one unit.
+     * @param newUsers the users to create, at most 8192
+     * @return the UUID assigned to each user in order, null where the login name was already taken
+     * @throws RemoteException
+     */
+    public List<UUID> createAll(List<NewUser> newUsers) throws RemoteException;
+
+    /**
+     * Queries the database for many users by login name
+     * @param loginNames the login names of the users to lookup
+     * @return the info of each user in order, as returned by lookup
+     * @throws RemoteException
+     */
+    public List<String> lookupAll(List<String> loginNames) throws RemoteException;
+
+    /**
+     * Queries the database for many users by uuid
+     * @param uuids the uuids of the users to look for
+     * @return the info of each user in order, as returned by reverseLookup
+     * @throws RemoteException
+     */
+    public List<String> reverseLookupAll(List<UUID> uuids) throws RemoteException;
+
+    /**
+     * Removes many users in one request. The removed users are logged and replicated as one unit.
+     * @param passwords the password of each login name to remove, at most 8192
+     * @return whether each login name could be removed
+     * @throws RemoteException
+     */
+    public Map<String, Boolean> deleteAll(Map<String, String> passwords) throws RemoteException;
+
     /**
      * Forces checkpoint in database to persist data to file.
      * @throws RemoteException
@@ -78,6 +199,31 @@ public interface Id extends java.rmi.Remote
      */
 	public Map<UUID, User> getReverseLookupUsersDatabase() throws RemoteException;
 
+    /**
+     * Gets the metrics of the server: request latencies, lookup hits and misses, replication lag,
+     * persistence and elections
+     * @return the metrics in the Prometheus text format
+     * @throws RemoteException
+     */
+    public String getMetrics() throws RemoteException;
+
+    /**
+     * Gets the changes made on the lead server since the given sequence number
+     * @param seq the sequence number of the last change the caller applied, or -1 to get a full copy
+     * @return the changes since seq, or a full copy of the database if they are no longer known
+     * @throws RemoteException
+     */
+	public ReplicationBatch getChangesSince(long seq) throws RemoteException;
+
+    /**
+     * Used by a lead server started with a quorum to push its changes to a backup as they are made
+     * @param leader the lead server sending the changes
+     * @param batch the changes following on from the last sequence number the backup confirmed, may be empty
+     * @return the sequence number the backup is at after applying them, or -1 if it does not follow the sender
+     * @throws RemoteException
+     */
+	public long pushChanges(ServerInfo leader, ReplicationBatch batch) throws RemoteException;
+
     /**
      * Used as part of the election. Servers with a lower pid should send this message to servers with a higher pid.
      * @param sender    Server sending this message. Used for logging and validation.
@@ -102,11 +248,28 @@ public interface Id extends java.rmi.Remote
      */
     public boolean isAlive() throws RemoteException;
 
-    /** Adds a new backup server. Returns a list of all servers, including the callee with a pid assigned.
+    /** Adds a new server. Returns a list of all servers, including the callee with a pid assigned.
+     * A server of a shard nobody else holds yet becomes its leader, and the leaders of the other
+     * shards move the users that now belong to it over.
      * @param newServerAddress IP address of the sender.
+     * @param shard the shard of the database the sender holds.
+     * @return a list of all servers.
+     */
+    public ArrayList<ServerInfo> registerServer(String newServerAddress, int shard) throws RemoteException;
+
+    /** Gets every server of every shard, used by clients to route requests to the right shard.
      * @return a list of all servers.
      */
-    public ArrayList<ServerInfo> registerServer(String newServerAddress) throws RemoteException;
+    public ArrayList<ServerInfo> getServers() throws RemoteException;
+
+    /**
+     * Adds users moved over from another shard, keeping their UUIDs. Only the leader of the shard
+     * the users belong to accepts them.
+     * @param moved the users to add
+     * @return whether each user was added, false where another user already holds the login name
+     * @throws RemoteException
+     */
+    public List<Boolean> importUsers(List<User> moved) throws RemoteException;
 
     /** Adds a new server to the list of standby servers.
      * @param newServer the new server to be added to standby servers
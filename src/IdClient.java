@@ -1,13 +1,35 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.time.LocalDateTime;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.TreeMap;
+import java.rmi.ConnectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
 import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -17,12 +39,983 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 
 /**
- * Represents an RMI client for the IdServer
+ * Represents an RMI client for the IdServer. Besides the command line client in main, an IdClient
+ * can be constructed once and shared by an application. It keeps the stub of the lead server and
+ * only looks for the leader again when a call to it fails or the server it called is not the leader.
+ * Reads are retried against the new leader, writes only when they cannot have reached the old one.
+ *
+ * When the database is split into shards, the client asks the servers for every shard on first use
+ * and sends each request to the leader of the shard owning its login name or UUID.
+ *
+ * Lookups given a maximum staleness may be answered by any of the servers, taken in turn, as long as
+ * it caught up with the leader recently enough and already has every change made through this client.
+ *
+ * A near cache may be enabled to answer lookups of hot users without a call. The client of every
+ * shard keeps its own and asks the leader of the shard for the users changed since the version it is
+ * at every refresh interval, so a user renamed or removed through another client is answered from the
+ * cache for at most about that long. Changes made through this client drop the users at once.
+ *
+ * When the leader was started with a quorum, a write that enough backups did not confirm in time
+ * fails with an UnconfirmedWriteException. Unlike other failures the write was applied and will
+ * reach the backups unless the leader fails first, so it should not be made again: the answer it
+ * would have given, such as the UUID of a created user, is in the exception.
  * 
  * @author Lucas
  *
  */
 public class IdClient {
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long REPLICA_RETRY_MILLIS = 1000;
+	private static boolean verbose = false;
+
+	/**
+	 * A call made to the lead server
+	 */
+	private interface Call<T> {
+		T call(Id stub) throws RemoteException;
+	}
+
+	/**
+	 * A call made through the client of one shard
+	 */
+	private interface ShardCall<T> {
+		T call(IdClient client) throws RemoteException;
+	}
+
+	/**
+	 * A call handling the part of a batch that belongs to one shard
+	 */
+	private interface BatchCall<K, R> {
+		List<R> call(IdClient client, List<K> items) throws RemoteException;
+	}
+
+	private static final String NOT_FOUND = "User does not exist!";
+	private static final int LIST_PAGE_SIZE = 1000;
+	// a near cache stops answering once its last refresh is this many intervals old
+	private static final int NEAR_CACHE_MAX_LAG = 3;
+	private static final ScheduledExecutorService nearCacheScheduler = Threads.newScheduler("near-cache");
+
+	private final String[] servers;
+	private final int registryPort;
+	private final boolean routing;
+	// the client of each shard, empty while there is only one, and the ring placing users on them
+	private volatile Map<Integer, IdClient> shards = null;
+	private volatile ShardRing ring = null;
+	private volatile Id leader = null;
+	private volatile ServerInfo leaderInfo = null;
+
+	// stubs of every server for reads that may go to a backup, and when failed ones may be tried again
+	private final ConcurrentHashMap<String, Id> replicas = new ConcurrentHashMap<String, Id>();
+	private final ConcurrentHashMap<String, Long> replicaDownUntil = new ConcurrentHashMap<String, Long>();
+	private final AtomicInteger nextReplica = new AtomicInteger();
+	// the version a backup must have reached to show this client its own changes
+	private volatile long minSeq = 0;
+	private volatile boolean versionPending = false;
+
+	// the cache of lookup answers, null unless enabled, with its settings for the clients of new shards
+	private volatile NearCache nearCache = null;
+	private ScheduledFuture<?> nearCacheRefresh = null;
+	private int nearCacheEntries = 0;
+	private long nearCacheTtlMillis = 0;
+	private long nearCacheRefreshMillis = 0;
+
+	/**
+	 * Constructs a client, the leader is looked for on the first call
+	 * @param servers the addresses of the servers to look for the leader on
+	 * @param registryPort the registry port of the servers
+	 */
+	public IdClient(String[] servers, int registryPort) {
+		this(servers, registryPort, true);
+	}
+
+	/**
+	 * Constructs a client
+	 * @param servers the addresses of the servers to look for the leader on
+	 * @param registryPort the registry port of the servers
+	 * @param routing true to send requests to the shard owning them, false for the client of one shard
+	 */
+	private IdClient(String[] servers, int registryPort, boolean routing) {
+		this.servers = servers.clone();
+		this.registryPort = registryPort;
+		this.routing = routing;
+	}
+
+	/**
+	 * Gets the current lead server, looking for it if it is not known
+	 * @return the lead server
+	 * @throws RemoteException if no leader could be found
+	 */
+	public ServerInfo getLeader() throws RemoteException {
+		leader();
+		return leaderInfo;
+	}
+
+	/**
+	 * Looks up a user by login name
+	 * @param loginName the login name of the user
+	 * @return the user info, or a message if there is no such user
+	 * @throws RemoteException
+	 */
+	public String lookup(String loginName) throws RemoteException {
+		if (nearCache != null) {
+			return lookupRecord(loginName).toString();
+		}
+		return routed(loginName, client -> client.read(stub -> stub.lookup(loginName)));
+	}
+
+	/**
+	 * Looks up a user by UUID
+	 * @param uuid the uuid of the user
+	 * @return the user info, or a message if there is no such user
+	 * @throws RemoteException
+	 */
+	public String reverseLookup(UUID uuid) throws RemoteException {
+		if (nearCache != null) {
+			return reverseLookupRecord(uuid).toString();
+		}
+		return routed(uuid, client -> client.read(stub -> stub.reverseLookup(uuid)), IdClient::found);
+	}
+
+	/**
+	 * Looks up a user by login name
+	 * @param loginName the login name of the user
+	 * @return the user, a record that does not exist if there is no such user
+	 * @throws RemoteException
+	 */
+	public UserRecord lookupRecord(String loginName) throws RemoteException {
+		return routed(loginName, client -> client.cached(loginName, stub -> stub.lookupRecord(loginName)));
+	}
+
+	/**
+	 * Looks up a user by UUID
+	 * @param uuid the uuid of the user
+	 * @return the user, a record that does not exist if there is no such user
+	 * @throws RemoteException
+	 */
+	public UserRecord reverseLookupRecord(UUID uuid) throws RemoteException {
+		return routed(uuid, client -> client.cached(uuid, stub -> stub.reverseLookupRecord(uuid)), UserRecord::exists);
+	}
+
+	/**
+	 * Gets lists of users from the server
+	 * @param listToGet users, uuids or all
+	 * @return the list
+	 * @throws RemoteException
+	 */
+	public String get(String listToGet) throws RemoteException {
+		return everyShard(listToGet, client -> client.read(stub -> stub.get(listToGet)));
+	}
+
+	/**
+	 * Lists users in login name order one page at a time
+	 * @param cursor the next cursor of the previous page, or null for the first page
+	 * @param prefix only list login names starting with this, null or empty for every user
+	 * @param pageSize the most users on the page, at most 8192
+	 * @return the page, with a next cursor unless it is the last one
+	 * @throws RemoteException
+	 */
+	public UserPage list(String cursor, String prefix, int pageSize) throws RemoteException {
+		return everyShard(pageSize, client -> client.read(stub -> stub.list(cursor, prefix, pageSize)));
+	}
+
+	/**
+	 * Lists users one page at a time from any server that is recent enough
+	 * @param cursor the next cursor of the previous page, or null for the first page
+	 * @param prefix only list login names starting with this, null or empty for every user
+	 * @param pageSize the most users on the page, at most 8192
+	 * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+	 * @return the page, with a next cursor unless it is the last one
+	 * @throws RemoteException
+	 */
+	public UserPage list(String cursor, String prefix, int pageSize, long maxStalenessMillis) throws RemoteException {
+		return everyShard(pageSize, client -> {
+			long seq = client.version();
+			return client.replicaRead(stub -> stub.list(cursor, prefix, pageSize, seq, maxStalenessMillis),
+					stub -> stub.list(cursor, prefix, pageSize));
+		});
+	}
+
+	/**
+	 * Looks up a user by login name on any server that is recent enough
+	 * @param loginName the login name of the user
+	 * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+	 * @return the user info, or a message if there is no such user
+	 * @throws RemoteException
+	 */
+	public String lookup(String loginName, long maxStalenessMillis) throws RemoteException {
+		return routed(loginName, client -> {
+			long seq = client.version();
+			return client.replicaRead(stub -> stub.lookup(loginName, seq, maxStalenessMillis), stub -> stub.lookup(loginName));
+		});
+	}
+
+	/**
+	 * Looks up a user by UUID on any server that is recent enough
+	 * @param uuid the uuid of the user
+	 * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+	 * @return the user info, or a message if there is no such user
+	 * @throws RemoteException
+	 */
+	public String reverseLookup(UUID uuid, long maxStalenessMillis) throws RemoteException {
+		return routed(uuid, client -> {
+			long seq = client.version();
+			return client.replicaRead(stub -> stub.reverseLookup(uuid, seq, maxStalenessMillis), stub -> stub.reverseLookup(uuid));
+		}, IdClient::found);
+	}
+
+	/**
+	 * Gets lists of users from any server that is recent enough
+	 * @param listToGet users, uuids or all
+	 * @param maxStalenessMillis how long ago a backup may have last caught up with the leader
+	 * @return the list
+	 * @throws RemoteException
+	 */
+	public String get(String listToGet, long maxStalenessMillis) throws RemoteException {
+		return everyShard(listToGet, client -> {
+			long seq = client.version();
+			return client.replicaRead(stub -> stub.get(listToGet, seq, maxStalenessMillis), stub -> stub.get(listToGet));
+		});
+	}
+
+	/**
+	 * Looks up many users by login name in one call
+	 * @param loginNames the login names of the users
+	 * @return the info of each user in order
+	 * @throws RemoteException
+	 */
+	public List<String> lookupAll(List<String> loginNames) throws RemoteException {
+		return scatter(loginNames, loginName -> ring.shardOf(loginName),
+				(client, part) -> client.read(stub -> stub.lookupAll(part)));
+	}
+
+	/**
+	 * Looks up many users by UUID in one call
+	 * @param uuids the uuids of the users
+	 * @return the info of each user in order
+	 * @throws RemoteException
+	 */
+	public List<String> reverseLookupAll(List<UUID> uuids) throws RemoteException {
+		List<String> found = scatter(uuids, uuid -> ring.shardOf(uuid),
+				(client, part) -> client.read(stub -> stub.reverseLookupAll(part)));
+		for (int i = 0; i < found.size(); i++) {
+			if (NOT_FOUND.equals(found.get(i)) && !shards().isEmpty()) {
+				// only users renamed onto another shard are missed, look for them one by one
+				UUID uuid = uuids.get(i);
+				found.set(i, routed(uuid, client -> client.read(stub -> stub.reverseLookup(uuid)), IdClient::found));
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Creates a user
+	 * @param loginName the login name of the new user
+	 * @param realName the real name of the new user
+	 * @param password the password of the new user, hashed before it is sent
+	 * @return the UUID of the new user or null if the login name is taken
+	 * @throws UnconfirmedWriteException if the write was applied but not yet confirmed by enough backups
+	 * @throws RemoteException
+	 */
+	public UUID create(String loginName, String realName, String password) throws RemoteException {
+		String hashed = hash(password);
+		try {
+			return routed(loginName, client -> client.write(stub -> stub.create(loginName, realName, hashed)));
+		} finally {
+			uncache(loginName);
+		}
+	}
+
+	/**
+	 * Changes the login name of a user
+	 * @param oldLoginName the current login name
+	 * @param newLoginName the new login name
+	 * @param password the password of the user, hashed before it is sent
+	 * @return true if the user was renamed
+	 * @throws UnconfirmedWriteException if the write was applied but not yet confirmed by enough backups
+	 * @throws RemoteException
+	 */
+	public boolean modify(String oldLoginName, String newLoginName, String password) throws RemoteException {
+		String hashed = hash(password);
+		try {
+			return routed(oldLoginName, client -> client.write(stub -> stub.modify(oldLoginName, newLoginName, hashed)));
+		} finally {
+			uncache(oldLoginName, newLoginName);
+		}
+	}
+
+	/**
+	 * Removes a user
+	 * @param loginName the login name of the user
+	 * @param password the password of the user, hashed before it is sent
+	 * @return true if the user was removed
+	 * @throws UnconfirmedWriteException if the write was applied but not yet confirmed by enough backups
+	 * @throws RemoteException
+	 */
+	public boolean delete(String loginName, String password) throws RemoteException {
+		String hashed = hash(password);
+		try {
+			return routed(loginName, client -> client.write(stub -> stub.delete(loginName, hashed)));
+		} finally {
+			uncache(loginName);
+		}
+	}
+
+	/**
+	 * Creates many users in one call
+	 * @param newUsers the users to create, with their passwords not yet hashed
+	 * @return the UUID of each new user in order, null where the login name was taken
+	 * @throws UnconfirmedWriteException if the write was applied but not yet confirmed by enough backups
+	 * @throws RemoteException
+	 */
+	public List<UUID> createAll(List<NewUser> newUsers) throws RemoteException {
+		List<NewUser> hashed = new ArrayList<NewUser>(newUsers.size());
+		for (NewUser newUser : newUsers) {
+			hashed.add(new NewUser(newUser.getLoginName(), newUser.getRealName(), hash(newUser.getPassword())));
+		}
+		try {
+			return scatter(hashed, newUser -> ring.shardOf(newUser.getLoginName()),
+					(client, part) -> client.write(stub -> stub.createAll(part)));
+		} finally {
+			for (NewUser newUser : newUsers) {
+				uncache(newUser.getLoginName());
+			}
+		}
+	}
+
+	/**
+	 * Removes many users in one call
+	 * @param passwords the password of each login name to remove, hashed before they are sent
+	 * @return whether each login name was removed
+	 * @throws UnconfirmedWriteException if the write was applied but not yet confirmed by enough backups
+	 * @throws RemoteException
+	 */
+	public Map<String, Boolean> deleteAll(Map<String, String> passwords) throws RemoteException {
+		Map<String, String> hashed = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : passwords.entrySet()) {
+			hashed.put(entry.getKey(), hash(entry.getValue()));
+		}
+		List<String> loginNames = new ArrayList<String>(hashed.keySet());
+		List<Boolean> removed;
+		try {
+			removed = scatter(loginNames, loginName -> ring.shardOf(loginName), (client, part) -> {
+				Map<String, String> partPasswords = new LinkedHashMap<String, String>();
+				for (String loginName : part) {
+					partPasswords.put(loginName, hashed.get(loginName));
+				}
+				Map<String, Boolean> partRemoved = client.write(stub -> stub.deleteAll(partPasswords));
+				List<Boolean> inOrder = new ArrayList<Boolean>(part.size());
+				for (String loginName : part) {
+					inOrder.add(partRemoved.get(loginName));
+				}
+				return inOrder;
+			});
+		} finally {
+			for (String loginName : loginNames) {
+				uncache(loginName);
+			}
+		}
+		Map<String, Boolean> deleted = new LinkedHashMap<String, Boolean>();
+		for (int i = 0; i < loginNames.size(); i++) {
+			deleted.put(loginNames.get(i), removed.get(i));
+		}
+		return deleted;
+	}
+
+	/**
+	 * Keeps the answers to lookups in a near cache from now on. Users are dropped from it when the
+	 * servers report a change to them, which they are asked for every refresh interval.
+	 * @param maxEntries the most answers kept by the client of each shard
+	 * @param ttlMillis the longest an answer is kept
+	 * @param refreshMillis the time between two requests for the users changed on the servers
+	 */
+	public synchronized void enableNearCache(int maxEntries, long ttlMillis, long refreshMillis) {
+		disableNearCache();
+		nearCacheEntries = maxEntries;
+		nearCacheTtlMillis = ttlMillis;
+		nearCacheRefreshMillis = refreshMillis;
+		nearCache = new NearCache(maxEntries, ttlMillis, refreshMillis * NEAR_CACHE_MAX_LAG);
+		nearCacheRefresh = Threads.every(nearCacheScheduler, "near-cache-refresh", 0, refreshMillis, this::refreshNearCache);
+		if (shards != null) {
+			for (IdClient client : shards.values()) {
+				client.enableNearCache(maxEntries, ttlMillis, refreshMillis);
+			}
+		}
+	}
+
+	/**
+	 * Stops keeping the answers to lookups and drops the near cache
+	 */
+	public synchronized void disableNearCache() {
+		if (nearCacheRefresh != null) {
+			nearCacheRefresh.cancel(false);
+			nearCacheRefresh = null;
+		}
+		nearCache = null;
+		nearCacheEntries = 0;
+		if (shards != null) {
+			for (IdClient client : shards.values()) {
+				client.disableNearCache();
+			}
+		}
+	}
+
+	/**
+	 * Gets the near caches of the client, one per shard
+	 * @return the caches, empty if the near cache is not enabled
+	 */
+	public List<NearCache> getNearCaches() {
+		List<NearCache> caches = new ArrayList<NearCache>();
+		NearCache own = nearCache;
+		if (own != null) {
+			caches.add(own);
+		}
+		Map<Integer, IdClient> known = shards;
+		if (known != null) {
+			for (IdClient client : known.values()) {
+				caches.addAll(client.getNearCaches());
+			}
+		}
+		return caches;
+	}
+
+	/**
+	 * Answers a lookup from the near cache, or reads it from the leader and keeps the answer
+	 * @param key the login name or uuid looked up
+	 * @param call the lookup to make on a miss
+	 * @return the answer
+	 * @throws RemoteException
+	 */
+	private UserRecord cached(Object key, Call<UserRecord> call) throws RemoteException {
+		NearCache cache = nearCache;
+		if (cache == null) {
+			return read(call);
+		}
+		UserRecord record = cache.get(key);
+		if (record != null) {
+			return record;
+		}
+		long epoch = cache.getEpoch();
+		record = read(call);
+		cache.put(key, record, epoch);
+		return record;
+	}
+
+	/**
+	 * Drops users changed through this client from the near cache of every shard, so this client
+	 * sees its own changes even before the servers report them
+	 * @param loginNames the login names of the users
+	 */
+	private void uncache(String... loginNames) {
+		for (NearCache cache : getNearCaches()) {
+			for (String loginName : loginNames) {
+				cache.invalidate(loginName);
+			}
+		}
+	}
+
+	/**
+	 * Asks the leader for the users changed since the version the near cache is at and drops them.
+	 * When the leader cannot be reached the cache stops answering once it lags too far behind.
+	 */
+	private void refreshNearCache() {
+		NearCache cache = nearCache;
+		Map<Integer, IdClient> known = shards;
+		if (cache == null || (routing && known != null && !known.isEmpty())) {
+			// the clients of the shards refresh their own caches
+			return;
+		}
+		try {
+			CacheInvalidation invalidation;
+			do {
+				long askedAt = System.nanoTime();
+				long seq = cache.getSeq();
+				invalidation = read(stub -> stub.getInvalidationsSince(seq));
+				cache.apply(invalidation, askedAt);
+			} while (invalidation.hasMore());
+		} catch (RemoteException e) {
+			if (verbose) {
+				System.err.println("Could not refresh the near cache: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Makes a call on the client of the shard owning a login name, asking the servers for the
+	 * shards again if the call went to the wrong one
+	 * @param loginName the login name of the call
+	 * @param call the call to make
+	 * @return the result of the call
+	 * @throws RemoteException
+	 */
+	private <T> T routed(String loginName, ShardCall<T> call) throws RemoteException {
+		if (!routing || shards().isEmpty()) {
+			return call.call(this);
+		}
+		try {
+			return call.call(shards().get(ring.shardOf(loginName)));
+		} catch (RemoteException e) {
+			if (!wrongShard(e)) {
+				throw e;
+			}
+			refreshShards();
+			return call.call(shardClient(ring.shardOf(loginName)));
+		}
+	}
+
+	/**
+	 * Makes a lookup on the client of the shard a UUID was created on, then on the others if the
+	 * user was renamed onto another shard since
+	 * @param uuid the uuid of the lookup
+	 * @param call the lookup to make
+	 * @param found tells if an answer found the user
+	 * @return the first answer that found the user, or the answer of the owning shard
+	 * @throws RemoteException
+	 */
+	private <T> T routed(UUID uuid, ShardCall<T> call, Predicate<T> found) throws RemoteException {
+		if (!routing || shards().isEmpty()) {
+			return call.call(this);
+		}
+		Map<Integer, IdClient> known = shards();
+		IdClient owner = known.get(ring.shardOf(uuid));
+		T answer = call.call(owner);
+		for (IdClient other : known.values()) {
+			if (found.test(answer)) {
+				break;
+			}
+			if (other != owner) {
+				T otherAnswer = call.call(other);
+				if (found.test(otherAnswer)) {
+					answer = otherAnswer;
+				}
+			}
+		}
+		return answer;
+	}
+
+	/**
+	 * Tells if the answer to a lookup found the user
+	 * @param answer the answer
+	 * @return false if the answer says there is no such user
+	 */
+	private static boolean found(String answer) {
+		return !NOT_FOUND.equals(answer);
+	}
+
+	/**
+	 * Gets a list from every shard and joins them
+	 * @param listToGet users, uuids or all
+	 * @param call the call getting the list from one shard
+	 * @return the lists of all shards
+	 * @throws RemoteException
+	 */
+	private String everyShard(String listToGet, ShardCall<String> call) throws RemoteException {
+		if (!routing || shards().isEmpty()) {
+			return call.call(this);
+		}
+		StringBuilder joined = new StringBuilder();
+		for (IdClient client : shards().values()) {
+			String list = call.call(client);
+			if (listToGet.equals("all")) {
+				joined.append(list);
+				continue;
+			}
+			if (!list.startsWith("[")) {
+				// not a list, every shard answers the same
+				return list;
+			}
+			String items = list.substring(1, list.length() - 1);
+			if (!items.isEmpty()) {
+				joined.append(joined.length() > 0 ? ", " : "").append(items);
+			}
+		}
+		return listToGet.equals("all") ? joined.toString() : "[" + joined + "]";
+	}
+
+	/**
+	 * Asks every shard for a page of the same listing and merges them. Each shard gives its first
+	 * users after the cursor, so the first pageSize of them all are the next page of the whole database.
+	 * @param pageSize the most users on the page
+	 * @param call gets a page from one shard
+	 * @return the merged page
+	 * @throws RemoteException
+	 */
+	private UserPage everyShard(int pageSize, ShardCall<UserPage> call) throws RemoteException {
+		if (!routing || shards().isEmpty()) {
+			return call.call(this);
+		}
+		List<UserPage.Entry> merged = new ArrayList<UserPage.Entry>();
+		boolean more = false;
+		for (IdClient client : shards().values()) {
+			UserPage page = call.call(client);
+			merged.addAll(page.getEntries());
+			more |= page.getNextCursor() != null;
+		}
+		merged.sort(Comparator.comparing(UserPage.Entry::getLoginName));
+		if (merged.size() > pageSize) {
+			merged = new ArrayList<UserPage.Entry>(merged.subList(0, pageSize));
+			more = true;
+		}
+		String next = more && !merged.isEmpty() ? merged.get(merged.size() - 1).getLoginName() : null;
+		return new UserPage(merged, next);
+	}
+
+	/**
+	 * Splits a batch by shard, makes one call per shard and puts the results back in order. The
+	 * items of a part sent to the wrong shard are sent again one by one after asking for the shards.
+	 * @param items the items of the batch
+	 * @param owner gives the shard of an item
+	 * @param call the call handling the items of one shard
+	 * @return the result for each item in order
+	 * @throws RemoteException
+	 */
+	private <K, R> List<R> scatter(List<K> items, ToIntFunction<K> owner, BatchCall<K, R> call) throws RemoteException {
+		if (!routing || shards().isEmpty()) {
+			return call.call(this, items);
+		}
+		Map<Integer, List<Integer>> parts = new TreeMap<Integer, List<Integer>>();
+		for (int i = 0; i < items.size(); i++) {
+			parts.computeIfAbsent(owner.applyAsInt(items.get(i)), id -> new ArrayList<Integer>()).add(i);
+		}
+		List<R> results = new ArrayList<R>(Collections.nCopies(items.size(), (R) null));
+		for (Map.Entry<Integer, List<Integer>> part : parts.entrySet()) {
+			List<K> partItems = new ArrayList<K>(part.getValue().size());
+			for (int i : part.getValue()) {
+				partItems.add(items.get(i));
+			}
+			try {
+				List<R> partResults = call.call(shardClient(part.getKey()), partItems);
+				for (int i = 0; i < partResults.size(); i++) {
+					results.set(part.getValue().get(i), partResults.get(i));
+				}
+			} catch (RemoteException e) {
+				if (!wrongShard(e)) {
+					throw e;
+				}
+				refreshShards();
+				for (int i : part.getValue()) {
+					K item = items.get(i);
+					results.set(i, call.call(shardClient(owner.applyAsInt(item)), Collections.singletonList(item)).get(0));
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Gets the client of each shard, asking the servers for the shards on first use
+	 * @return the client of each shard, empty if there is only one shard
+	 * @throws RemoteException if no server could be reached
+	 */
+	private Map<Integer, IdClient> shards() throws RemoteException {
+		Map<Integer, IdClient> known = shards;
+		if (known != null) {
+			return known;
+		}
+		synchronized (this) {
+			if (shards == null) {
+				refreshShards();
+			}
+			return shards;
+		}
+	}
+
+	/**
+	 * Gets the client of a shard
+	 * @param id the shard
+	 * @return the client of the shard
+	 * @throws RemoteException if the shard is not known
+	 */
+	private IdClient shardClient(int id) throws RemoteException {
+		IdClient client = shards().get(id);
+		if (client == null) {
+			throw new RemoteException("Shard " + id + " is not known");
+		}
+		return client;
+	}
+
+	/**
+	 * Asks the servers for every server and the shard it holds, and makes a client for each shard.
+	 * The clients of shards whose servers did not change are kept with their leaders.
+	 * @throws RemoteException if no server could be reached
+	 */
+	private synchronized void refreshShards() throws RemoteException {
+		List<ServerInfo> all = null;
+		for (String address : servers) {
+			if (!serverAlive(address, registryPort)) {
+				continue;
+			}
+			try {
+				all = lookupServer(address).getServers();
+				break;
+			} catch (RemoteException e) {
+				// try the next server
+			}
+		}
+		if (all == null) {
+			throw new RemoteException("None of the servers could be reached");
+		}
+
+		Map<Integer, List<String>> addresses = new TreeMap<Integer, List<String>>();
+		for (ServerInfo server : all) {
+			addresses.computeIfAbsent(server.getShard(), id -> new ArrayList<String>()).add(server.getAddress());
+		}
+		Map<Integer, IdClient> clients = new HashMap<Integer, IdClient>();
+		if (addresses.size() > 1) {
+			Map<Integer, IdClient> previous = shards != null ? shards : Collections.<Integer, IdClient>emptyMap();
+			for (Map.Entry<Integer, List<String>> entry : addresses.entrySet()) {
+				String[] shardServers = entry.getValue().toArray(new String[0]);
+				IdClient client = previous.get(entry.getKey());
+				if (client == null || !Arrays.equals(client.servers, shardServers)) {
+					client = new IdClient(shardServers, registryPort, false);
+					if (nearCacheEntries > 0) {
+						client.enableNearCache(nearCacheEntries, nearCacheTtlMillis, nearCacheRefreshMillis);
+					}
+				}
+				clients.put(entry.getKey(), client);
+			}
+			for (IdClient client : previous.values()) {
+				if (!clients.containsValue(client)) {
+					client.disableNearCache();
+				}
+			}
+		}
+		ring = new ShardRing(addresses.keySet());
+		shards = clients;
+	}
+
+	/**
+	 * Finds out if a call failed because it went to the wrong shard
+	 * @param e the exception the call failed with
+	 * @return true if the server belongs to another shard than the request
+	 */
+	private static boolean wrongShard(RemoteException e) {
+		return e instanceof WrongShardException || (e instanceof ServerException && e.detail instanceof WrongShardException);
+	}
+
+	/**
+	 * Makes a call that can safely be repeated, moving to the new leader if the call fails
+	 * @param call the call to make
+	 * @return the result of the call
+	 * @throws RemoteException the last failure if every attempt failed
+	 */
+	private <T> T read(Call<T> call) throws RemoteException {
+		RemoteException failure = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			Id stub = leader();
+			try {
+				return call.call(stub);
+			} catch (RemoteException e) {
+				NotLeaderException notLeader = notLeader(e);
+				if (notLeader != null) {
+					redirect(stub, notLeader.getLeader());
+				} else {
+					forget(stub);
+				}
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Makes a call that changes the database. It is only made again when the server refused it for
+	 * not being the leader or it could not be sent at all, otherwise it may already have been applied.
+	 * @param call the call to make
+	 * @return the result of the call
+	 * @throws UnconfirmedWriteException if the leader applied the write but not enough backups confirmed it
+	 * @throws RemoteException
+	 */
+	private <T> T write(Call<T> call) throws RemoteException {
+		RemoteException failure = null;
+		for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+			Id stub = leader();
+			try {
+				T result = call.call(stub);
+				versionPending = true;
+				return result;
+			} catch (ConnectException e) {
+				forget(stub);
+				failure = e;
+			} catch (RemoteException e) {
+				UnconfirmedWriteException unconfirmed = unconfirmed(e);
+				if (unconfirmed != null) {
+					// applied by the leader, which is still the one to ask
+					versionPending = true;
+					throw unconfirmed;
+				}
+				NotLeaderException notLeader = notLeader(e);
+				if (notLeader == null) {
+					forget(stub);
+					throw e;
+				}
+				redirect(stub, notLeader.getLeader());
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Makes a read on the next server in turn, falling back to the leader if that server is too far
+	 * behind or does not answer
+	 * @param call the read to make on any server
+	 * @param fallback the read to make on the leader
+	 * @return the result of the read
+	 * @throws RemoteException
+	 */
+	private <T> T replicaRead(Call<T> call, Call<T> fallback) throws RemoteException {
+		String address = servers[Math.floorMod(nextReplica.getAndIncrement(), servers.length)];
+		Long downUntil = replicaDownUntil.get(address);
+		if (downUntil == null || downUntil < System.currentTimeMillis()) {
+			Id stub = replicas.get(address);
+			try {
+				if (stub == null) {
+					stub = lookupServer(address);
+					replicas.put(address, stub);
+				}
+				return call.call(stub);
+			} catch (RemoteException e) {
+				if (!(e instanceof ServerException && e.detail instanceof StaleReplicaException)) {
+					// the server did not answer, leave it alone for a while
+					if (stub != null) {
+						replicas.remove(address, stub);
+					}
+					replicaDownUntil.put(address, System.currentTimeMillis() + REPLICA_RETRY_MILLIS);
+				}
+			}
+		}
+		return read(fallback);
+	}
+
+	/**
+	 * Gets the version a server must have reached to show every change made through this client.
+	 * It is only asked of the leader for the first read after a change.
+	 * @return the version
+	 * @throws RemoteException
+	 */
+	private long version() throws RemoteException {
+		if (versionPending) {
+			versionPending = false;
+			long seq = read(stub -> stub.getVersion());
+			synchronized (this) {
+				minSeq = Math.max(minSeq, seq);
+			}
+		}
+		return minSeq;
+	}
+
+	/**
+	 * Finds out if a write was applied by the leader but not confirmed by enough backups
+	 * @param e the exception the call failed with
+	 * @return the UnconfirmedWriteException thrown by the server, or null if the call failed otherwise
+	 */
+	private static UnconfirmedWriteException unconfirmed(RemoteException e) {
+		if (e instanceof UnconfirmedWriteException) {
+			return (UnconfirmedWriteException) e;
+		}
+		if (e instanceof ServerException && e.detail instanceof UnconfirmedWriteException) {
+			return (UnconfirmedWriteException) e.detail;
+		}
+		return null;
+	}
+
+	/**
+	 * Finds out if a call failed because the server was not the leader. RMI hands exceptions
+	 * thrown by the server back wrapped in a ServerException.
+	 * @param e the exception the call failed with
+	 * @return the NotLeaderException thrown by the server, or null if the call failed otherwise
+	 */
+	private static NotLeaderException notLeader(RemoteException e) {
+		if (e instanceof NotLeaderException) {
+			return (NotLeaderException) e;
+		}
+		if (e instanceof ServerException && e.detail instanceof NotLeaderException) {
+			return (NotLeaderException) e.detail;
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the stub of the lead server, looking for the leader if it is not known
+	 * @return the stub of the leader
+	 * @throws RemoteException if no leader could be found
+	 */
+	private Id leader() throws RemoteException {
+		Id stub = leader;
+		if (stub != null) {
+			return stub;
+		}
+		synchronized (this) {
+			if (leader == null) {
+				Optional<ServerInfo> found = findLeader(servers, registryPort);
+				if (!found.isPresent()) {
+					throw new RemoteException("No leader was found among the servers");
+				}
+				leader = lookupServer(found.get().getAddress());
+				leaderInfo = found.get();
+			}
+			return leader;
+		}
+	}
+
+	/**
+	 * Moves to the leader named by a server that refused a call
+	 * @param stub the server that refused the call
+	 * @param newLeader the leader it named, may be null while it does not know one
+	 */
+	private synchronized void redirect(Id stub, ServerInfo newLeader) {
+		if (leader != stub) {
+			// another call already moved on
+			return;
+		}
+		leader = null;
+		if (newLeader != null) {
+			try {
+				leader = lookupServer(newLeader.getAddress());
+				leaderInfo = newLeader;
+			} catch (RemoteException e) {
+				// look for the leader again on the next call
+			}
+		}
+	}
+
+	/**
+	 * Drops a leader stub that failed so the next call looks for the leader again
+	 * @param stub the stub that failed
+	 */
+	private synchronized void forget(Id stub) {
+		if (leader == stub) {
+			leader = null;
+		}
+	}
+
+	/**
+	 * Gets the stub of the server at an address
+	 * @param address the address of the server
+	 * @return the stub
+	 * @throws RemoteException if the server is not running
+	 */
+	private Id lookupServer(String address) throws RemoteException {
+		try {
+			return (Id) LocateRegistry.getRegistry(address, registryPort).lookup("server");
+		} catch (NotBoundException e) {
+			throw new RemoteException("Server " + address + " is not bound", e);
+		}
+	}
+
+	/**
+	 * Hashes a password the way every client sends it
+	 * @param password the password
+	 * @return the hashed password
+	 */
+	static String hash(String password) {
+		try {
+			return trySHA(password);
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-512
+			throw new IllegalStateException(e);
+		}
+	}
 
 	/**
 	 * Try encoding with SHA 512
@@ -46,16 +1039,16 @@ public class IdClient {
 	 * @return
 	 */
     private static boolean serverAlive(String address, int port){
-        System.out.println("[serverAlive]\t\t Received alive request at " + LocalDateTime.now());
+        if (verbose) System.out.println("[serverAlive]\t\t Received alive request at " + LocalDateTime.now());
         try{
             Socket socket = new Socket();
             socket.setSoTimeout(500);
             socket.connect(new InetSocketAddress(address, port), 500);
             socket.close();
-            System.out.println("[serverAlive]\t\t Verified server is alive at " + LocalDateTime.now());
+            if (verbose) System.out.println("[serverAlive]\t\t Verified server is alive at " + LocalDateTime.now());
             return true;
         }catch(Exception e){}
-        System.out.println("[serverAlive]\t\t Server deemed dead at " + LocalDateTime.now());
+        if (verbose) System.out.println("[serverAlive]\t\t Server deemed dead at " + LocalDateTime.now());
         return false;
     }
 
@@ -102,6 +1095,20 @@ public class IdClient {
 		getOption.setArgName("users|uuids|all");
 		options.addOption(getOption);
 
+		Option listOption = new Option("L", "list", true, "lists every user a page at a time, or only the login names starting with the given prefix");
+		listOption.setOptionalArg(true);
+		listOption.setArgName("prefix");
+		options.addOption(listOption);
+
+		Option stalenessOption = new Option("t", "max-staleness", true, "lets any server answer a lookup or get if it caught up with the leader within the given milliseconds");
+		stalenessOption.setArgName("ms");
+		options.addOption(stalenessOption);
+
+		Option batchOption = new Option("b", "batch", true, "runs one command per line read from the given file, or from standard input");
+		batchOption.setOptionalArg(true);
+		batchOption.setArgName("file");
+		options.addOption(batchOption);
+
 		// one option with optional value
 		Option serverIPOption = new Option("s", "servers", true, "a list of the ip addresses for servers");
 		serverIPOption.isRequired();
@@ -121,20 +1128,227 @@ public class IdClient {
 		for (String string : serverIPs) {
 			try {
                 if(!serverAlive(string, registryPort)){
-                    System.out.println("Server " + string + " did not respond to a ping, skipping.");
+                    if (verbose) System.out.println("Server " + string + " did not respond to a ping, skipping.");
                     continue;
                 }
 
                 var result =  Optional.of(((Id)LocateRegistry.getRegistry(string, registryPort).lookup("server")).currentLeader());
-                System.out.println("IP " + string + " is alive.");
+                if (verbose) System.out.println("IP " + string + " is alive.");
                 return result;
 			} catch(Exception e){
-                System.out.println("IP " + string + " failed, trying next one.");
+                if (verbose) System.out.println("IP " + string + " failed, trying next one.");
             }
 		}
         return Optional.empty();
 	}
 
+	/**
+	 * Runs the command given by the parsed options against the lead server
+	 * @param line the parsed options of the command
+	 * @param client the client connected to the servers
+	 * @return true if the command succeeded
+	 * @throws RemoteException
+	 */
+	private static boolean execute(CommandLine line, IdClient client) throws RemoteException {
+		// check if the user wants to lookup someone with login name
+		// reads may go to any server that caught up with the leader within the given time
+		long maxStaleness = -1;
+		if (line.hasOption('t')) {
+			maxStaleness = Long.parseLong(line.getOptionValue('t'));
+		}
+
+		if (line.hasOption('l')) {
+			String lookup_name = line.getOptionValue('l');
+			System.out.println(maxStaleness < 0 ? client.lookupRecord(lookup_name) : client.lookup(lookup_name, maxStaleness));
+			return true;
+		}
+
+		// check if the user wants to lookup someone with uuid
+		if (line.hasOption('r')) {
+			UUID uuid = UUID.fromString(line.getOptionValue('r'));
+			System.out.println(maxStaleness < 0 ? client.reverseLookupRecord(uuid) : client.reverseLookup(uuid, maxStaleness));
+			return true;
+		}
+
+		if (line.hasOption('L')) {
+			String prefix = line.getOptionValue('L');
+			String cursor = null;
+			do {
+				UserPage page = maxStaleness < 0 ? client.list(cursor, prefix, LIST_PAGE_SIZE)
+						: client.list(cursor, prefix, LIST_PAGE_SIZE, maxStaleness);
+				for (UserPage.Entry entry : page.getEntries()) {
+					System.out.println(entry);
+				}
+				cursor = page.getNextCursor();
+			} while (cursor != null);
+			return true;
+		}
+
+		if (line.hasOption('g')) {
+			String op = line.getOptionValue('g');
+			if (op.equals("all") | op.equals("uuids") | op.equals("users")) {
+				System.out.println(maxStaleness < 0 ? client.get(op) : client.get(op, maxStaleness));
+			}
+			return true;
+		}
+
+		// check if user wants to set a password
+		if (line.hasOption('p')) {
+			String password = line.getOptionValue('p');
+
+			// check if the user wants to create a user
+			if (line.hasOption("c")) {
+				String[] values = line.getOptionValues("c");
+
+				if (values[0].isBlank()) {
+					System.out.println("Did not specify a login name");
+					return false;
+				}
+
+				UUID response;
+				if (values.length < 2) {
+					response = client.create(line.getOptionValue('c'), System.getProperty("user.name"),
+							password);
+				} else {
+					response = client.create(line.getOptionValue('c'), values[1], password);
+				}
+
+				if (response != null) {
+					System.out.println("Create user who's uuid is: " + response);
+				} else {
+					System.out.println("User already exists!");
+				}
+				return true;
+			}
+
+			if (line.hasOption('d')) {
+				String[] op = line.getOptionValues('d');
+				if (client.delete(op[0], password)) {
+					System.out.println("Deleted user: " + op[0]);
+				} else {
+					System.out.println("Wrong username or password to delete user");
+				}
+				return true;
+			}
+
+			// user wants to get lists of information
+			if (line.hasOption('m')) {
+				String[] op = line.getOptionValues('m');
+
+				if (op[0].isBlank()) {
+					System.out.println("Did not specify a proper old login name");
+					return false;
+				}
+
+				if (op[1].isBlank()) {
+					System.out.println("Did not specify a proper new login name");
+					return false;
+				}
+
+				if (client.modify(op[0], op[1], password)) {
+					System.out.println("Modified user: " + op[0]);
+				} else {
+					System.out.println("Incorrect credentials");
+				}
+				return true;
+			}
+			return true;
+		} else {
+			System.out.println("Password required to do privledged operations!");
+			return false;
+		}
+	}
+
+	/**
+	 * Splits a batch line into arguments on whitespace, keeping text in double quotes together
+	 * @param line the line to split
+	 * @return the arguments
+	 */
+	private static String[] splitArguments(String line) {
+		ArrayList<String> args = new ArrayList<String>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false;
+		boolean inArgument = false;
+		for (char c : line.toCharArray()) {
+			if (c == '"') {
+				quoted = !quoted;
+				inArgument = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (inArgument) {
+					args.add(current.toString());
+					current.setLength(0);
+					inArgument = false;
+				}
+			} else {
+				current.append(c);
+				inArgument = true;
+			}
+		}
+		if (inArgument) {
+			args.add(current.toString());
+		}
+		return args.toArray(new String[0]);
+	}
+
+	/**
+	 * Reads commands one per line and runs them all through the same client, printing how long
+	 * each one took. A command is written with the same options as on the command line, without
+	 * the server list and port, e.g. "-c alice -p secret" or "-l alice".
+	 * @param in where to read the commands from
+	 * @param options the options of a command
+	 * @param client the client connected to the servers
+	 * @return true if every command succeeded
+	 * @throws IOException
+	 */
+	private static boolean runBatch(BufferedReader in, Options options, IdClient client) throws IOException {
+		CommandLineParser parser = new DefaultParser();
+		int commands = 0;
+		int failures = 0;
+		long totalNanos = 0;
+
+		try {
+			// look for the leader before timing the first command
+			client.getLeader();
+		} catch (RemoteException e) {
+			System.out.println("no leader was found by client");
+			return false;
+		}
+
+		String text;
+		while ((text = in.readLine()) != null) {
+			text = text.trim();
+			if (text.isEmpty() || text.startsWith("#")) {
+				continue;
+			}
+			if (text.equals("quit") || text.equals("exit")) {
+				break;
+			}
+
+			long start = System.nanoTime();
+			boolean ok = false;
+			try {
+				CommandLine line = parser.parse(options, splitArguments(text));
+				ok = execute(line, client);
+			} catch (Exception e) {
+				System.out.println("Failed: " + e.getMessage());
+			}
+			long elapsed = System.nanoTime() - start;
+
+			commands++;
+			totalNanos += elapsed;
+			if (!ok) {
+				failures++;
+			}
+			System.out.printf("(%.3f ms)%n", elapsed / 1e6);
+		}
+
+		if (commands > 0) {
+			System.out.printf("%d commands, %d failed, %.3f ms total, %.3f ms average%n", commands, failures,
+					totalNanos / 1e6, totalNanos / 1e6 / commands);
+		}
+		return failures == 0;
+	}
+
 	/**
 	 * Main entry point for the IdClient
 	 * 
@@ -142,6 +1356,7 @@ public class IdClient {
 	 */
 	public static void main(String[] args) {
 		Options options = setupOptions();
+		verbose = true;
 
 		if (args.length < 1) {
 			HelpFormatter formatter = new HelpFormatter();
@@ -166,109 +1381,30 @@ public class IdClient {
 				System.out.println(options);
 			}
 
-			var host = findLeader(servers, registryPort);
-
-			if (!host.isPresent()){
-				System.out.println("no leader was found by client");
-				System.exit(1);
-			}
-
-            System.out.println("Leader is " + host.get().getAddress());
-			
-			Registry registry = LocateRegistry.getRegistry(host.get().getAddress(), registryPort);
-			Id stub = (Id) registry.lookup("server");
-
-			// check if the user wants to lookup someone with login name
-			if (line.hasOption('l')) {
-				String lookup_name = line.getOptionValue('l');
-				System.out.println(stub.lookup(lookup_name));
-				System.exit(0);
-			}
-
-			// check if the user wants to lookup someone with uuid
-			if (line.hasOption('r')) {
-				UUID uuid = UUID.fromString(line.getOptionValue('r'));
-				System.out.println(stub.reverseLookup(uuid));
-				System.exit(0);
-			}
+			IdClient client = new IdClient(servers, registryPort);
 
-			if (line.hasOption('g')) {
-				String op = line.getOptionValue('g');
-				if (op.equals("all") | op.equals("uuids") | op.equals("users")) {
-					System.out.println(stub.get(op));
-				}
-				System.exit(0);
+			if (line.hasOption('b')) {
+				String file = line.getOptionValue('b');
+				BufferedReader in = file == null || file.equals("-")
+						? new BufferedReader(new InputStreamReader(System.in))
+						: new BufferedReader(new FileReader(file));
+				boolean ok = runBatch(in, options, client);
+				in.close();
+				System.exit(ok ? 0 : 1);
 			}
 
-			String password = "";
-
-			// check if user wants to set a password
-			if (line.hasOption('p')) {
-				password = line.getOptionValue('p');
-				
-				password = trySHA(password);
-				
-				// check if the user wants to create a user
-				if (line.hasOption("c")) {
-					String[] values = line.getOptionValues("c");
-
-					if (values[0].isBlank()) {
-						System.out.println("Did not specify a login name");
-						System.exit(1);
-					}
-
-					UUID response;
-					if (values.length < 2) {
-						response = stub.create(line.getOptionValue('c'), System.getProperty("user.name"),
-								password);
-					} else {
-						response = stub.create(line.getOptionValue('c'), values[1], password);
-					}
-
-					if (response != null) {
-						System.out.println("Create user who's uuid is: " + response);
-					} else {
-						System.out.println("User already exists!");
-					}
-					System.exit(0);
-				}
-
-				if (line.hasOption('d')) {
-					String[] op = line.getOptionValues('d');
-					if (stub.delete(op[0], password)) {
-						System.out.println("Deleted user: " + op[0]);
-					} else {
-						System.out.println("Wrong username or password to delete user");
-					}
-					System.exit(0);
-				}
-
-				// user wants to get lists of information
-				if (line.hasOption('m')) {
-					String[] op = line.getOptionValues('m');
-
-					if (op[0].isBlank()) {
-						System.out.println("Did not specify a proper old login name");
-						System.exit(1);
-					}
-
-					if (op[1].isBlank()) {
-						System.out.println("Did not specify a proper new login name");
-						System.exit(1);
-					}
-
-					if (stub.modify(op[0], op[1], password)) {
-						System.out.println("Modified user: " + op[0]);
-					} else {
-						System.out.println("Incorrect credentials");
-					}
-					System.exit(0);
-				}
-			} else {
-				System.out.println("Password required to do privledged operations!");
+			ServerInfo host;
+			try {
+				host = client.getLeader();
+			} catch (RemoteException e) {
+				System.out.println("no leader was found by client");
 				System.exit(1);
+				return;
 			}
 
+            System.out.println("Leader is " + host.getAddress());
+
+			System.exit(execute(line, client) ? 0 : 1);
 		} catch (Exception e) {
 			System.err.println("Client exception: " + e.toString());
 			e.printStackTrace();
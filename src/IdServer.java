@@ -1,28 +1,38 @@
-import java.time.LocalDateTime;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Timer;
+import java.util.HashMap;
 import java.util.TimerTask;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.lang.annotation.Inherited;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
-import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -37,50 +47,281 @@ import org.apache.commons.cli.Options;
 public class IdServer extends UnicastRemoteObject implements Id {
 	private static final long serialVersionUID = -5629717487800742372L;
 	private static int registryPort = 1099;
-	private static Map<String, User> lookupUsers = new HashMap<String, User>();
-	private static Map<UUID, User> reverseLookupUsers = new HashMap<UUID, User>();
-	private static boolean verbose = false;
+	private static final UserStore users = new UserStore();
+	private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+	private static final String SNAPSHOT_FILE = "users.snapshot";
+	private static Checkpointer checkpointer = null;
+	private static WriteAheadLog log = null;
+	private static final int REPLICATION_LOG_SIZE = 65536;
+	private static final int REPLICATION_BATCH_SIZE = 8192;
+	private static final int MAX_BATCH_SIZE = 8192;
+	private static final int MAX_PAGE_SIZE = 8192;
+	// keeps a full batch of users within a single frame of the write-ahead log
+	private static final int MAX_FIELD_LENGTH = 512;
+	// when a backup last saw every change the leader had, 0 until it first catches up
+	private static volatile long lastSyncMillis = 0;
+	// the shard of the database this server holds and every shard known so far
+	private static int shard = 0;
+	private static volatile ShardRing ring = new ShardRing(Collections.singleton(0));
+	private static final long REBALANCE_RETRY_MS = 500;
+	// writes wait until this many backups have them, 0 to acknowledge them once they are on our disk
+	private static int quorum = 0;
+	private static QuorumReplicator replicator = null;
+	private static final long QUORUM_TIMEOUT_MS = 2000;
+	// backups apply changes pulled from and pushed by the leader one batch at a time
+	private static final Object replicationLock = new Object();
+	private static final int REBALANCE_ATTEMPTS = 60;
+	private static ReplicationLog replicationLog = null;
+	// the leader our database was last copied from, a new leader always gets a full copy first
+	private static ServerInfo replicatedFrom = null;
+	// the port of the binary protocol, 0 to only serve RMI
+	private static int binaryPort = 0;
+	// the port of the HTTP metrics endpoint, 0 to only serve them through getMetrics
+	private static int metricsPort = 0;
+	// the last sequence number of the leader a backup heard of, how far behind it is follows from it
+	private static volatile long leaderSeq = 0;
+	private static final LongAdder lookupHits = Metrics.counter("idserver_lookup_hits_total");
+	private static final LongAdder lookupMisses = Metrics.counter("idserver_lookup_misses_total");
+	private static final Metrics.Histogram commitTime = Metrics.histogram("idserver_wal_commit_seconds");
+	private static final Metrics.Histogram quorumTime = Metrics.histogram("idserver_quorum_wait_seconds");
+	private static final Metrics.Histogram pullTime = Metrics.histogram("idserver_replication_pull_seconds");
+	private static final Metrics.Histogram electionTime = Metrics.histogram("idserver_election_seconds");
+	// RMI only holds exported objects weakly, the timing proxy would be collected and unexported without this
+	private static Id exported = null;
 
     private static ArrayList<ServerInfo> serverList = new ArrayList<ServerInfo>();
     private static ServerInfo thisServer = null;
-    private static ServerInfo leadServer = null;
+    private static volatile ServerInfo leadServer = null;
+    private static FailureDetector detector = null;
+    private static PeerStubs stubs = null;
+
+    //Completes with the new leader once the election we are taking part in is over, null before the first election.
+    //Guarded by electionLock rather than the class monitor, which runElection holds while it waits on other servers.
+    private static CompletableFuture<ServerInfo> election = null;
+    private static long electionStarted = 0;
+    private static final Object electionLock = new Object();
+    private static final long ELECTION_TIMEOUT_MS = 5000;
+    private static final long FANOUT_DEADLINE_MS = 2000;
 
-    //If we are in an election, this should be true. Set it to false once a new leader has been selected.
-    private static volatile boolean leaderIndeterm = false;
+    //Runs the blocking calls to other servers that are made in parallel, one thread per call
+    private static final ExecutorService peerCalls = Threads.newExecutor("peer-call");
+    //Starts the periodic checkpoints and replication pulls, which run on threads of their own
+    private static final ScheduledExecutorService scheduler = Threads.newScheduler("scheduler");
+
+    private static final AtomicLong electionsHeld = new AtomicLong();
+    private static final AtomicInteger electionWaiters = new AtomicInteger();
+    private static volatile long lastElectionMillis = 0;
 
 
     private static synchronized boolean isLeader(){
         return leadServer.compareTo(thisServer) == 0;
     }
 
+    /**
+     * Refuses changes sent to a backup, they would be lost the next time it copies from the leader
+     * @throws NotLeaderException if another server is the leader
+     */
+    private static void checkLeader() throws NotLeaderException {
+        ServerInfo leader = leadServer;
+        if (leader == null || thisServer == null || leader.compareTo(thisServer) != 0) {
+            throw new NotLeaderException(leader);
+        }
+    }
+
+    /**
+     * Refuses reads a backup is too far behind the leader to answer, the leader answers every read
+     * @param minSeq the version the caller has already seen
+     * @param maxStalenessMillis how long ago the backup may have last caught up with the leader
+     * @throws StaleReplicaException if this backup is too far behind
+     */
+    private static void checkFresh(long minSeq, long maxStalenessMillis) throws StaleReplicaException {
+        ServerInfo leader = leadServer;
+        if (leader != null && thisServer != null && leader.compareTo(thisServer) == 0) {
+            return;
+        }
+        long staleness = System.currentTimeMillis() - lastSyncMillis;
+        if (users.getSeq() < minSeq || staleness > maxStalenessMillis) {
+            throw new StaleReplicaException(users.getSeq(), staleness);
+        }
+    }
+
 //=====Begin Election Methods=====
 
+    /**
+     * Marks the start of an election unless one is already running
+     * @return true if this call started the election
+     */
+    private static boolean beginElection(){
+        synchronized(electionLock){
+            if(election != null && !election.isDone()) return false;
+            election = new CompletableFuture<ServerInfo>();
+            electionStarted = System.nanoTime();
+            return true;
+        }
+    }
+
+    /**
+     * Records the new leader and wakes everyone waiting for the election to finish
+     * @param newLeader the server that won the election
+     */
+    private static void endElection(ServerInfo newLeader){
+        synchronized(electionLock){
+            leadServer = newLeader;
+            if(election == null || election.isDone()) return;   //Leader announced without us taking part
+
+            lastElectionMillis = (System.nanoTime() - electionStarted) / 1000000;
+            electionsHeld.incrementAndGet();
+            electionTime.recordSince(electionStarted);
+            Log.info(Log.Subsystem.ELECTION, "Election #{} took {} ms, {} callers waiting", electionsHeld.get(), lastElectionMillis, electionWaiters.get());
+            election.complete(newLeader);
+        }
+    }
+
+    /**
+     * Parks the caller until the running election is over, for at most ELECTION_TIMEOUT_MS
+     * @return the new leader, or the last known leader if there is no election or it timed out
+     */
+    private static ServerInfo awaitLeader(){
+        CompletableFuture<ServerInfo> pending;
+        synchronized(electionLock){
+            pending = election;
+        }
+        if(pending == null) return leadServer;
+
+        electionWaiters.incrementAndGet();
+        try{
+            return pending.get(ELECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }catch(TimeoutException e){
+            Log.warn(Log.Subsystem.ELECTION, "Election did not finish within {} ms", ELECTION_TIMEOUT_MS);
+            //Give up on it so the next caller can start a new election
+            pending.completeExceptionally(e);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException e){}
+        finally{
+            electionWaiters.decrementAndGet();
+        }
+        return leadServer;
+    }
+
+    /**
+     * A message sent to one server as part of a fan out
+     */
+    private interface PeerMessage{
+        /**
+         * Sends the message
+         * @param server the server to send it to
+         * @return true if the server accepted it
+         */
+        boolean send(ServerInfo server);
+    }
+
+    /**
+     * Sends a message to several servers at once and waits for the answers until FANOUT_DEADLINE_MS
+     * passed, so the wait is bounded by the slowest live server instead of the sum of all timeouts
+     * @param servers the servers to send the message to
+     * @param message the message
+     * @param anyIsEnough true to stop waiting as soon as one server accepted the message
+     * @return true if any server accepted the message before the deadline
+     */
+    private static boolean fanOut(List<ServerInfo> servers, PeerMessage message, boolean anyIsEnough){
+        CompletionService<Boolean> answers = new ExecutorCompletionService<Boolean>(peerCalls);
+        List<Future<Boolean>> sent = new ArrayList<Future<Boolean>>();
+        for(var server : servers){
+            sent.add(answers.submit(() -> message.send(server)));
+        }
+
+        long deadline = System.nanoTime() + FANOUT_DEADLINE_MS * 1000000;
+        boolean accepted = false;
+        try{
+            for(int i = 0; i < servers.size(); i++){
+                Future<Boolean> answer = answers.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if(answer == null) break;   //Deadline passed
+                if(answer.get()){
+                    accepted = true;
+                    if(anyIsEnough) break;
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException e){}
+
+        //Nobody waits for the stragglers anymore
+        for(var answer : sent){
+            answer.cancel(true);
+        }
+        return accepted;
+    }
+
 	/**
 	 * Sends a victory message to all other servers
 	 */
     private static void sendVictoryMessage(){
-        System.out.println("[sendVictoryMessage]\t Sending victory message to all servers.");
-        leadServer = thisServer;
-        for(var server : serverList){
-            if(thisServer.compareTo(server) == 0) continue;
-            if(!serverAlive(server)) continue;
+        catchUpFromBackups();
+        Log.info(Log.Subsystem.ELECTION, "Sending victory message to all servers.");
+        endElection(thisServer);
+        List<ServerInfo> others = new ArrayList<ServerInfo>();
+        for(var server : shardMembers()){
+            if(thisServer.compareTo(server) != 0 && serverAlive(server)) others.add(server);
+        }
 
+        fanOut(others, server -> {
             try{
-                ((Id)LocateRegistry.getRegistry(server.getAddress(), registryPort).lookup("server")).electionWon(thisServer);
+                stubs.call(server, stub -> { stub.electionWon(thisServer); return null; });
+                return true;
             }catch(Exception e){}
-        }
+            return false;
+        }, false);
 	}
 	
 	/**
-	 * Sends an election message to all other servers
+	 * Pulls the changes we are missing from the most up to date backup of our shard, before we take
+	 * writes as the new leader. The highest pid wins the election, but with a quorum smaller than the
+	 * number of backups a write may have been acknowledged by other backups and not by us.
+	 */
+    private static void catchUpFromBackups(){
+        Map<ServerInfo, Long> versions = Collections.synchronizedMap(new HashMap<ServerInfo, Long>());
+        List<ServerInfo> others = new ArrayList<ServerInfo>();
+        for(var server : shardMembers()){
+            if(thisServer.compareTo(server) != 0 && serverAlive(server)) others.add(server);
+        }
+        fanOut(others, server -> {
+            try{
+                versions.put(server, stubs.call(server, stub -> stub.getVersion()));
+                return true;
+            }catch(Exception e){}
+            return false;
+        }, false);
+
+        ServerInfo freshest = null;
+        long freshestSeq = users.getSeq();
+        synchronized(versions){
+            for(var entry : versions.entrySet()){
+                if(entry.getValue() > freshestSeq){
+                    freshest = entry.getKey();
+                    freshestSeq = entry.getValue();
+                }
+            }
+        }
+        if(freshest == null) return;
+
+        Log.info(Log.Subsystem.ELECTION, "Catching up from #{} to #{} on {} before leading", users.getSeq(), freshestSeq, freshest.getAddress());
+        try{
+            replicate(freshest, true);
+        }catch(RemoteException | NotBoundException e){
+            Log.error(Log.Subsystem.ELECTION, "Could not catch up from " + freshest.getAddress(), e);
+        }
+    }
+
+	/**
+	 * Sends an election message to a server with a higher pid
 	 * @param server to send the election message to
-	 * @return true if we sent message else false
+	 * @return true if the server will take over the election else false
 	 */
     private static boolean sendElectionMessage(ServerInfo server){
-        System.out.println("[sendElectionMessage]\t Sending election message to all higher servers.");
+        Log.debug(Log.Subsystem.ELECTION, "Sending election message to {}", server.getAddress());
         try{
-            ((Id)LocateRegistry.getRegistry(server.getAddress(), registryPort).lookup("server")).electionRequest(thisServer);
-            return true;
+            return stubs.call(server, stub -> stub.electionRequest(thisServer));
         }catch(Exception e){}
 
         return false;
@@ -90,44 +331,51 @@ public class IdServer extends UnicastRemoteObject implements Id {
 	 * Runs an election between all servers
 	 */
     private synchronized static void runElection(){
-        System.out.println("[runElection]\t\t Election started at " + LocalDateTime.now());
+        Log.info(Log.Subsystem.ELECTION, "Election started");
+        beginElection();
         if(serverList.remove(leadServer)){
-            System.out.println("Leader removed");
+            Log.info(Log.Subsystem.ELECTION, "Leader removed");
+            detector.forget(leadServer);
+            stubs.invalidate(leadServer);
         }
-        leaderIndeterm = true;
-        //Check if we are the highest PID
-        ServerInfo highestPID = Collections.max(serverList);
+        //Check if we are the highest PID of our shard, the other shards have their own leaders
+        ServerInfo highestPID = Collections.max(shardMembers());
         if(thisServer.compareTo(highestPID) == 0){
             sendVictoryMessage();
-            leaderIndeterm = false;
             return;
         }
 
-        boolean leaderAlive = false;
-        for(var server : serverList){
-            if(thisServer.compareTo(server) < 0 && serverAlive(server)){   //Remote servere has greater pid
-                if(sendElectionMessage(server)){
-                    leaderAlive = true;
-                }
+        List<ServerInfo> higher = new ArrayList<ServerInfo>();
+        for(var server : new ArrayList<ServerInfo>(serverList)){
+            if(server.getShard() == shard && thisServer.compareTo(server) < 0 && serverAlive(server)){   //Remote servere has greater pid
+                higher.add(server);
             }
         }
+        //One higher server taking over is enough, it will send the victory message
+        boolean leaderAlive = fanOut(higher, IdServer::sendElectionMessage, true);
 
         //No response, make self leader
         if(!leaderAlive){
             sendVictoryMessage();
-            leaderIndeterm = false;
         }
     }
 
 //===Begin Remote Election Methods===
 
 	@Override
-    public synchronized boolean electionRequest(ServerInfo sender){
-        System.out.println("[electionRequest]\t\t Received election request from ip: " + sender.getAddress());
+    public boolean electionRequest(ServerInfo sender){
+        Log.debug(Log.Subsystem.ELECTION, "Received election request from ip: {}", sender.getAddress());
+        if(sender.getShard() != shard){
+            Log.debug(Log.Subsystem.ELECTION, "Sender holds shard {}, ignoring. IP: {}", sender.getShard(), sender.getAddress());
+            return false;
+        }
         if(thisServer.compareTo(sender) > 0){   //Sender has a lower PID (expected)
-            runElection();
+            //Answer right away and run our own election in the background, the sender waits for our victory message
+            if(beginElection()){
+                peerCalls.execute(IdServer::runElection);
+            }
         }else{
-            System.out.println("[electionRequest]\t\t Sender has a lower pid, ignoring. IP: " + sender.getAddress());
+            Log.debug(Log.Subsystem.ELECTION, "Sender has a lower pid, ignoring. IP: {}", sender.getAddress());
             return false;
         }
 
@@ -135,11 +383,10 @@ public class IdServer extends UnicastRemoteObject implements Id {
     }
 
 	@Override
-    public synchronized void electionWon(ServerInfo newLeader){
-        System.out.println("[electionWon]\t\t Election won at " + LocalDateTime.now());
-        System.out.println("[electionWon]\t\t Election won by server with address " + newLeader.getAddress());
-        leadServer = newLeader;
-        leaderIndeterm = false;
+    public void electionWon(ServerInfo newLeader){
+        Log.info(Log.Subsystem.ELECTION, "Election won by server with address {}", newLeader.getAddress());
+        if(newLeader.getShard() != shard) return;
+        endElection(newLeader);
     }
 
 //===End Remote Election Methods===
@@ -162,41 +409,30 @@ public class IdServer extends UnicastRemoteObject implements Id {
     }
 
     /**
-	 * Checks if a particular server is alive
-	 * @param server to check if it is able to accept sockets
+	 * Checks if a particular server is alive, answered from the heartbeats of the failure detector
+	 * @param server to check if it is alive
 	 * @return true if server is alive else false
 	 */
     private static boolean serverAlive(ServerInfo server){
-        System.out.println("[serverAlive]\t\t Received alive request at " + LocalDateTime.now());
-        try{
-            Socket socket = new Socket();
-            socket.setSoTimeout(500);
-            socket.connect(new InetSocketAddress(server.getAddress(), registryPort), 500);
-            socket.close();
-            System.out.println("[serverAlive]\t\t Verified server is alive at " + LocalDateTime.now());
-            return true;
-        }catch(Exception e){}
-        System.out.println("[serverAlive]\t\t Server deemed dead at " + LocalDateTime.now());
-        return false;
+        return detector.isAlive(server);
     }
 
 	@Override
     public ServerInfo currentLeader(){
-        System.err.println("[currentLeader]\t\t Received request for lead server");
+        Log.debug(Log.Subsystem.RPC, "Received request for lead server");
         if(!serverAlive(leadServer)){
-            System.err.println("[currentLeader]\t\t LeadServer not alive. Running Election.");
-            runElection();
-            //Wait for election to finish.
-            //yes this is slow but we are running low on time
-            while(leaderIndeterm){
-                System.out.print(".");
+            //Only the first caller runs the election, everyone else parks until it is over
+            if(beginElection()){
+                Log.info(Log.Subsystem.ELECTION, "LeadServer not alive. Running Election.");
+                runElection();
             }
-            System.out.println();
+            ServerInfo leader = awaitLeader();
 
-            System.out.println("[currentLeader]\t\t Election finished.");
-            System.out.println("[currentLeader]\t\t New leader ip: " + leadServer.getAddress() + " PID: " + leadServer.getPID());
+            Log.info(Log.Subsystem.ELECTION, "Election finished.");
+            Log.info(Log.Subsystem.ELECTION, "New leader ip: {} PID: {}", leader.getAddress(), leader.getPID());
+            return leader;
         }else{
-            System.err.println("[currentLeader]\t\t Leader is still alive. IP:" + leadServer.getAddress());
+            Log.debug(Log.Subsystem.RPC, "Leader is still alive. IP:{}", leadServer.getAddress());
         }
 
 
@@ -205,35 +441,190 @@ public class IdServer extends UnicastRemoteObject implements Id {
 
     @Override
     public boolean isAlive(){
-        System.out.println("[isAlive]\t\t Liveness check received");
+        //Called by the heartbeat of every other server, so this stays quiet
         return true;
     }
 
     @Override
-    public synchronized ArrayList<ServerInfo> registerServer(String newServerAddress){
+    public synchronized ArrayList<ServerInfo> registerServer(String newServerAddress, int newShard){
         var highestPID = Collections.max(serverList);
-        ServerInfo newServer = new ServerInfo(highestPID.getPID()+1, newServerAddress);
+        ServerInfo newServer = new ServerInfo(highestPID.getPID()+1, newServerAddress, newShard);
         serverList.add(newServer);
+        stubs.invalidate(newServerAddress);
 
-        //Notify
+        //Notify everyone at once, a dead server only holds up the registration until the fan out deadline
+        List<ServerInfo> others = new ArrayList<ServerInfo>();
         for(var server : serverList){
-            if(thisServer.compareTo(server) == 0) continue;
-
+            if(thisServer.compareTo(server) != 0) others.add(server);
+        }
+        fanOut(others, server -> {
             try{
-                ((Id)LocateRegistry.getRegistry(server.getAddress(), registryPort).lookup("server")).addNewServer(newServer);
+                stubs.call(server, stub -> { stub.addNewServer(newServer); return null; });
+                return true;
             }catch(Exception e){}
-        }
+            return false;
+        }, false);
 
-        System.out.println("[registryPort]\t\t Adding new server with ip of " + newServer.getAddress() + " and PID " + newServer.getPID());
+        Log.info(Log.Subsystem.SERVER, "Adding new server with ip of {} and PID {} for shard {}", newServer.getAddress(), newServer.getPID(), newShard);
+        addShard(newShard);
         return serverList;
     }
 
     @Override
     public synchronized void addNewServer(ServerInfo newServer){
-        System.out.println("[addNewServer]\t\t Adding new server with ip of " + newServer.getAddress() + " and PID " + newServer.getPID());
+        Log.info(Log.Subsystem.SERVER, "Adding new server with ip of {} and PID {} for shard {}", newServer.getAddress(), newServer.getPID(), newServer.getShard());
         serverList.add(newServer);
+        stubs.invalidate(newServer.getAddress());
+        addShard(newServer.getShard());
+    }
+
+    @Override
+    public synchronized ArrayList<ServerInfo> getServers(){
+        return new ArrayList<ServerInfo>(serverList);
+    }
+
+//=====Begin Shard Methods=====
+
+    /**
+     * Gets the servers holding the same shard as this one
+     * @return the servers of our shard, ourselves included
+     */
+    private static List<ServerInfo> shardMembers(){
+        return serversOf(shard);
     }
 
+    /**
+     * Gets the servers holding a shard
+     * @param id the shard
+     * @return the servers of the shard
+     */
+    private static List<ServerInfo> serversOf(int id){
+        List<ServerInfo> members = new ArrayList<ServerInfo>();
+        for(var server : new ArrayList<ServerInfo>(serverList)){
+            if(server.getShard() == id) members.add(server);
+        }
+        return members;
+    }
+
+    /**
+     * Gets the shards held by a list of servers
+     * @param servers the servers
+     * @return the shard ids
+     */
+    private static Set<Integer> shardsOf(List<ServerInfo> servers){
+        Set<Integer> shards = new TreeSet<Integer>();
+        for(var server : servers){
+            shards.add(server.getShard());
+        }
+        return shards;
+    }
+
+    /**
+     * Puts a shard on the ring if it is new, the leader then moves the users that now belong to it.
+     * Shards are never taken off the ring, a shard whose servers are all down is still the owner of its users.
+     * @param newShard the shard of a server that joined
+     */
+    private static void addShard(int newShard){
+        if(ring.getShards().contains(newShard)) return;
+        Set<Integer> shards = new TreeSet<Integer>(ring.getShards());
+        shards.add(newShard);
+        ring = new ShardRing(shards);
+        Log.info(Log.Subsystem.SERVER, "Shard {} added, {} shards now", newShard, shards.size());
+        if(isLeader()){
+            peerCalls.execute(IdServer::rebalance);
+        }
+    }
+
+    /**
+     * Refuses requests about login names owned by another shard
+     * @param loginName the login name of the request
+     * @throws WrongShardException if another shard owns the login name
+     */
+    private static void checkShard(String loginName) throws WrongShardException {
+        int owner = ring.shardOf(loginName);
+        if(owner != shard){
+            throw new WrongShardException(owner);
+        }
+    }
+
+    /**
+     * Makes a call on the leader of another shard
+     * @param id the shard
+     * @param call the call to make
+     * @return the result of the call
+     * @throws RemoteException if no server of the shard could be reached
+     */
+    private static <T> T callShardLeader(int id, PeerStubs.RemoteCall<T> call) throws RemoteException {
+        RemoteException failure = new RemoteException("No server of shard " + id + " is reachable");
+        for(var server : serversOf(id)){
+            try{
+                ServerInfo leader = stubs.call(server, stub -> stub.currentLeader());
+                return stubs.call(leader, call);
+            }catch(RemoteException e){
+                failure = e;
+            }catch(NotBoundException e){
+                failure = new RemoteException("Server " + server.getAddress() + " is not bound", e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Moves the users that belong to other shards to the leaders of those shards. A user is only
+     * removed here once the other shard accepted it, so a failed move leaves it where it was and it
+     * is moved by the next rebalance. Users cannot be changed here while they are being copied.
+     */
+    private static void rebalance(){
+        Map<Integer, List<User>> moving = new TreeMap<Integer, List<User>>();
+        ShardRing current = ring;
+        for(User user : users.copyUsers()){
+            int owner = current.shardOf(user.getLoginName());
+            if(owner != shard){
+                moving.computeIfAbsent(owner, id -> new ArrayList<User>()).add(user);
+            }
+        }
+        for(var entry : moving.entrySet()){
+            List<User> all = entry.getValue();
+            int moved = 0;
+            for(int from = 0; from < all.size(); from += MAX_BATCH_SIZE){
+                List<User> chunk = users.beginMove(all.subList(from, Math.min(all.size(), from + MAX_BATCH_SIZE)));
+                try{
+                    List<Boolean> accepted = null;
+                    //The server of a new shard registers before it is bound, give it time to come up
+                    for(int attempt = 0; accepted == null && attempt < REBALANCE_ATTEMPTS; attempt++){
+                        try{
+                            accepted = callShardLeader(entry.getKey(), stub -> stub.importUsers(chunk));
+                        }catch(RemoteException e){
+                            try{
+                                Thread.sleep(REBALANCE_RETRY_MS);
+                            }catch(InterruptedException ie){
+                                return;
+                            }
+                        }
+                    }
+                    if(accepted == null){
+                        Log.warn(Log.Subsystem.REPLICATION, "Shard {} did not take its users, keeping them for now", entry.getKey());
+                        break;
+                    }
+                    List<User> done = new ArrayList<User>();
+                    for(int i = 0; i < chunk.size(); i++){
+                        if(accepted.get(i)) done.add(chunk.get(i));
+                    }
+                    moved += users.removeAll(done);
+                    try{
+                        commitLog();
+                    }catch(RemoteException e){
+                        Log.error(Log.Subsystem.REPLICATION, "Could not log the users moved away", e);
+                    }
+                }finally{
+                    users.endMove(chunk);
+                }
+            }
+            Log.info(Log.Subsystem.REPLICATION, "Moved {} of {} users to shard {}", moved, all.size(), entry.getKey());
+        }
+    }
+
+//=====End Shard Methods=====
 
 	/**
 	 * Represents a server that contains a database of users with replication and redundency built in
@@ -255,11 +646,31 @@ public class IdServer extends UnicastRemoteObject implements Id {
 		// one option with optional value
 		options.addOption("v", "verbose", false, "verbose output enables");
 
+		Option logOption = new Option("L", "log-level", true, "log levels, e.g. info or warn,election=debug (subsystems: server, election, replication, persistence, rpc)");
+		logOption.setArgName("levels");
+		options.addOption(logOption);
+
 		// one option with optional value
 		Option portOption = new Option("n", "numport", true, "changes port to connect RMI server");
 		portOption.setOptionalArg(true);
 		options.addOption(portOption);
 
+		Option quorumOption = new Option("q", "quorum", true, "number of backups that must have a write before it is acknowledged, 0 by default");
+		quorumOption.setArgName("backups");
+		options.addOption(quorumOption);
+
+		Option binaryOption = new Option("b", "binary-port", true, "also serve clients over the binary protocol on this port");
+		binaryOption.setArgName("port");
+		options.addOption(binaryOption);
+
+		Option metricsOption = new Option("m", "metrics-port", true, "serve metrics over HTTP at /metrics on this port");
+		metricsOption.setArgName("port");
+		options.addOption(metricsOption);
+
+		Option shardOption = new Option("s", "shard", true, "the shard of the user database this server holds, 0 by default");
+		shardOption.setArgName("id");
+		options.addOption(shardOption);
+
 		// one option with optional value
 		Option serverIPOption = new Option("i", "serverip", true, "a list of the ip addresses for servers");
 		serverIPOption.isRequired();
@@ -270,158 +681,371 @@ public class IdServer extends UnicastRemoteObject implements Id {
 	}
 
 	@Override
-	public synchronized boolean modify(String oldLoginName, String newLoginName, String password) {
-		if (verbose) {
-			System.out.println("IdServer: client wishes to modify " + oldLoginName + " to " + newLoginName);
+	public boolean modify(String oldLoginName, String newLoginName, String password) throws RemoteException {
+		checkLeader();
+		checkFieldLengths(newLoginName);
+		checkShard(oldLoginName);
+		int owner = ring.shardOf(newLoginName);
+		if (owner != shard) {
+			return moveUser(oldLoginName, newLoginName, password, owner);
 		}
+		Log.debug(Log.Subsystem.RPC, "client wishes to modify {} to {}", oldLoginName, newLoginName);
 
-		User user = lookupUsers.get(oldLoginName);
-
-		if (user != null) {
-			if (user.getPassword().equals(password)) {
-				lookupUsers.put(newLoginName, user);
-				lookupUsers.remove(oldLoginName);
-				user.setTimeLastModified(Instant.now());
-				if (verbose) {
-					System.out.println("IdServer: " + oldLoginName + " is now " + newLoginName);
-				}
-				return true;
-			} else {
-				if (verbose) {
-					System.out.println("IdServer: Incorrect password for " + oldLoginName);
-					System.out.println("oldPass: " + user.getPassword());
-				}
-			}
-		} else {
-			if (verbose) {
-				System.out.println("IdServer: could not find oldLoginName: " + oldLoginName);
-			}
+		if (users.modify(oldLoginName, newLoginName, password)) {
+			commitWrite(Boolean.TRUE);
+			Log.debug(Log.Subsystem.RPC, "{} is now {}", oldLoginName, newLoginName);
+			return true;
 		}
+		Log.debug(Log.Subsystem.RPC, "could not modify {}, unknown user or incorrect password", oldLoginName);
 		return false;
 	}
 
 	@Override
-	public synchronized boolean delete(String loginName, String password) {
-		if (lookupUsers.containsKey(loginName)) {
-			User user = lookupUsers.get(loginName);
-			if (user.getPassword().equals(password)) {
-				if (verbose) {
-					System.out.println("IdServer: Deleted user " + loginName);
-				}
-				lookupUsers.remove(loginName);
-				return true;
-			}
+	public boolean delete(String loginName, String password) throws RemoteException {
+		checkLeader();
+		checkShard(loginName);
+		if (users.delete(loginName, password)) {
+			commitWrite(Boolean.TRUE);
+			Log.debug(Log.Subsystem.RPC, "Deleted user {}", loginName);
+			return true;
 		}
 		return false;
 	}
 
 	@Override
-	public synchronized UUID create(String loginName, String realName, String password) {
-		if (lookupUsers.containsKey(loginName)) {
-			if (verbose) {
-				System.out.println("IdServer: user already exists cannot create: " + loginName);
-			}
-			return null;
+	public UUID create(String loginName, String realName, String password) throws RemoteException {
+		checkLeader();
+		checkFieldLengths(loginName, realName, password);
+		checkShard(loginName);
+		UUID uuid = users.create(loginName, realName, password);
+		if (uuid != null) {
+			commitWrite(uuid);
+		}
+		if (uuid == null) {
+			Log.debug(Log.Subsystem.RPC, "user already exists cannot create: {}", loginName);
 		} else {
-			if (verbose) {
-				System.out.println("IdServer: Created user" + loginName);
-			}
-			UUID uuid = UUID.randomUUID();
-			User user = new User(loginName, uuid, realName, password);
-			IdServer.reverseLookupUsers.put(uuid, user);
-			IdServer.lookupUsers.put(loginName, user);
-			return uuid;
+			Log.debug(Log.Subsystem.RPC, "Created user {}", loginName);
 		}
+		return uuid;
 	}
 
 	@Override
-	public synchronized String lookup(String loginName) {
-		User user = lookupUsers.get(loginName);
+	public String lookup(String loginName) throws RemoteException {
+		User user = users.lookup(loginName);
+		if (user == null) {
+			// the user may be on its way here from another shard, only send the caller on if it is not ours
+			checkShard(loginName);
+		}
 		if (user != null) {
-			if (verbose) {
-				System.out.println("IdServer: was able to lookup, user exists {" + user.getLoginName() + "}");
-			}
+			lookupHits.increment();
+			Log.debug(Log.Subsystem.RPC, "was able to lookup, user exists {}", user.getLoginName());
 			return user.toString();
 		} else {
-			if (verbose) {
-				System.out.println("IdServer: cannot lookup, user does not exist");
-			}
+			lookupMisses.increment();
+			Log.debug(Log.Subsystem.RPC, "cannot lookup, user does not exist");
 			return "User does not exist!";
 		}
 	}
 
 	@Override
-	public synchronized String reverseLookup(UUID uuid) {
-		User user = reverseLookupUsers.get(uuid);
+	public UserRecord lookupRecord(String loginName) throws RemoteException {
+		// read the version first, the user is at least as recent as every change up to it
+		long version = users.getSeq();
+		User user = users.lookup(loginName);
+		if (user == null) {
+			checkShard(loginName);
+			lookupMisses.increment();
+		} else {
+			lookupHits.increment();
+		}
+		return new UserRecord(user, version);
+	}
+
+	@Override
+	public UserRecord reverseLookupRecord(UUID uuid) {
+		long version = users.getSeq();
+		User user = users.reverseLookup(uuid);
+		if (user == null) {
+			lookupMisses.increment();
+		} else {
+			lookupHits.increment();
+		}
+		return new UserRecord(user, version);
+	}
+
+	@Override
+	public String reverseLookup(UUID uuid) {
+		User user = users.reverseLookup(uuid);
 		if (user != null) {
-			if (verbose) {
-				System.out.println("IdServer: user exists {" + user.getLoginName() + "}");
-			}
+			lookupHits.increment();
+			Log.debug(Log.Subsystem.RPC, "user exists {}", user.getLoginName());
 			return user.toString().toString();
 		} else {
-			if (verbose) {
-				System.out.println("IdServer: User does not exist");
-			}
+			lookupMisses.increment();
+			Log.debug(Log.Subsystem.RPC, "User does not exist");
 			return "User does not exist!";
 		}
 	}
 
 	@Override
-	public synchronized void persistData() throws RemoteException {
-		if (verbose) {
-			System.out.println("IdServer: Persisting data securely to disk");
+	public List<UUID> createAll(List<NewUser> newUsers) throws RemoteException {
+		checkLeader();
+		checkBatchSize(newUsers.size());
+		for (NewUser newUser : newUsers) {
+			checkFieldLengths(newUser.getLoginName(), newUser.getRealName(), newUser.getPassword());
+			checkShard(newUser.getLoginName());
+		}
+		List<UUID> uuids = users.createAll(newUsers);
+		commitWrite(uuids);
+		if (Log.enabled(Log.Subsystem.RPC, Log.Level.DEBUG)) {
+			long created = uuids.stream().filter(uuid -> uuid != null).count();
+			Log.debug(Log.Subsystem.RPC, "Created {} of {} users", created, newUsers.size());
 		}
+		return uuids;
+	}
 
-		try {
+	@Override
+	public Map<String, Boolean> deleteAll(Map<String, String> passwords) throws RemoteException {
+		checkLeader();
+		checkBatchSize(passwords.size());
+		for (String loginName : passwords.keySet()) {
+			checkShard(loginName);
+		}
+		Map<String, Boolean> deleted = users.deleteAll(passwords);
+		commitWrite(deleted);
+		if (Log.enabled(Log.Subsystem.RPC, Log.Level.DEBUG)) {
+			long removed = deleted.values().stream().filter(ok -> ok).count();
+			Log.debug(Log.Subsystem.RPC, "Deleted {} of {} users", removed, passwords.size());
+		}
+		return deleted;
+	}
+
+	@Override
+	public List<String> lookupAll(List<String> loginNames) {
+		List<String> found = new ArrayList<String>(loginNames.size());
+		for (String loginName : loginNames) {
+			User user = users.lookup(loginName);
+			found.add(user != null ? user.toString() : "User does not exist!");
+		}
+		count(found);
+		return found;
+	}
+
+	@Override
+	public List<String> reverseLookupAll(List<UUID> uuids) {
+		List<String> found = new ArrayList<String>(uuids.size());
+		for (UUID uuid : uuids) {
+			User user = users.reverseLookup(uuid);
+			found.add(user != null ? user.toString() : "User does not exist!");
+		}
+		count(found);
+		return found;
+	}
 
-			// Convert Map to byte array
-			File file = new File("lookupUsers.ser");
-			FileOutputStream fos = new FileOutputStream(file);
-			ObjectOutputStream oout = new ObjectOutputStream(fos);
-			oout.writeObject(lookupUsers);
-			oout.close();
-			fos.close();
+	/**
+	 * Counts the hits and misses of a batch lookup
+	 * @param found the users found, "User does not exist!" for every miss
+	 */
+	private static void count(List<String> found) {
+		int misses = 0;
+		for (String user : found) {
+			if (user.equals("User does not exist!")) {
+				misses++;
+			}
+		}
+		lookupHits.add(found.size() - misses);
+		lookupMisses.add(misses);
+	}
 
-			// Convert Map to byte array
-			file = new File("reverseLookupUsers.ser");
-			fos = new FileOutputStream(file);
-			oout = new ObjectOutputStream(fos);
-			oout.writeObject(reverseLookupUsers);
+	@Override
+	public List<Boolean> importUsers(List<User> moved) throws RemoteException {
+		checkLeader();
+		checkBatchSize(moved.size());
+		List<Boolean> added = users.putAll(moved);
+		commitWrite(added);
+		if (Log.enabled(Log.Subsystem.RPC, Log.Level.DEBUG)) {
+			long count = added.stream().filter(ok -> ok).count();
+			Log.debug(Log.Subsystem.RPC, "Imported {} of {} users from another shard", count, moved.size());
+		}
+		return added;
+	}
 
-			oout.close();
-			fos.close();
+	/**
+	 * Renames a user onto a login name owned by another shard by handing the renamed user to that
+	 * shard's leader and then dropping it here. The user cannot be changed here in the meantime.
+	 * @param oldLoginName the current login name
+	 * @param newLoginName the new login name
+	 * @param password the password of the user
+	 * @param owner the shard owning the new login name
+	 * @return true if the user was renamed
+	 * @throws RemoteException if the other shard could not be reached
+	 */
+	private static boolean moveUser(String oldLoginName, String newLoginName, String password, int owner) throws RemoteException {
+		User user = users.lookup(oldLoginName);
+		if (user == null || !user.getPassword().equals(password)) {
+			return false;
+		}
+		List<User> held = users.beginMove(Collections.singletonList(user));
+		if (held.isEmpty()) {
+			// changed since we read it or already being moved
+			return false;
+		}
+		try {
+			List<User> renamed = Collections.singletonList(user.rename(newLoginName));
+			if (!callShardLeader(owner, stub -> stub.importUsers(renamed)).get(0)) {
+				return false;
+			}
+			users.removeAll(held);
+			commitWrite(Boolean.TRUE);
+		} finally {
+			users.endMove(held);
+		}
+		Log.debug(Log.Subsystem.RPC, "{} is now {} on shard {}", oldLoginName, newLoginName, owner);
+		return true;
+	}
 
+	/**
+	 * Rejects names and passwords too long to store, before anything is changed
+	 * @param fields the login name, real name or password hash of a write, null where not given
+	 * @throws RemoteException if a field is too long
+	 */
+	private static void checkFieldLengths(String... fields) throws RemoteException {
+		for (String field : fields) {
+			if (field != null && field.length() > MAX_FIELD_LENGTH) {
+				throw new RemoteException("Names and passwords may be at most " + MAX_FIELD_LENGTH + " characters long");
+			}
+		}
+	}
+
+	/**
+	 * Rejects batch writes too large to log and replicate as one unit
+	 * @param size the number of users in the batch
+	 * @throws RemoteException if the batch is too large
+	 */
+	private static void checkBatchSize(int size) throws RemoteException {
+		if (size > MAX_BATCH_SIZE) {
+			throw new RemoteException("Batch of " + size + " users is larger than the limit of " + MAX_BATCH_SIZE);
+		}
+	}
+
+	/**
+	 * Makes the changes of the current request durable before it is acknowledged
+	 * @throws RemoteException if the change could not be written to the log
+	 */
+	private static void commitLog() throws RemoteException {
+		if (log == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			log.commit();
+			commitTime.recordSince(start);
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new RemoteException("Unable to write change to the log", e);
+		}
+	}
+
+	@Override
+	public void persistData() throws RemoteException {
+		checkpoint(true);
+	}
+
+	/**
+	 * Asks for the whole database to be written to disk in the background, dropping the part of the
+	 * log it covers
+	 * @param force false to skip the checkpoint while the log is still small
+	 * @return completes once the checkpoint is on disk
+	 */
+	private static Future<?> checkpoint(boolean force) {
+		if (force) {
+			Log.debug(Log.Subsystem.PERSISTENCE, "Persisting data securely to disk");
 		}
+		return checkpointer.request(force);
+	}
+
+	@Override
+	public String lookup(String loginName, long minSeq, long maxStalenessMillis) throws RemoteException {
+		checkFresh(minSeq, maxStalenessMillis);
+		return lookup(loginName);
+	}
 
+	@Override
+	public String reverseLookup(UUID uuid, long minSeq, long maxStalenessMillis) throws RemoteException {
+		checkFresh(minSeq, maxStalenessMillis);
+		return reverseLookup(uuid);
 	}
 
 	@Override
-	public synchronized String get(String listToGet) {
-		if (verbose) {
-			System.out.println("IdServer: client has asked to get information about users");
-			System.out.println("IdServer: Query is: " + listToGet);
+	public String get(String listToGet, long minSeq, long maxStalenessMillis) throws RemoteException {
+		checkFresh(minSeq, maxStalenessMillis);
+		return get(listToGet);
+	}
+
+	@Override
+	public UserPage list(String cursor, String prefix, int pageSize) throws RemoteException {
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			throw new RemoteException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+		}
+		List<User> page = users.page(cursor, prefix == null ? "" : prefix, pageSize);
+		List<UserPage.Entry> entries = new ArrayList<UserPage.Entry>(page.size());
+		for (User user : page) {
+			entries.add(new UserPage.Entry(user.getLoginName(), user.getUUID()));
 		}
+		// a full page may be followed by more, the next one starts after its last login name
+		String next = page.size() == pageSize ? page.get(page.size() - 1).getLoginName() : null;
+		return new UserPage(entries, next);
+	}
+
+	@Override
+	public UserPage list(String cursor, String prefix, int pageSize, long minSeq, long maxStalenessMillis) throws RemoteException {
+		checkFresh(minSeq, maxStalenessMillis);
+		return list(cursor, prefix, pageSize);
+	}
+
+	@Override
+	public long getVersion() {
+		return users.getSeq();
+	}
+
+	@Override
+	public CacheInvalidation getInvalidationsSince(long seq) {
+		List<UserChange> changes = seq >= 0 ? replicationLog.since(seq, REPLICATION_BATCH_SIZE) : null;
+		if (changes == null) {
+			return new CacheInvalidation(replicationLog.getLastSeq());
+		}
+		List<String> loginNames = new ArrayList<String>(changes.size());
+		List<UUID> uuids = new ArrayList<UUID>(changes.size());
+		for (UserChange change : changes) {
+			loginNames.add(change.getUser().getLoginName());
+			uuids.add(change.getUser().getUUID());
+		}
+		long last = changes.isEmpty() ? seq : changes.get(changes.size() - 1).getSeq();
+		return new CacheInvalidation(last, last < replicationLog.getLastSeq(), loginNames, uuids);
+	}
+
+	@Override
+	public String get(String listToGet) {
+		Log.debug(Log.Subsystem.RPC, "client has asked to get information about users");
+		Log.debug(Log.Subsystem.RPC, "Query is: {}", listToGet);
 
 		if (listToGet.equals("users")) {
-			return IdServer.lookupUsers.keySet().toString();
+			return users.loginNames().toString();
 		} else if (listToGet.equals("uuids")) {
-			return IdServer.reverseLookupUsers.keySet().toString();
+			return users.uuids().toString();
 		} else if (listToGet.equals("all")) {
-			StringBuilder sb = new StringBuilder();
-			Set<String> set = lookupUsers.keySet();
+			Set<String> set = users.loginNames();
+			StringBuilder sb = new StringBuilder(set.size() * 48);
 
 			for (String s : set) {
-				sb.append(s + ": ");
-				sb.append(IdServer.lookupUsers.get(s).getUUID());
-				sb.append("\n");
+				User user = users.lookup(s);
+				if (user == null) {
+					continue;
+				}
+				sb.append(s).append(": ").append(user.getUUID()).append('\n');
 			}
 			return sb.toString();
 		}
-		if (verbose) {
-			System.out.println("IdServer: Did not recognize get query:" + listToGet);
-		}
+		Log.debug(Log.Subsystem.RPC, "Did not recognize get query:{}", listToGet);
 		return "Did not recognize list to get";
 	}
 
@@ -436,45 +1060,36 @@ public class IdServer extends UnicastRemoteObject implements Id {
 			Registry registry = null;
 			try {
 				registry = LocateRegistry.getRegistry(registryPort);
-				System.out.println(registry.list());
+				Log.debug(Log.Subsystem.SERVER, "registry holds {}", Arrays.asList(registry.list()));
 			} catch (RemoteException e) {
 				registry = LocateRegistry.createRegistry(registryPort);
 			}
 
-			// create the servers remote object
-			Id server = null;
-			try {
-				server = (IdServer) UnicastRemoteObject.exportObject(this, 0);
-			} catch (java.rmi.server.ExportException e) {
-				UnicastRemoteObject.unexportObject(this, true);
-				server = (Id) UnicastRemoteObject.exportObject(this, 0);
-			}
+			// create the servers remote object, every call goes through a proxy that times it
+			UnicastRemoteObject.unexportObject(this, true);
+			exported = Metrics.timed(Id.class, this);
+			Id server = (Id) UnicastRemoteObject.exportObject(exported, 0);
 
             String selfAddress = null;
             try{
                 selfAddress = InetAddress.getLocalHost().getHostAddress();
             }catch(Exception e){
-                System.out.println("Failed to get own address: " + e.toString());
+                Log.error(Log.Subsystem.SERVER, "Failed to get own address: {}", e.toString());
                 throw new RuntimeException();
             }
 
 
             if(leaderAddr == null){
                 //We are the first, so we are the leader
-                System.out.println("Other server not specified, making self leader.");
-                ServerInfo us = new ServerInfo(1, selfAddress);
+                Log.info(Log.Subsystem.SERVER, "Other server not specified, making self leader.");
+                ServerInfo us = new ServerInfo(1, selfAddress, shard);
                 leadServer = us;
                 thisServer = us;
                 serverList.add(us);
             }else{
                 try{
-                    leadServer = ((Id)LocateRegistry.getRegistry(leaderAddr, registryPort).lookup("server")).currentLeader();
-                    System.out.println("Got leader");
-                    System.out.println("Leader PID: " + leadServer.getPID());
-                    System.out.println("Leader address: " + leadServer.getAddress());
-
-                    serverList = ((Id)LocateRegistry.getRegistry(leaderAddr, registryPort).lookup("server")).registerServer(selfAddress);
-                    System.out.println("Successfully registered with other server");
+                    serverList = ((Id)LocateRegistry.getRegistry(leaderAddr, registryPort).lookup("server")).registerServer(selfAddress, shard);
+                    Log.info(Log.Subsystem.SERVER, "Successfully registered with other server");
                     //Find ourselves
                     for(var server_ : serverList){
                         if(server_.getAddress().equals(selfAddress)){
@@ -482,48 +1097,108 @@ public class IdServer extends UnicastRemoteObject implements Id {
                             break;
                         }
                     }
+                    ring = new ShardRing(shardsOf(serverList));
+
+                    //The leader of our own shard, which is us if nobody else holds it yet
+                    leadServer = thisServer;
+                    for(var peer : shardMembers()){
+                        if(peer.compareTo(thisServer) == 0) continue;
+                        try{
+                            leadServer = stubs.call(peer, stub -> stub.currentLeader());
+                            break;
+                        }catch(Exception e){}
+                    }
+                    Log.info(Log.Subsystem.SERVER, "Got leader of shard {}", shard);
+                    Log.info(Log.Subsystem.SERVER, "Leader PID: {}", leadServer.getPID());
+                    Log.info(Log.Subsystem.SERVER, "Leader address: {}", leadServer.getAddress());
                 }catch(Exception e){
-                    System.out.println("Unable to connect to provided server, aborting.");
-                    System.out.println("IP: " + leaderAddr);
-                    System.out.println(e.toString());
+                    Log.error(Log.Subsystem.SERVER, "Unable to connect to provided server {}, aborting.", leaderAddr, e);
                     return;
                 }
             }
 
+            detector.setSelf(thisServer);
             registry.rebind("server", server);
-            System.out.println("server" + " bound in registry to port: " + registryPort);
+            Log.info(Log.Subsystem.SERVER, "server bound in registry to port: {}", registryPort);
 
 		} catch (Exception e) {
-			e.printStackTrace();
-			System.out.println("INFO: Exception occurred: " + e);
+			Log.error(Log.Subsystem.SERVER, "Could not bind the server", e);
 		}
 	}
 
 	/**
-	 * represents all information about a user.
+	 * Loads the last checkpoint, or the old .ser files, and replays the log on top of it
+	 * @return false if a checkpoint exists but could not be read. The log only holds the changes
+	 * since that checkpoint, so starting without it would checkpoint a partial database over it.
 	 */
-	private static void reloadDatabase() {
+	private static boolean reloadDatabase() {
 		try {
+			File snapshot = new File(SNAPSHOT_FILE);
 			File f = new File("lookupUsers.ser");
 			File f2 = new File("reverseLookupUsers.ser");
-			if (f.isFile() && f2.isFile()) {
-				System.out.println("reloading database form disk");
+			if (snapshot.isFile()) {
+				long start = System.nanoTime();
+				SnapshotFile.Contents contents = SnapshotFile.read(snapshot);
+				users.replace(contents.getUsers(), contents.getSeq());
+				Log.info(Log.Subsystem.PERSISTENCE, "reloaded {} users from disk in {} ms", contents.getUsers().size(), (System.nanoTime() - start) / 1000000);
+			} else if (f.isFile() && f2.isFile()) {
+				Log.info(Log.Subsystem.PERSISTENCE, "reloading database form disk");
 				FileInputStream fis = new FileInputStream("lookupUsers.ser");
 				ObjectInputStream ois = new ObjectInputStream(fis);
-				lookupUsers = (Map<String, User>) ois.readObject();
+				Map<String, User> lookupUsers = (Map<String, User>) ois.readObject();
 				ois.close();
 				fis.close();
 
-				fis = new FileInputStream("reverseLookupUsers.ser");
-				ois = new ObjectInputStream(fis);
-				reverseLookupUsers = (Map<UUID, User>) ois.readObject();
-				ois.close();
-				fis.close();
+				// the login name index is authoritative, older files kept deleted users in the uuid index
+				// and stale login names inside renamed users
+				ArrayList<User> restored = new ArrayList<User>();
+				for (Map.Entry<String, User> entry : lookupUsers.entrySet()) {
+					User user = entry.getValue();
+					if (!entry.getKey().equals(user.getLoginName())) {
+						user = user.rename(entry.getKey());
+					}
+					restored.add(user);
+				}
+				users.replace(restored, 0);
 			}
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error(Log.Subsystem.PERSISTENCE, "Could not reload the database, refusing to start so it is not overwritten", e);
+			return false;
 		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
+			Log.error(Log.Subsystem.PERSISTENCE, "Could not reload the database, refusing to start so it is not overwritten", e);
+			return false;
+		}
+
+		try {
+			log = new WriteAheadLog(new File("users.wal"));
+			int replayed = log.open(users);
+			if (replayed > 0) {
+				Log.info(Log.Subsystem.PERSISTENCE, "replayed {} changes from the log", replayed);
+			}
+			users.addListener(log);
+		} catch (IOException e) {
+			Log.error(Log.Subsystem.PERSISTENCE, "Could not open the log", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Rewrites a database loaded from the old .ser files as a snapshot, the old files are only read once
+	 */
+	private static void migrateDatabase() {
+		File f = new File("lookupUsers.ser");
+		File f2 = new File("reverseLookupUsers.ser");
+		if (!f.isFile() || new File(SNAPSHOT_FILE).isFile()) {
+			return;
+		}
+		try {
+			checkpoint(true).get();
+			f.delete();
+			f2.delete();
+		} catch (InterruptedException e) {
+			Log.error(Log.Subsystem.PERSISTENCE, "Could not migrate the database", e);
+		} catch (ExecutionException e) {
+			Log.error(Log.Subsystem.PERSISTENCE, "Could not migrate the database", e.getCause());
 		}
 	}
 
@@ -535,17 +1210,25 @@ public class IdServer extends UnicastRemoteObject implements Id {
 	public static void main(String args[]) {
         String selfAddress = null;
         try{
-            System.out.println("[main]\t\t IP Address: "+ InetAddress.getLocalHost().getHostAddress());
-            System.out.println("[main]\t\t Hostname  : "+ InetAddress.getLocalHost().getHostName());
+            Log.info(Log.Subsystem.SERVER, "IP Address: {}", InetAddress.getLocalHost().getHostAddress());
+            Log.info(Log.Subsystem.SERVER, "Hostname  : {}", InetAddress.getLocalHost().getHostName());
             selfAddress = InetAddress.getLocalHost().getHostAddress();
         }catch(Exception e){
-            System.out.println("Unable to get local address, aborting");
+            Log.error(Log.Subsystem.SERVER, "Unable to get local address, aborting");
             return;
         }
 
 		Options options = setupOptions();
 
-		reloadDatabase();
+		if (!reloadDatabase()) {
+			Log.error(Log.Subsystem.SERVER, "Move the damaged database aside to start without it, {} or the .ser files", SNAPSHOT_FILE);
+			Log.flush();
+			System.exit(1);
+		}
+		replicationLog = new ReplicationLog(REPLICATION_LOG_SIZE, users.getSeq());
+		users.addListener(replicationLog);
+		checkpointer = new Checkpointer(users, replicationLog, log, new File(SNAPSHOT_FILE), CHECKPOINT_BYTES);
+		migrateDatabase();
 
 		if (args.length < 1) {
 			HelpFormatter formatter = new HelpFormatter();
@@ -570,95 +1253,259 @@ public class IdServer extends UnicastRemoteObject implements Id {
 			}
 
 			if (line.hasOption('v')) {
-				verbose = true;
+				Log.setLevel(Log.Level.DEBUG);
+			}
+
+			if (line.hasOption('L')) {
+				Log.configure(line.getOptionValue('L'));
+			}
+
+			if (line.hasOption('q')) {
+				quorum = Integer.parseInt(line.getOptionValue('q'));
 			}
 
+			if (line.hasOption('b')) {
+				binaryPort = Integer.parseInt(line.getOptionValue('b'));
+			}
+
+			if (line.hasOption('m')) {
+				metricsPort = Integer.parseInt(line.getOptionValue('m'));
+			}
+
+			if (line.hasOption('s')) {
+				shard = Integer.parseInt(line.getOptionValue('s'));
+				ring = new ShardRing(Collections.singleton(shard));
+			}
+
+			stubs = new PeerStubs(registryPort);
+			detector = new FailureDetector(registryPort, stubs);
+
 			try {
-				System.out.println("Setting System Properties....");
+				Log.info(Log.Subsystem.SERVER, "Setting System Properties....");
 				IdServer server = new IdServer();
 				server.bind(leaderAddr);
 
-				// we need a timer running to make sure if we are a leader we persist data to disk
+				registerGauges();
+				if (metricsPort > 0) {
+					Metrics.serve(metricsPort);
+					Log.info(Log.Subsystem.SERVER, "metrics served on port: {}", metricsPort);
+				}
+
+				if (binaryPort > 0) {
+					new BinaryServer(Metrics.timed(Id.class, server), binaryPort).start();
+					Log.info(Log.Subsystem.SERVER, "binary protocol listening on port: {}", binaryPort);
+				}
+
+				if (quorum > 0) {
+					replicator = new QuorumReplicator(replicationLog, stubs, quorum, REPLICATION_BATCH_SIZE, QUORUM_TIMEOUT_MS,
+							() -> thisServer, IdServer::backups, IdServer::leading);
+					users.addListener(replicator);
+					replicator.start();
+				}
+
+				// backups log every change they apply too, so every server checkpoints once its log is large
 				int delay = 5000; // delay for 5 sec.
-				int period = 5000; // repeat every 15 sec.
-				Timer timer = new Timer();
+				int period = 5000; // repeat every 5 sec.
+				Threads.every(scheduler, "checkpoint-timer", delay, period, () -> checkpoint(false));
 
-				timer.scheduleAtFixedRate(new TimerTask() {
-					public void run() {
-						if (isLeader()){
-							try {
-								Registry registry = LocateRegistry.getRegistry("localhost", registryPort);
-								Id stub = (Id) registry.lookup("server");
-								stub.persistData();
-							} catch (RemoteException e) {
-								e.printStackTrace();
-							} catch (NotBoundException e) {
-								e.printStackTrace();
-							}
-						}
-					}
-				}, delay, period);
-				
 				// we need another timer that will get data from the leader every so often just in case we need to become a leader
 				delay = 100; // delay for 100ms.
 				period = 300; // repeat every 300 ms.
-				Timer timer2 = new Timer();
-
-				timer2.scheduleAtFixedRate(new TimerTask() {
-					public void run() {
-						try {
-                            if(thisServer == leadServer) return;
-                            if(!serverAlive(leadServer)) return;
-
-							Registry registry = LocateRegistry.getRegistry(leadServer.getAddress(), registryPort);
-							Id stub = (Id) registry.lookup("server");
-							lookupUsers = stub.getLookupUsersDatabase();
-							reverseLookupUsers = stub.getReverseLookupUsersDatabase();
-						} catch (RemoteException e) {
-							e.printStackTrace();
-						} catch (NotBoundException e) {
-							e.printStackTrace();
-						}
+				Threads.every(scheduler, "replicate", delay, period, () -> {
+					try {
+                        if(thisServer == leadServer) return;
+                        if(!serverAlive(leadServer)) return;
+
+						replicate(leadServer, false);
+					} catch (RemoteException e) {
+						Log.error(Log.Subsystem.REPLICATION, "Could not replicate from the leader", e);
+					} catch (NotBoundException e) {
+						Log.error(Log.Subsystem.REPLICATION, "Could not replicate from the leader", e);
 					}
-				}, delay, period);
+				});
 
 				// Allow all server to persist data before being shut down
 				Runtime.getRuntime().addShutdownHook(new Thread() {
 					public void run() {
 						try {
-							System.out.println("Shutting down ...");
-							Registry registry = LocateRegistry.getRegistry("localhost", registryPort);
-							Id stub = null;
-							if (isLeader()){
-								stub = (Id) registry.lookup("server");
-							}else {
-								stub = (Id) registry.lookup("server");
-							}
-							stub.persistData();
-						} catch (RemoteException e) {
-							e.printStackTrace();
-						} catch (NotBoundException e) {
-							e.printStackTrace();
+							Log.info(Log.Subsystem.SERVER, "Shutting down ...");
+							checkpoint(true).get();
+						} catch (InterruptedException e) {
+							Log.error(Log.Subsystem.PERSISTENCE, "Could not write the last checkpoint", e);
+						} catch (ExecutionException e) {
+							Log.error(Log.Subsystem.PERSISTENCE, "Could not write the last checkpoint", e.getCause());
+						} finally {
+							Log.flush();
 						}
 					}
 				});
 			} catch (Exception e) {
-				System.out.println("IdServer: " + e.getMessage());
-				e.printStackTrace();
+				Log.error(Log.Subsystem.SERVER, "Could not start the server", e);
 			}
 		} catch (Exception e) {
-			System.err.println("Client exception: " + e.toString());
-			e.printStackTrace();
+			Log.error(Log.Subsystem.SERVER, "Could not start the server", e);
+		}
+	}
+
+	/**
+	 * Registers the gauges read whenever the metrics are rendered
+	 */
+	private static void registerGauges() {
+		Metrics.gauge("idserver_users", users::size);
+		Metrics.gauge("idserver_sequence", users::getSeq);
+		Metrics.gauge("idserver_replication_lag", () -> leading() ? 0 : Math.max(0, leaderSeq - users.getSeq()));
+		Metrics.gauge("idserver_replication_last_sync_age_millis", () -> leading() || lastSyncMillis == 0 ? 0 : System.currentTimeMillis() - lastSyncMillis);
+		Metrics.gauge("idserver_wal_size_bytes", () -> log == null ? 0 : log.size());
+		Metrics.gauge("idserver_elections_total", electionsHeld::get);
+		Metrics.gauge("idserver_election_waiters", electionWaiters::get);
+		Metrics.gauge("idserver_leader", () -> leading() ? 1 : 0);
+		Metrics.gauge("idserver_log_dropped_total", Log::getDropped);
+	}
+
+	/**
+	 * Brings our database up to date with the leader, applying only the changes we are missing
+	 * @param leader the lead server, or the backup a new leader catches up from
+	 * @param sameHistory true if the server followed the leader we last copied from, so its changes
+	 * line up with ours even though we did not copy from it
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private static void replicate(ServerInfo leader, boolean sameHistory) throws RemoteException, NotBoundException {
+		while (true) {
+			long since = sameHistory || leader.equals(replicatedFrom) ? users.getSeq() : -1;
+			long asked = System.currentTimeMillis();
+			long start = System.nanoTime();
+			ReplicationBatch batch = stubs.call(leader, stub -> stub.getChangesSince(since));
+			pullTime.recordSince(start);
+			leaderSeq = batch.getLeaderSeq();
+			if (batch.isFull()) {
+				synchronized (replicationLock) {
+					users.replace(batch.getUsers(), batch.getSeq());
+					replicatedFrom = leader;
+				}
+				Log.debug(Log.Subsystem.REPLICATION, "copied {} users from the leader at #{}", batch.getUsers().size(), batch.getSeq());
+				// the copy is not in our log, make sure it survives if we become the leader
+				checkpoint(true);
+				continue;
+			}
+			applyFromLeader(batch.getChanges());
+			if (batch.getChanges().size() < REPLICATION_BATCH_SIZE) {
+				// we now hold everything the leader had when we asked
+				lastSyncMillis = asked;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public long pushChanges(ServerInfo leader, ReplicationBatch batch) throws RemoteException {
+		ServerInfo following = leadServer;
+		if (following == null || !following.equals(leader) || !leader.equals(replicatedFrom)) {
+			// not our leader, or we still have to copy from it before its changes line up with ours
+			return -1;
+		}
+		leaderSeq = Math.max(leaderSeq, batch.getLeaderSeq());
+		return applyFromLeader(batch.getChanges());
+	}
+
+	/**
+	 * Applies the changes of the leader that follow on from ours. Changes pulled by the timer and
+	 * pushed by the leader can arrive in any order, the ones we already have are skipped and nothing
+	 * is applied across a gap.
+	 * @param changes changes of the leader in sequence order
+	 * @return the sequence number we are at afterwards
+	 * @throws RemoteException if the changes could not be written to the log
+	 */
+	private static long applyFromLeader(List<UserChange> changes) throws RemoteException {
+		synchronized (replicationLock) {
+			long at = users.getSeq();
+			List<UserChange> fresh = new ArrayList<UserChange>(changes.size());
+			for (UserChange change : changes) {
+				if (change.getSeq() > at) {
+					fresh.add(change);
+				}
+			}
+			if (!fresh.isEmpty() && fresh.get(0).getSeq() == at + 1) {
+				users.applyAll(fresh);
+			}
+			commitLog();
+			return users.getSeq();
+		}
+	}
+
+	/**
+	 * Gets the backups of this server's shard
+	 * @return the other servers of our shard
+	 */
+	private static List<ServerInfo> backups() {
+		List<ServerInfo> others = new ArrayList<ServerInfo>();
+		ServerInfo self = thisServer;
+		for (ServerInfo server : shardMembers()) {
+			if (self != null && !server.equals(self)) {
+				others.add(server);
+			}
+		}
+		return others;
+	}
+
+	/**
+	 * Tells if this server is the leader of its shard, without waiting on elections
+	 * @return true if we are the leader
+	 */
+	private static boolean leading() {
+		ServerInfo leader = leadServer;
+		return leader != null && thisServer != null && leader.equals(thisServer);
+	}
+
+	/**
+	 * Makes a write durable before it is acknowledged: on our disk, and on enough backups when a
+	 * quorum is configured. Must be called on the thread that made the write.
+	 * @param result the answer of the write, handed back with the exception if the quorum is not reached
+	 * @throws UnconfirmedWriteException if the write was applied and logged, but not enough backups confirmed it
+	 * @throws RemoteException if the write could not be logged
+	 */
+	private static void commitWrite(Object result) throws RemoteException {
+		commitLog();
+		if (replicator != null) {
+			long start = System.nanoTime();
+			try {
+				// our own change, not the changes other threads made since
+				replicator.await(users.getLastPublishedSeq());
+			} catch (UnconfirmedWriteException e) {
+				// every answer of the Id interface is serializable, it is sent back over RMI anyway
+				throw e.withResult((Serializable) result);
+			} finally {
+				quorumTime.recordSince(start);
+			}
+		}
+	}
+
+	@Override
+	public String getMetrics() throws RemoteException {
+		return Metrics.render();
+	}
+
+	@Override
+	public ReplicationBatch getChangesSince(long seq) throws RemoteException {
+		if (seq >= 0) {
+			List<UserChange> changes = replicationLog.since(seq, REPLICATION_BATCH_SIZE);
+			if (changes != null) {
+				long last = changes.isEmpty() ? seq : changes.get(changes.size() - 1).getSeq();
+				return new ReplicationBatch(last, replicationLog.getLastSeq(), changes, null);
+			}
 		}
+		// changes made while copying are sent again in the next batch, applying them twice is harmless
+		long at = users.getSeq();
+		return new ReplicationBatch(at, at, null, users.copyUsers());
 	}
 
 	@Override
 	public Map<String, User> getLookupUsersDatabase() throws RemoteException {
-		return new HashMap<String, User>(lookupUsers);
+		return users.copyLookupUsers();
 	}
 
 	@Override
 	public Map<UUID, User> getReverseLookupUsersDatabase() throws RemoteException {
-		return new HashMap<UUID, User>(reverseLookupUsers);
+		return users.copyReverseLookupUsers();
 	}
 }
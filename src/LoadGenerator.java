@@ -0,0 +1,384 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+/**
+ * Drives a mix of client operations at the servers through an IdClient, which finds the leader of
+ * every shard and follows it when it changes, and reports the throughput and latency percentiles of
+ * every operation.
+ *
+ * In a closed loop a fixed number of workers send their next request as soon as the last one is
+ * answered, which shows the most the servers sustain. In an open loop (a target rate) requests are
+ * due on a fixed schedule whatever the servers do. A request is timed from when it was due rather than
+ * when a worker got to send it, so a stall of the servers shows up in the latency of every request
+ * that should have been sent during it instead of in one slow request, the coordinated omission a
+ * closed loop suffers from. The time from sending to the answer is reported next to it as the service
+ * time.
+ *
+ * Lookups go to users created before the run starts. Modify and delete work on users created during
+ * the run, a modify or delete with none left to work on creates one instead.
+ *
+ * With a near cache the lookups are answered by the client whenever it can, and its hit ratio is
+ * reported with the latencies.
+ */
+public class LoadGenerator {
+	private static final String PASSWORD = "load";
+	private static final int BATCH_SIZE = 8192;
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+	private static final long NEAR_CACHE_TTL_MILLIS = 60000;
+	private static final long NEAR_CACHE_REFRESH_MILLIS = 100;
+
+	/**
+	 * The operations of the mix
+	 */
+	private enum Op {
+		LOOKUP, REVERSE, CREATE, MODIFY, DELETE, GET
+	}
+
+	private final IdClient client;
+	private final int[] weights = new int[Op.values().length];
+	private final String prefix = "load" + Long.toString(System.currentTimeMillis(), 36) + "-";
+	private String[] names = new String[0];
+	private UUID[] uuids = new UUID[0];
+	// users created during the run that modify and delete may use
+	private final ConcurrentLinkedQueue<String> created = new ConcurrentLinkedQueue<String>();
+	private final AtomicLong nextName = new AtomicLong();
+
+	// one per operation and the last for all of them
+	private static final int ALL = Op.values().length;
+	private final Metrics.Histogram[] response = new Metrics.Histogram[ALL + 1];
+	private final Metrics.Histogram[] service = new Metrics.Histogram[ALL + 1];
+	private final LongAdder[] errors = new LongAdder[ALL + 1];
+	private final LongAdder completed = new LongAdder();
+
+	/**
+	 * Constructs a load generator
+	 * @param client the client to send requests through
+	 * @param mix the weight of each operation, e.g. lookup=70,reverse=10,create=10,modify=5,delete=5
+	 */
+	public LoadGenerator(IdClient client, String mix) {
+		this.client = client;
+		for (String part : mix.split(",")) {
+			String[] weight = part.trim().split("=");
+			weights[Op.valueOf(weight[0].trim().toUpperCase(Locale.ROOT)).ordinal()] = Integer.parseInt(weight[1].trim());
+		}
+		if (Arrays.stream(weights).sum() <= 0) {
+			throw new IllegalArgumentException("The mix has no operation with a weight");
+		}
+		for (int i = 0; i < response.length; i++) {
+			response[i] = new Metrics.Histogram();
+			service[i] = new Metrics.Histogram();
+			errors[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Creates the users that lookups go to
+	 * @param count how many users to create
+	 * @throws RemoteException
+	 */
+	public void populate(int count) throws RemoteException {
+		List<String> loginNames = new ArrayList<String>(count);
+		List<UUID> ids = new ArrayList<UUID>(count);
+		for (int from = 0; from < count; from += BATCH_SIZE) {
+			List<NewUser> batch = new ArrayList<NewUser>(BATCH_SIZE);
+			for (int i = from; i < Math.min(count, from + BATCH_SIZE); i++) {
+				batch.add(new NewUser(prefix + "u" + i, "Load Test", PASSWORD));
+			}
+			List<UUID> added = client.createAll(batch);
+			for (int i = 0; i < batch.size(); i++) {
+				if (added.get(i) != null) {
+					loginNames.add(batch.get(i).getLoginName());
+					ids.add(added.get(i));
+				}
+			}
+		}
+		names = loginNames.toArray(new String[0]);
+		uuids = ids.toArray(new UUID[0]);
+	}
+
+	/**
+	 * Runs the load
+	 * @param workers the number of requests in flight at most
+	 * @param rate the requests per second of an open loop, 0 for a closed loop
+	 * @param warmupMillis how long to send requests before recording them
+	 * @param durationMillis how long to record requests for
+	 * @throws InterruptedException
+	 */
+	public void run(int workers, double rate, long warmupMillis, long durationMillis) throws InterruptedException {
+		long start = System.nanoTime();
+		long recordFrom = start + warmupMillis * 1000000;
+		long end = recordFrom + durationMillis * 1000000;
+		long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+		AtomicLong next = new AtomicLong();
+
+		List<Thread> threads = new ArrayList<Thread>(workers);
+		for (int w = 0; w < workers; w++) {
+			threads.add(Threads.start("load-" + w, () -> {
+				while (true) {
+					long due;
+					if (interval > 0) {
+						// the schedule is shared, a worker takes the next request due
+						due = start + next.getAndIncrement() * interval;
+						if (due >= end) {
+							return;
+						}
+						while (System.nanoTime() < due) {
+							LockSupport.parkNanos(due - System.nanoTime());
+						}
+					} else {
+						due = System.nanoTime();
+						if (due >= end) {
+							return;
+						}
+					}
+					send(pick(), due, due >= recordFrom);
+				}
+			}));
+		}
+
+		long lastCompleted = 0;
+		while (System.nanoTime() < end) {
+			Thread.sleep(1000);
+			long done = completed.sum();
+			System.out.println(String.format(Locale.ROOT, "%6.1fs %10d ops/s", (System.nanoTime() - start) / 1e9, done - lastCompleted));
+			lastCompleted = done;
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	/**
+	 * Picks the next operation from the mix
+	 * @return the operation
+	 */
+	private Op pick() {
+		int roll = ThreadLocalRandom.current().nextInt(Arrays.stream(weights).sum());
+		for (Op op : Op.values()) {
+			roll -= weights[op.ordinal()];
+			if (roll < 0) {
+				return op;
+			}
+		}
+		return Op.LOOKUP;
+	}
+
+	/**
+	 * Sends one request and records how long it took
+	 * @param op the operation
+	 * @param due when the request was due to be sent
+	 * @param record false during the warmup
+	 */
+	private void send(Op op, long due, boolean record) {
+		String user = null;
+		if (op == Op.MODIFY || op == Op.DELETE) {
+			user = created.poll();
+			if (user == null) {
+				op = Op.CREATE;
+			}
+		}
+		long sent = System.nanoTime();
+		try {
+			switch (op) {
+			case LOOKUP:
+				client.lookupRecord(names[ThreadLocalRandom.current().nextInt(names.length)]);
+				break;
+			case REVERSE:
+				client.reverseLookupRecord(uuids[ThreadLocalRandom.current().nextInt(uuids.length)]);
+				break;
+			case CREATE:
+				String loginName = prefix + "c" + nextName.getAndIncrement();
+				if (client.create(loginName, "Load Test", PASSWORD) != null) {
+					created.add(loginName);
+				}
+				break;
+			case MODIFY:
+				String renamed = prefix + "c" + nextName.getAndIncrement();
+				created.add(client.modify(user, renamed, PASSWORD) ? renamed : user);
+				break;
+			case DELETE:
+				if (!client.delete(user, PASSWORD)) {
+					created.add(user);
+				}
+				break;
+			case GET:
+				client.get("users");
+				break;
+			}
+		} catch (RemoteException e) {
+			if (record) {
+				errors[op.ordinal()].increment();
+				errors[ALL].increment();
+			}
+		}
+		long now = System.nanoTime();
+		completed.increment();
+		if (record) {
+			response[op.ordinal()].record(now - due);
+			response[ALL].record(now - due);
+			service[op.ordinal()].record(now - sent);
+			service[ALL].record(now - sent);
+		}
+	}
+
+	/**
+	 * Prints the throughput and latency percentiles of every operation
+	 * @param durationMillis how long requests were recorded for
+	 * @param openLoop true to print the response times of the schedule next to the service times
+	 */
+	public void report(long durationMillis, boolean openLoop) {
+		if (openLoop) {
+			System.out.println();
+			System.out.println("Response time, from when each request was due (corrected for coordinated omission)");
+			print(response, durationMillis);
+		}
+		System.out.println();
+		System.out.println("Service time, from when each request was sent");
+		print(service, durationMillis);
+
+		List<NearCache> caches = client.getNearCaches();
+		if (!caches.isEmpty()) {
+			long hits = 0, misses = 0, evictions = 0, invalidations = 0;
+			for (NearCache cache : caches) {
+				hits += cache.getHits();
+				misses += cache.getMisses();
+				evictions += cache.getEvictions();
+				invalidations += cache.getInvalidations();
+			}
+			System.out.println();
+			System.out.println(String.format(Locale.ROOT, "Near cache: %d hits, %d misses (%.1f%% hits), %d evicted, %d invalidated",
+					hits, misses, 100.0 * hits / Math.max(1, hits + misses), evictions, invalidations));
+		}
+	}
+
+	/**
+	 * Prints a table of latencies
+	 * @param histograms the latencies of every operation
+	 * @param durationMillis how long requests were recorded for
+	 */
+	private void print(Metrics.Histogram[] histograms, long durationMillis) {
+		System.out.println(String.format("%-8s %9s %10s %7s %9s %9s %9s %9s %9s %9s", "op", "count", "ops/s", "errors",
+				"mean ms", "p50", "p90", "p99", "p99.9", "max"));
+		for (Op op : Op.values()) {
+			if (histograms[op.ordinal()].getCount() > 0) {
+				print(op.name().toLowerCase(Locale.ROOT), histograms[op.ordinal()], errors[op.ordinal()].sum(), durationMillis);
+			}
+		}
+		print("all", histograms[ALL], errors[ALL].sum(), durationMillis);
+	}
+
+	/**
+	 * Prints the row of one operation
+	 * @param name the name of the operation
+	 * @param histogram its latencies
+	 * @param errors how many of its requests failed
+	 * @param durationMillis how long requests were recorded for
+	 */
+	private static void print(String name, Metrics.Histogram histogram, long errors, long durationMillis) {
+		long count = histogram.getCount();
+		StringBuilder row = new StringBuilder(String.format(Locale.ROOT, "%-8s %9d %10.1f %7d %9.3f", name, count,
+				count * 1000.0 / durationMillis, errors, count > 0 ? histogram.getSum() / 1e6 / count : 0));
+		for (double percentile : PERCENTILES) {
+			row.append(String.format(Locale.ROOT, " %9.3f", histogram.percentile(percentile) / 1e6));
+		}
+		System.out.println(row);
+	}
+
+	/**
+	 * creates the command line options for parsing
+	 * @return the options
+	 */
+	private static Options setupOptions() {
+		Options options = new Options();
+
+		Option serverIPOption = new Option("s", "servers", true, "a list of the ip addresses for servers");
+		serverIPOption.setArgs(Option.UNLIMITED_VALUES);
+		options.addOption(serverIPOption);
+
+		options.addOption("n", "numport", true, "the registry port of the servers");
+
+		Option concurrencyOption = new Option("c", "concurrency", true, "the number of requests in flight at most (default 16)");
+		concurrencyOption.setArgName("workers");
+		options.addOption(concurrencyOption);
+
+		Option rateOption = new Option("R", "rate", true, "sends requests on a fixed schedule of this many per second instead of a closed loop");
+		rateOption.setArgName("ops/s");
+		options.addOption(rateOption);
+
+		Option mixOption = new Option("m", "mix", true, "the weight of each operation (default lookup=70,reverse=10,create=10,modify=5,delete=5,get=0)");
+		mixOption.setArgName("op=weight,...");
+		options.addOption(mixOption);
+
+		Option usersOption = new Option("u", "users", true, "the number of users created for lookups before the run (default 10000)");
+		usersOption.setArgName("count");
+		options.addOption(usersOption);
+
+		Option durationOption = new Option("d", "duration", true, "how long to record requests for (default 30)");
+		durationOption.setArgName("seconds");
+		options.addOption(durationOption);
+
+		Option warmupOption = new Option("w", "warmup", true, "how long to send requests before recording them (default 5)");
+		warmupOption.setArgName("seconds");
+		options.addOption(warmupOption);
+
+		Option nearCacheOption = new Option("N", "near-cache", true, "answers lookups from a near cache of this many users per shard");
+		nearCacheOption.setArgName("entries");
+		options.addOption(nearCacheOption);
+
+		return options;
+	}
+
+	/**
+	 * Main entry of program
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		Options options = setupOptions();
+		try {
+			CommandLineParser parser = new DefaultParser();
+			CommandLine line = parser.parse(options, args);
+			if (!line.hasOption('s')) {
+				new HelpFormatter().printHelp("java LoadGenerator", options, true);
+				System.exit(1);
+			}
+			int registryPort = Integer.parseInt(line.getOptionValue('n', "1099"));
+			int workers = Integer.parseInt(line.getOptionValue('c', "16"));
+			double rate = Double.parseDouble(line.getOptionValue('R', "0"));
+			int users = Integer.parseInt(line.getOptionValue('u', "10000"));
+			long durationMillis = Long.parseLong(line.getOptionValue('d', "30")) * 1000;
+			long warmupMillis = Long.parseLong(line.getOptionValue('w', "5")) * 1000;
+
+			IdClient client = new IdClient(line.getOptionValues('s'), registryPort);
+			if (line.hasOption('N')) {
+				client.enableNearCache(Integer.parseInt(line.getOptionValue('N')), NEAR_CACHE_TTL_MILLIS, NEAR_CACHE_REFRESH_MILLIS);
+			}
+			LoadGenerator load = new LoadGenerator(client, line.getOptionValue('m', "lookup=70,reverse=10,create=10,modify=5,delete=5,get=0"));
+			System.out.println("Creating " + users + " users");
+			load.populate(Math.max(1, users));
+			System.out.println(rate > 0 ? "Sending " + rate + " requests per second with at most " + workers + " in flight"
+					: "Sending requests from " + workers + " workers");
+			load.run(workers, rate, warmupMillis, durationMillis);
+			load.report(durationMillis, rate > 0);
+			System.exit(0);
+		} catch (Exception e) {
+			System.err.println("Load generator failed: " + e);
+			System.exit(1);
+		}
+	}
+}
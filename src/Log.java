@@ -0,0 +1,413 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous logging for the server. Every subsystem has its own level, a message below it
+ * costs a single comparison. Messages that are logged are put in a lock-free ring buffer with their
+ * arguments and formatted and printed by a background thread, so a request thread never waits on
+ * stdout. When the ring is full the message is dropped and counted rather than blocking the caller.
+ *
+ * Messages use {} placeholders for their arguments, which are only turned into strings on the
+ * background thread: arguments must not be changed after they are logged.
+ */
+public class Log {
+	/**
+	 * How much is logged, from least to most
+	 */
+	public enum Level {
+		OFF, ERROR, WARN, INFO, DEBUG
+	}
+
+	/**
+	 * The parts of the server that log, each with its own level
+	 */
+	public enum Subsystem {
+		SERVER, ELECTION, REPLICATION, PERSISTENCE, RPC
+	}
+
+	private static final int CAPACITY = 1 << 14;
+	private static final int MASK = CAPACITY - 1;
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+	private static final Level[] levels = new Level[Subsystem.values().length];
+	private static final Entry[] ring = new Entry[CAPACITY];
+	// the sequence number published in each slot, a slot is ready to print once it holds the consumer's next sequence
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	private static final AtomicLong claimed = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static volatile long consumed = 0;
+	private static final PrintStream out = System.out;
+	private static final Thread writer;
+
+	static {
+		for (Subsystem subsystem : Subsystem.values()) {
+			levels[subsystem.ordinal()] = Level.INFO;
+		}
+		for (int i = 0; i < CAPACITY; i++) {
+			ring[i] = new Entry();
+			published.set(i, -1);
+		}
+		writer = new Thread(Log::drain, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+	}
+
+	/**
+	 * A message waiting in the ring
+	 */
+	private static class Entry {
+		private long millis;
+		private Level level;
+		private Subsystem subsystem;
+		private String thread;
+		private String format;
+		private Object a;
+		private Object b;
+		private Object c;
+		private Throwable thrown;
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Sets the level of a subsystem
+	 * @param subsystem the subsystem
+	 * @param level the most detailed level to log
+	 */
+	public static void setLevel(Subsystem subsystem, Level level) {
+		levels[subsystem.ordinal()] = level;
+	}
+
+	/**
+	 * Sets the level of every subsystem
+	 * @param level the most detailed level to log
+	 */
+	public static void setLevel(Level level) {
+		for (Subsystem subsystem : Subsystem.values()) {
+			setLevel(subsystem, level);
+		}
+	}
+
+	/**
+	 * Sets levels from a list like "debug" or "info,election=debug,rpc=off"; a level on its own applies to
+	 * every subsystem
+	 * @param spec the levels to set
+	 * @throws IllegalArgumentException if a subsystem or level is unknown
+	 */
+	public static void configure(String spec) {
+		for (String part : spec.split(",")) {
+			part = part.trim();
+			if (part.isEmpty()) {
+				continue;
+			}
+			int equals = part.indexOf('=');
+			if (equals < 0) {
+				setLevel(Level.valueOf(part.toUpperCase()));
+			} else {
+				Subsystem subsystem = Subsystem.valueOf(part.substring(0, equals).trim().toUpperCase());
+				setLevel(subsystem, Level.valueOf(part.substring(equals + 1).trim().toUpperCase()));
+			}
+		}
+	}
+
+	/**
+	 * Tells if messages of a level would be logged for a subsystem
+	 * @param subsystem the subsystem
+	 * @param level the level
+	 * @return true if they are logged
+	 */
+	public static boolean enabled(Subsystem subsystem, Level level) {
+		return level.compareTo(levels[subsystem.ordinal()]) <= 0;
+	}
+
+	/**
+	 * Gets the number of messages dropped because the ring was full
+	 * @return the number of messages dropped
+	 */
+	public static long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Logs a message at ERROR level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 */
+	public static void error(Subsystem subsystem, String format) {
+		log(Level.ERROR, subsystem, format, null, null, null, null);
+	}
+
+	/**
+	 * Logs a message at ERROR level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 */
+	public static void error(Subsystem subsystem, String format, Object a) {
+		log(Level.ERROR, subsystem, format, a, null, null, null);
+	}
+
+	/**
+	 * Logs a message at ERROR level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param thrown the exception to print with it
+	 */
+	public static void error(Subsystem subsystem, String format, Throwable thrown) {
+		log(Level.ERROR, subsystem, format, null, null, null, thrown);
+	}
+
+	/**
+	 * Logs a message at ERROR level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param thrown the exception to print with it
+	 */
+	public static void error(Subsystem subsystem, String format, Object a, Throwable thrown) {
+		log(Level.ERROR, subsystem, format, a, null, null, thrown);
+	}
+
+	/**
+	 * Logs a message at WARN level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 */
+	public static void warn(Subsystem subsystem, String format) {
+		log(Level.WARN, subsystem, format, null, null, null, null);
+	}
+
+	/**
+	 * Logs a message at WARN level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 */
+	public static void warn(Subsystem subsystem, String format, Object a) {
+		log(Level.WARN, subsystem, format, a, null, null, null);
+	}
+
+	/**
+	 * Logs a message at WARN level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param b the second argument
+	 */
+	public static void warn(Subsystem subsystem, String format, Object a, Object b) {
+		log(Level.WARN, subsystem, format, a, b, null, null);
+	}
+
+	/**
+	 * Logs a message at INFO level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 */
+	public static void info(Subsystem subsystem, String format) {
+		log(Level.INFO, subsystem, format, null, null, null, null);
+	}
+
+	/**
+	 * Logs a message at INFO level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 */
+	public static void info(Subsystem subsystem, String format, Object a) {
+		log(Level.INFO, subsystem, format, a, null, null, null);
+	}
+
+	/**
+	 * Logs a message at INFO level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param b the second argument
+	 */
+	public static void info(Subsystem subsystem, String format, Object a, Object b) {
+		log(Level.INFO, subsystem, format, a, b, null, null);
+	}
+
+	/**
+	 * Logs a message at INFO level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @param c the third argument
+	 */
+	public static void info(Subsystem subsystem, String format, Object a, Object b, Object c) {
+		log(Level.INFO, subsystem, format, a, b, c, null);
+	}
+
+	/**
+	 * Logs a message at DEBUG level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 */
+	public static void debug(Subsystem subsystem, String format) {
+		log(Level.DEBUG, subsystem, format, null, null, null, null);
+	}
+
+	/**
+	 * Logs a message at DEBUG level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 */
+	public static void debug(Subsystem subsystem, String format, Object a) {
+		log(Level.DEBUG, subsystem, format, a, null, null, null);
+	}
+
+	/**
+	 * Logs a message at DEBUG level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param b the second argument
+	 */
+	public static void debug(Subsystem subsystem, String format, Object a, Object b) {
+		log(Level.DEBUG, subsystem, format, a, b, null, null);
+	}
+
+	/**
+	 * Logs a message at DEBUG level
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @param c the third argument
+	 */
+	public static void debug(Subsystem subsystem, String format, Object a, Object b, Object c) {
+		log(Level.DEBUG, subsystem, format, a, b, c, null);
+	}
+
+	/**
+	 * Puts a message in the ring if its level is enabled. Never blocks: a producer claims a slot with a
+	 * compare and set and drops the message if the writer has not yet printed what was in it.
+	 * @param level the level of the message
+	 * @param subsystem the subsystem logging it
+	 * @param format the message with {} placeholders
+	 * @param a the first argument, may be null
+	 * @param b the second argument, may be null
+	 * @param c the third argument, may be null
+	 * @param thrown an exception to print with the message, may be null
+	 */
+	private static void log(Level level, Subsystem subsystem, String format, Object a, Object b, Object c, Throwable thrown) {
+		if (!enabled(subsystem, level)) {
+			return;
+		}
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - consumed >= CAPACITY) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+
+		Entry entry = ring[(int) (seq & MASK)];
+		entry.millis = System.currentTimeMillis();
+		entry.level = level;
+		entry.subsystem = subsystem;
+		entry.thread = Thread.currentThread().getName();
+		entry.format = format;
+		entry.a = a;
+		entry.b = b;
+		entry.c = c;
+		entry.thrown = thrown;
+		published.set((int) (seq & MASK), seq);
+		if (seq == consumed) {
+			// the writer may be parked on an empty ring
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Prints messages as they are published, runs on the writer thread
+	 */
+	private static void drain() {
+		StringBuilder line = new StringBuilder(256);
+		long lastDropped = 0;
+		while (true) {
+			if (!printReady(line)) {
+				out.flush();
+				long droppedNow = dropped.get();
+				if (droppedNow != lastDropped) {
+					out.println("Log: dropped " + (droppedNow - lastDropped) + " messages, the ring was full");
+					lastDropped = droppedNow;
+				}
+				// the producer of the next message unparks us, it reads consumed after publishing and
+				// we read published after setting consumed, so one of us always sees the other
+				LockSupport.park();
+			}
+		}
+	}
+
+	/**
+	 * Prints every message published so far
+	 * @param line a buffer to format messages in
+	 * @return false if there was nothing to print
+	 */
+	private static synchronized boolean printReady(StringBuilder line) {
+		boolean printed = false;
+		long next = consumed;
+		while (published.get((int) (next & MASK)) == next) {
+			Entry entry = ring[(int) (next & MASK)];
+			line.setLength(0);
+			TIME.formatTo(Instant.ofEpochMilli(entry.millis), line);
+			line.append(' ').append(entry.level);
+			if (entry.level.name().length() == 4) {
+				line.append(' ');
+			}
+			line.append(" [").append(entry.subsystem.name().toLowerCase()).append("] [").append(entry.thread).append("] ");
+			format(line, entry.format, entry.a, entry.b, entry.c);
+			out.println(line);
+			if (entry.thrown != null) {
+				entry.thrown.printStackTrace(out);
+			}
+			entry.a = entry.b = entry.c = null;
+			entry.thrown = null;
+			next++;
+			consumed = next;
+			printed = true;
+		}
+		return printed;
+	}
+
+	/**
+	 * Prints every message logged so far, called when the server shuts down
+	 */
+	public static void flush() {
+		printReady(new StringBuilder(256));
+		out.flush();
+	}
+
+	/**
+	 * Replaces the {} placeholders of a message with its arguments
+	 * @param line the buffer to append to
+	 * @param format the message
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @param c the third argument
+	 */
+	private static void format(StringBuilder line, String format, Object a, Object b, Object c) {
+		int argument = 0;
+		int from = 0;
+		int at;
+		while (argument < 3 && (at = format.indexOf("{}", from)) >= 0) {
+			line.append(format, from, at);
+			line.append(argument == 0 ? a : argument == 1 ? b : c);
+			argument++;
+			from = at + 2;
+		}
+		line.append(format, from, format.length());
+	}
+}
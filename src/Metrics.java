@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters, gauges and latency histograms of the server, rendered in the Prometheus text format by
+ * render, the getMetrics remote method and an optional HTTP endpoint.
+ *
+ * Names may carry labels, e.g. idserver_rpc_seconds{method="lookup"}. Recording never locks: counters
+ * are LongAdders and histograms keep log-linear buckets in an AtomicLongArray, 16 buckets per power of
+ * two, so a percentile is within about 6% of the true value whatever its magnitude.
+ */
+public class Metrics {
+	// the 1.0 quantile is the largest duration recorded
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999, 1.0 };
+
+	// sorted so metrics sharing a name and differing in labels are printed together
+	private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+	private static final Map<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * A distribution of durations
+	 */
+	public static class Histogram {
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Records a duration
+		 * @param nanos the duration in nanoseconds
+		 */
+		public void record(long nanos) {
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			buckets.incrementAndGet(bucketOf(nanos));
+			count.increment();
+			sum.add(nanos);
+			max.accumulateAndGet(nanos, Math::max);
+		}
+
+		/**
+		 * Records the time since a start
+		 * @param startNanos when the timed work started, from System.nanoTime
+		 */
+		public void recordSince(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		/**
+		 * Gets the number of durations recorded
+		 * @return the count
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+
+		/**
+		 * Gets the total of the durations recorded
+		 * @return the total in nanoseconds
+		 */
+		public long getSum() {
+			return sum.sum();
+		}
+
+		/**
+		 * Estimates a percentile
+		 * @param quantile between 0 and 1
+		 * @return the duration in nanoseconds that the quantile of the recorded durations did not exceed
+		 */
+		public long percentile(double quantile) {
+			long total = 0;
+			long[] snapshot = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * total));
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += snapshot[i];
+				if (seen >= rank) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		/**
+		 * Finds the bucket of a value: values below 16 have a bucket each, above that every power of
+		 * two is split into 16 buckets
+		 * @param value the value
+		 * @return the index of its bucket
+		 */
+		private static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		/**
+		 * Gets the largest value of a bucket
+		 * @param bucket the index of the bucket
+		 * @return the largest value that falls in it
+		 */
+		private static long upperBound(int bucket) {
+			if (bucket < SUB_BUCKETS) {
+				return bucket;
+			}
+			int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+			long sub = bucket % SUB_BUCKETS;
+			long lower = (1L << exponent) | (sub << (exponent - SUB_BITS));
+			return lower + (1L << (exponent - SUB_BITS)) - 1;
+		}
+	}
+
+	/**
+	 * Gets a counter, creating it the first time
+	 * @param name the name of the counter, with its labels
+	 * @return the counter
+	 */
+	public static LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	/**
+	 * Gets a histogram, creating it the first time
+	 * @param name the name of the histogram, with its labels
+	 * @return the histogram
+	 */
+	public static Histogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new Histogram());
+	}
+
+	/**
+	 * Registers a value that is read when the metrics are rendered
+	 * @param name the name of the gauge, with its labels
+	 * @param value reads the value
+	 */
+	public static void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Wraps a remote object so every call of a method of its interface is timed in the histogram
+	 * idserver_rpc_seconds{method="name"} and every exception counted in idserver_rpc_errors_total
+	 * @param type the remote interface
+	 * @param target the object to wrap
+	 * @param <T> the remote interface
+	 * @return the wrapped object
+	 */
+	public static <T> T timed(Class<T> type, T target) {
+		Map<Method, Histogram> latencies = new ConcurrentHashMap<Method, Histogram>();
+		InvocationHandler handler = (proxy, method, args) -> {
+			if (method.getDeclaringClass() == Object.class) {
+				return method.invoke(target, args);
+			}
+			Histogram latency = latencies.computeIfAbsent(method, m -> histogram("idserver_rpc_seconds{method=\"" + m.getName() + "\"}"));
+			long start = System.nanoTime();
+			try {
+				return method.invoke(target, args);
+			} catch (InvocationTargetException e) {
+				counter("idserver_rpc_errors_total{method=\"" + method.getName() + "\"}").increment();
+				throw e.getCause();
+			} finally {
+				latency.recordSince(start);
+			}
+		};
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	/**
+	 * Renders every metric in the Prometheus text format, durations in seconds
+	 * @return the metrics
+	 */
+	public static String render() {
+		StringBuilder out = new StringBuilder(4096);
+		String lastName = null;
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+			lastName = type(out, entry.getKey(), "counter", lastName);
+			out.append(entry.getKey()).append(' ').append(entry.getValue().sum()).append('\n');
+		}
+		for (Map.Entry<String, LongSupplier> entry : gauges.entrySet()) {
+			lastName = type(out, entry.getKey(), "gauge", lastName);
+			out.append(entry.getKey()).append(' ').append(entry.getValue().getAsLong()).append('\n');
+		}
+		for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+			lastName = type(out, entry.getKey(), "summary", lastName);
+			String name = baseName(entry.getKey());
+			String labels = entry.getKey().substring(name.length());
+			Histogram histogram = entry.getValue();
+			for (double quantile : QUANTILES) {
+				String quantileLabel = "quantile=\"" + quantile + "\"";
+				out.append(name).append(labels.isEmpty() ? "{" + quantileLabel + "}" : labels.substring(0, labels.length() - 1) + "," + quantileLabel + "}")
+						.append(' ').append(seconds(histogram.percentile(quantile))).append('\n');
+			}
+			out.append(name).append("_sum").append(labels).append(' ').append(seconds(histogram.getSum())).append('\n');
+			out.append(name).append("_count").append(labels).append(' ').append(histogram.getCount()).append('\n');
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Serves render over HTTP at /metrics
+	 * @param port the TCP port to listen on
+	 * @throws IOException if the port could not be bound
+	 */
+	public static void serve(int port) throws IOException {
+		HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+		http.createContext("/metrics", exchange -> {
+			byte[] body = render().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		http.setExecutor(Threads.newExecutor("metrics-http"));
+		http.start();
+	}
+
+	/**
+	 * Prints the TYPE line of a metric the first time its name comes up
+	 * @param out the buffer to print to
+	 * @param key the name of the metric with its labels
+	 * @param type the Prometheus type of the metric
+	 * @param lastName the name of the metric printed before
+	 * @return the name of this metric
+	 */
+	private static String type(StringBuilder out, String key, String type, String lastName) {
+		String name = baseName(key);
+		if (!name.equals(lastName)) {
+			out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		}
+		return name;
+	}
+
+	/**
+	 * Strips the labels off a metric
+	 * @param key the name of the metric with its labels
+	 * @return the name
+	 */
+	private static String baseName(String key) {
+		int brace = key.indexOf('{');
+		return brace < 0 ? key : key.substring(0, brace);
+	}
+
+	/**
+	 * Converts nanoseconds to seconds for printing
+	 * @param nanos the duration
+	 * @return the duration in seconds
+	 */
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+}
@@ -0,0 +1,344 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A bounded cache of lookup answers kept by a client, so hot users are answered without a call to
+ * the server. Every user found is kept under both its login name and its uuid, and users not found
+ * under the name or uuid asked for, until the server reports a change to them through a
+ * CacheInvalidation or they are older than the time to live.
+ *
+ * Entries are evicted least recently used first, but a new entry only takes the place of the next
+ * victim when it was asked for more often lately, as in TinyLFU: the frequencies are counted in a
+ * count-min sketch of counters up to 15 that are halved every ten times the capacity in accesses, so
+ * a burst of users asked for once does not flush the users asked for all the time.
+ *
+ * An answer is not cached if its user was invalidated while it was being asked for, otherwise the
+ * old copy of a user renamed in the meantime could be kept after the invalidation dropped it. The
+ * last 256 keys invalidated are remembered to tell, past that every answer in flight is dropped.
+ */
+public class NearCache {
+	private static final int SKETCH_DEPTH = 4;
+	private static final int MAX_FREQUENCY = 15;
+	private static final int RECENT_INVALIDATIONS = 256;
+
+	/**
+	 * An answer kept in the cache
+	 */
+	private static class Entry {
+		private final UserRecord record;
+		private final Object key;
+		private final long expiresAt;
+
+		/**
+		 * Constructs an entry
+		 * @param record the answer
+		 * @param key the login name or uuid it was asked for
+		 * @param expiresAt when it may no longer be used, from System.nanoTime
+		 */
+		private Entry(UserRecord record, Object key, long expiresAt) {
+			this.record = record;
+			this.key = key;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttlNanos;
+	private final long maxLagNanos;
+
+	// every key of every entry, and the entries themselves from least to most recently used
+	private final Map<Object, Entry> index = new HashMap<Object, Entry>();
+	private final LinkedHashMap<Entry, Entry> entries = new LinkedHashMap<Entry, Entry>(16, 0.75f, true);
+
+	private final byte[] sketch;
+	private final int sketchMask;
+	private int accesses = 0;
+
+	// the version the invalidations reached, -1 until the first one, and when it was asked for
+	private long seq = -1;
+	private long refreshedAt = 0;
+	// the number of keys invalidated so far, and the last of them
+	private long epoch = 0;
+	private final Object[] recent = new Object[RECENT_INVALIDATIONS];
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Constructs a cache
+	 * @param maxEntries the most answers kept
+	 * @param ttlMillis the longest an answer is kept
+	 * @param maxLagMillis the longest the cache answers after it last learned of the changes on the server
+	 */
+	public NearCache(int maxEntries, long ttlMillis, long maxLagMillis) {
+		this.maxEntries = maxEntries;
+		this.ttlNanos = ttlMillis * 1000000L;
+		this.maxLagNanos = maxLagMillis * 1000000L;
+		int size = Integer.highestOneBit(Math.max(64, maxEntries * 8 - 1)) << 1;
+		this.sketch = new byte[size];
+		this.sketchMask = size - 1;
+	}
+
+	/**
+	 * Gets the answer kept for a login name or uuid, and counts the access
+	 * @param key the login name or uuid
+	 * @return the answer, or null if none is kept or the cache has not heard from the server lately
+	 */
+	public synchronized UserRecord get(Object key) {
+		countAccess(key);
+		Entry entry = index.get(key);
+		long now = System.nanoTime();
+		if (entry == null || seq < 0 || now - refreshedAt > maxLagNanos) {
+			misses++;
+			return null;
+		}
+		if (now - entry.expiresAt > 0) {
+			remove(entry);
+			misses++;
+			return null;
+		}
+		entries.get(entry);
+		hits++;
+		return entry.record;
+	}
+
+	/**
+	 * Gets the number of keys invalidated, to pass to put with an answer asked for after reading it
+	 * @return the number of keys invalidated so far
+	 */
+	public synchronized long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Keeps an answer from the server unless its user was invalidated since it was asked for
+	 * @param key the login name or uuid that was asked for
+	 * @param record the answer
+	 * @param askedAt what getEpoch returned before the answer was asked for
+	 */
+	public synchronized void put(Object key, UserRecord record, long askedAt) {
+		if (epoch - askedAt >= RECENT_INVALIDATIONS || seq < 0 || record.getVersion() < seq) {
+			return;
+		}
+		for (long i = askedAt; i < epoch; i++) {
+			Object invalidated = recent[(int) (i % RECENT_INVALIDATIONS)];
+			if (invalidated.equals(key) || (record.exists()
+					&& (invalidated.equals(record.getLoginName()) || invalidated.equals(record.getUUID())))) {
+				return;
+			}
+		}
+		// the answer is newer than any other kept under its keys, say a miss before the user was created
+		if (record.exists()) {
+			removeKey(record.getLoginName());
+			removeKey(record.getUUID());
+		} else {
+			removeKey(key);
+		}
+		if (entries.size() >= maxEntries) {
+			Entry victim = entries.keySet().iterator().next();
+			if (frequency(key) <= frequency(victim)) {
+				return;
+			}
+			remove(victim);
+			evictions++;
+		}
+		Entry entry = new Entry(record, key, System.nanoTime() + ttlNanos);
+		entries.put(entry, entry);
+		if (record.exists()) {
+			index.put(record.getLoginName(), entry);
+			index.put(record.getUUID(), entry);
+		} else {
+			index.put(key, entry);
+		}
+	}
+
+	/**
+	 * Drops the answers for the users changed on the server
+	 * @param invalidation the changes, as returned by getInvalidationsSince
+	 * @param askedAt when the invalidation was asked for, from System.nanoTime
+	 */
+	public synchronized void apply(CacheInvalidation invalidation, long askedAt) {
+		if (invalidation.isAll()) {
+			clear();
+		} else {
+			for (String loginName : invalidation.getLoginNames()) {
+				invalidate(loginName);
+			}
+			for (UUID uuid : invalidation.getUUIDs()) {
+				invalidate(uuid);
+			}
+		}
+		seq = invalidation.getSeq();
+		if (!invalidation.hasMore()) {
+			refreshedAt = askedAt;
+		}
+	}
+
+	/**
+	 * Gets the version of the database the cache reflects
+	 * @return the sequence number of the last change applied, -1 before the first invalidation
+	 */
+	public synchronized long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Drops the answers for a login name or uuid, and the other key of the user kept under it
+	 * @param key the login name or uuid
+	 */
+	public synchronized void invalidate(Object key) {
+		if (index.containsKey(key)) {
+			removeKey(key);
+			invalidations++;
+		}
+		recent[(int) (epoch % RECENT_INVALIDATIONS)] = key;
+		epoch++;
+	}
+
+	/**
+	 * Drops every answer
+	 */
+	public synchronized void clear() {
+		invalidations += entries.size();
+		index.clear();
+		entries.clear();
+		// drops every answer in flight too
+		epoch += RECENT_INVALIDATIONS;
+	}
+
+	/**
+	 * Gets the number of answers kept
+	 * @return the number of entries
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the number of lookups answered by the cache
+	 * @return the number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Gets the number of lookups the cache could not answer
+	 * @return the number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Gets the number of answers dropped to make room for others
+	 * @return the number of evictions
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Gets the number of answers dropped because the server reported a change
+	 * @return the number of invalidations
+	 */
+	public synchronized long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Removes an entry under every key it is kept under
+	 * @param entry the entry
+	 */
+	private void remove(Entry entry) {
+		entries.remove(entry);
+		if (entry.record.exists()) {
+			index.remove(entry.record.getLoginName(), entry);
+			index.remove(entry.record.getUUID(), entry);
+		} else {
+			index.remove(entry.key, entry);
+		}
+	}
+
+	/**
+	 * Removes the entry kept under a key, if any
+	 * @param key the login name or uuid
+	 */
+	private void removeKey(Object key) {
+		Entry entry = index.get(key);
+		if (entry != null) {
+			remove(entry);
+		}
+	}
+
+	/**
+	 * Estimates how often an entry was asked for lately, by either of its keys
+	 * @param entry the entry
+	 * @return the higher estimate of its keys
+	 */
+	private int frequency(Entry entry) {
+		if (!entry.record.exists()) {
+			return frequency(entry.key);
+		}
+		return Math.max(frequency(entry.record.getLoginName()), frequency(entry.record.getUUID()));
+	}
+
+	/**
+	 * Estimates how often a key was asked for lately
+	 * @param key the login name or uuid
+	 * @return the smallest of its counters
+	 */
+	private int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int min = MAX_FREQUENCY;
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			min = Math.min(min, sketch[slot(hash, i)]);
+		}
+		return min;
+	}
+
+	/**
+	 * Counts an access to a key in the sketch, halving every counter once enough were counted
+	 * @param key the login name or uuid
+	 */
+	private void countAccess(Object key) {
+		int hash = spread(key.hashCode());
+		for (int i = 0; i < SKETCH_DEPTH; i++) {
+			int slot = slot(hash, i);
+			if (sketch[slot] < MAX_FREQUENCY) {
+				sketch[slot]++;
+			}
+		}
+		if (++accesses >= maxEntries * 10) {
+			accesses = 0;
+			for (int i = 0; i < sketch.length; i++) {
+				sketch[i] >>= 1;
+			}
+		}
+	}
+
+	/**
+	 * Gets the counter of a key in one row of the sketch
+	 * @param hash the spread hash of the key
+	 * @param row the row
+	 * @return the index of the counter
+	 */
+	private int slot(int hash, int row) {
+		int h = hash * (0x9E3779B9 + 2 * row);
+		return (h ^ (h >>> 16)) & sketchMask;
+	}
+
+	/**
+	 * Mixes the bits of a hash code so keys with similar hash codes land apart
+	 * @param hashCode the hash code
+	 * @return the mixed hash
+	 */
+	private static int spread(int hashCode) {
+		int h = hashCode * 0x85EBCA6B;
+		return h ^ (h >>> 13);
+	}
+}
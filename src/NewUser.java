@@ -0,0 +1,48 @@
+import java.io.Serializable;
+
+/**
+ * A user to be created by a batch create, the server assigns its UUID
+ */
+public class NewUser implements Serializable {
+	static public final long serialVersionUID = 2360018754130953L;
+
+	private final String loginName;
+	private final String realName;
+	private final String password;
+
+	/**
+	 * Constructs a user to be created
+	 * @param loginName the login name of the new user
+	 * @param realName the real name of the new user
+	 * @param password the password of the new user
+	 */
+	public NewUser(String loginName, String realName, String password) {
+		this.loginName = loginName;
+		this.realName = realName;
+		this.password = password;
+	}
+
+	/**
+	 * Gets the login name of the new user
+	 * @return the login name
+	 */
+	public String getLoginName() {
+		return loginName;
+	}
+
+	/**
+	 * Gets the real name of the new user
+	 * @return the real name
+	 */
+	public String getRealName() {
+		return realName;
+	}
+
+	/**
+	 * Gets the password of the new user
+	 * @return the password
+	 */
+	public String getPassword() {
+		return password;
+	}
+}
@@ -0,0 +1,28 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a server asked to change the database while it is not the leader. The change was not
+ * applied, the caller should send it to the leader instead.
+ */
+public class NotLeaderException extends RemoteException {
+	static public final long serialVersionUID = 4419027736505218L;
+
+	private final ServerInfo leader;
+
+	/**
+	 * Constructs the exception
+	 * @param leader the leader as known by the server, may be null during an election
+	 */
+	public NotLeaderException(ServerInfo leader) {
+		super(leader == null ? "Not the leader, no leader is known" : "Not the leader, the leader is " + leader.getAddress());
+		this.leader = leader;
+	}
+
+	/**
+	 * Gets the leader the change should be sent to
+	 * @return the leader, or null if the server does not know one
+	 */
+	public ServerInfo getLeader() {
+		return leader;
+	}
+}
@@ -0,0 +1,97 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the remote stub of every other server so talking to a server takes one remote call instead
+ * of a registry lookup followed by the call. A stub is dropped as soon as a call through it fails or
+ * the server it belongs to leaves or rejoins.
+ */
+public class PeerStubs {
+	private final int registryPort;
+	private final ConcurrentHashMap<ServerInfo, Id> stubs = new ConcurrentHashMap<ServerInfo, Id>();
+
+	/**
+	 * A call made through a stub
+	 * @param <T> what the call returns
+	 */
+	public interface RemoteCall<T> {
+		/**
+		 * Makes the call
+		 * @param stub the stub of the server
+		 * @return what the server returned
+		 * @throws RemoteException
+		 */
+		T call(Id stub) throws RemoteException;
+	}
+
+	/**
+	 * Constructs an empty cache
+	 * @param registryPort the port every server's registry listens on
+	 */
+	public PeerStubs(int registryPort) {
+		this.registryPort = registryPort;
+	}
+
+	/**
+	 * Gets the stub of a server, looking it up in the server's registry the first time
+	 * @param server the server to get the stub of
+	 * @return the stub
+	 * @throws RemoteException if the registry could not be reached
+	 * @throws NotBoundException if the server is not bound in its registry
+	 */
+	public Id get(ServerInfo server) throws RemoteException, NotBoundException {
+		Id stub = stubs.get(server);
+		if (stub == null) {
+			stub = (Id) LocateRegistry.getRegistry(server.getAddress(), registryPort).lookup("server");
+			stubs.put(server, stub);
+		}
+		return stub;
+	}
+
+	/**
+	 * Checks if the stub of a server is cached
+	 * @param server the server to check
+	 * @return true if get will not contact the registry
+	 */
+	public boolean contains(ServerInfo server) {
+		return stubs.containsKey(server);
+	}
+
+	/**
+	 * Makes a call to a server, dropping its stub if the call fails
+	 * @param server the server to call
+	 * @param call the call to make
+	 * @param <T> what the call returns
+	 * @return what the server returned
+	 * @throws RemoteException if the call failed
+	 * @throws NotBoundException if the server is not bound in its registry
+	 */
+	public <T> T call(ServerInfo server, RemoteCall<T> call) throws RemoteException, NotBoundException {
+		Id stub = get(server);
+		try {
+			return call.call(stub);
+		} catch (RemoteException e) {
+			stubs.remove(server, stub);
+			throw e;
+		}
+	}
+
+	/**
+	 * Drops the stub of a server
+	 * @param server the server whose stub is no longer valid
+	 */
+	public void invalidate(ServerInfo server) {
+		stubs.remove(server);
+	}
+
+	/**
+	 * Drops every stub of a server at an address, used when a server joins since it may be a
+	 * restarted server whose old stubs are dead
+	 * @param address the address of the server
+	 */
+	public void invalidate(String address) {
+		stubs.keySet().removeIf(server -> address.equals(server.getAddress()));
+	}
+}
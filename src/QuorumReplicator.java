@@ -0,0 +1,224 @@
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Pushes the changes of the leader to its backups as soon as they are made and lets writers wait
+ * until enough backups have them, so an acknowledged write survives the loss of the leader.
+ *
+ * Every backup has its own sender thread with at most one push in flight. A push carries every change
+ * made since the previous one, so writers arriving while a push is in flight share the next one instead
+ * of each paying for a round trip. Backups that fell too far behind for the replication log catch up
+ * by copying from the leader as before and are pushed to again once they have.
+ */
+public class QuorumReplicator implements UserStore.ChangeListener {
+	private static final long IDLE_WAIT_MS = 200;
+	private static final long RETRY_MS = 100;
+
+	private final ReplicationLog changes;
+	private final PeerStubs stubs;
+	private final int quorum;
+	private final int batchSize;
+	private final long timeoutMillis;
+	private final Supplier<ServerInfo> self;
+	private final Supplier<List<ServerInfo>> backups;
+	private final BooleanSupplier leading;
+
+	// the last sequence number each backup confirmed, writers wait on this map for acknowledgements
+	private final Map<ServerInfo, Long> acked = new ConcurrentHashMap<ServerInfo, Long>();
+	private final Set<ServerInfo> sending = Collections.newSetFromMap(new ConcurrentHashMap<ServerInfo, Boolean>());
+	// senders wait on this for new changes
+	private final Object newChanges = new Object();
+
+	/**
+	 * Constructs a replicator, nothing is pushed until start is called
+	 * @param changes the replication log of the leader
+	 * @param stubs the stubs of the other servers
+	 * @param quorum the number of backups that must have a change before its write is acknowledged
+	 * @param batchSize the most changes sent in one push
+	 * @param timeoutMillis how long a writer waits for the quorum
+	 * @param self gives this server
+	 * @param backups gives the backups of this server's shard
+	 * @param leading tells if this server is the leader
+	 */
+	public QuorumReplicator(ReplicationLog changes, PeerStubs stubs, int quorum, int batchSize, long timeoutMillis,
+			Supplier<ServerInfo> self, Supplier<List<ServerInfo>> backups, BooleanSupplier leading) {
+		this.changes = changes;
+		this.stubs = stubs;
+		this.quorum = quorum;
+		this.batchSize = batchSize;
+		this.timeoutMillis = timeoutMillis;
+		this.self = self;
+		this.backups = backups;
+		this.leading = leading;
+	}
+
+	/**
+	 * Starts a thread that keeps one sender running for every backup
+	 */
+	public void start() {
+		Threads.start("replicator", () -> {
+			while (true) {
+				for (ServerInfo backup : backups.get()) {
+					if (sending.add(backup)) {
+						Threads.start("replicator-" + backup.getAddress(), () -> send(backup));
+					}
+				}
+				try {
+					Thread.sleep(IDLE_WAIT_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+	}
+
+	@Override
+	public void changed(List<UserChange> changed) {
+		synchronized (newChanges) {
+			newChanges.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until enough backups have every change up to a sequence number
+	 * @param seq the sequence number of the write
+	 * @throws UnconfirmedWriteException if the quorum was not reached in time, the write is kept by the leader
+	 */
+	public void await(long seq) throws UnconfirmedWriteException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (acked) {
+			while (true) {
+				int confirmed = confirmed(seq);
+				if (confirmed >= quorum) {
+					return;
+				}
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					throw new UnconfirmedWriteException(seq, confirmed, quorum);
+				}
+				try {
+					acked.wait(left);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UnconfirmedWriteException(seq, confirmed, quorum);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the backups of the shard that confirmed a sequence number
+	 * @param seq the sequence number
+	 * @return the number of backups
+	 */
+	private int confirmed(long seq) {
+		Set<ServerInfo> current = new HashSet<ServerInfo>(backups.get());
+		int confirmed = 0;
+		for (Map.Entry<ServerInfo, Long> entry : acked.entrySet()) {
+			if (entry.getValue() >= seq && current.contains(entry.getKey())) {
+				confirmed++;
+			}
+		}
+		return confirmed;
+	}
+
+	/**
+	 * Pushes changes to one backup for as long as it is a backup of this server
+	 * @param backup the backup
+	 */
+	private void send(ServerInfo backup) {
+		try {
+			while (backups.get().contains(backup)) {
+				if (!leading.getAsBoolean()) {
+					acked.remove(backup);
+					pause(IDLE_WAIT_MS);
+					continue;
+				}
+				try {
+					Long known = acked.get(backup);
+					if (known == null) {
+						// ask where the backup is with an empty push
+						long at = changes.getLastSeq();
+						record(backup, push(backup, new ReplicationBatch(at, at, Collections.<UserChange>emptyList(), null)));
+						continue;
+					}
+					List<UserChange> batch = changes.since(known, batchSize);
+					if (batch == null) {
+						// too far behind, or following another leader, it copies from us on its own
+						acked.remove(backup);
+						pause(IDLE_WAIT_MS);
+						continue;
+					}
+					if (batch.isEmpty()) {
+						synchronized (newChanges) {
+							if (changes.getLastSeq() == known) {
+								newChanges.wait(IDLE_WAIT_MS);
+							}
+						}
+						continue;
+					}
+					long last = batch.get(batch.size() - 1).getSeq();
+					record(backup, push(backup, new ReplicationBatch(last, changes.getLastSeq(), batch, null)));
+				} catch (RemoteException | NotBoundException e) {
+					acked.remove(backup);
+					pause(RETRY_MS);
+				}
+			}
+		} catch (InterruptedException e) {
+			// the server is shutting down
+		} finally {
+			acked.remove(backup);
+			sending.remove(backup);
+		}
+	}
+
+	/**
+	 * Sends changes to a backup
+	 * @param backup the backup
+	 * @param batch the changes
+	 * @return the sequence number the backup is at afterwards, negative if it does not follow us
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	private long push(ServerInfo backup, ReplicationBatch batch) throws RemoteException, NotBoundException {
+		ServerInfo leader = self.get();
+		return stubs.call(backup, stub -> stub.pushChanges(leader, batch));
+	}
+
+	/**
+	 * Records what a backup confirmed and wakes the writers waiting for it
+	 * @param backup the backup
+	 * @param seq the sequence number it is at, negative if it does not follow us
+	 * @throws InterruptedException
+	 */
+	private void record(ServerInfo backup, long seq) throws InterruptedException {
+		synchronized (acked) {
+			if (seq < 0) {
+				acked.remove(backup);
+			} else {
+				acked.put(backup, seq);
+				acked.notifyAll();
+			}
+		}
+		if (seq < 0) {
+			pause(IDLE_WAIT_MS);
+		}
+	}
+
+	/**
+	 * Sleeps between attempts
+	 * @param millis how long to sleep
+	 * @throws InterruptedException
+	 */
+	private static void pause(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+}
@@ -0,0 +1,69 @@
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * What a backup receives from the leader when it asks for changes: either the changes since the
+ * last one it applied, or a full copy of the database when those changes are no longer known.
+ */
+public class ReplicationBatch implements Serializable {
+	static public final long serialVersionUID = 4416729301846L;
+
+	private final long seq;
+	private final long leaderSeq;
+	private final List<UserChange> changes;
+	private final List<User> users;
+
+	/**
+	 * Constructs a batch
+	 * @param seq the sequence number of the leader that this batch brings the backup up to
+	 * @param leaderSeq the last sequence number of the leader when the batch was made
+	 * @param changes the changes to apply, null when sending a full copy
+	 * @param users every user in the database, null when sending changes
+	 */
+	public ReplicationBatch(long seq, long leaderSeq, List<UserChange> changes, List<User> users) {
+		this.seq = seq;
+		this.leaderSeq = leaderSeq;
+		this.changes = changes;
+		this.users = users;
+	}
+
+	/**
+	 * Gets the sequence number the batch brings the backup up to
+	 * @return the sequence number
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets how far the leader was when the batch was made, the backup is behind until it gets there
+	 * @return the last sequence number of the leader
+	 */
+	public long getLeaderSeq() {
+		return leaderSeq;
+	}
+
+	/**
+	 * Checks if this batch is a full copy of the database
+	 * @return true if the backup must replace its database with getUsers
+	 */
+	public boolean isFull() {
+		return users != null;
+	}
+
+	/**
+	 * Gets the changes to apply in order
+	 * @return the changes, null for a full copy
+	 */
+	public List<UserChange> getChanges() {
+		return changes;
+	}
+
+	/**
+	 * Gets every user in the database
+	 * @return the users, null unless this is a full copy
+	 */
+	public List<User> getUsers() {
+		return users;
+	}
+}
@@ -0,0 +1,76 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the most recent changes made to a UserStore in a ring so backups can ask for the changes
+ * since the last one they applied instead of copying the whole database. Changes published together
+ * are always handed out together, so a backup applies a batch write as one unit like the leader did.
+ */
+public class ReplicationLog implements UserStore.ChangeListener {
+	private final UserChange[] ring;
+	private final boolean[] endsUnit;
+	private long lastSeq;
+	private int count = 0;
+
+	/**
+	 * Constructs an empty replication log
+	 * @param capacity the number of changes to keep
+	 * @param seq the sequence number of the store the log starts at
+	 */
+	public ReplicationLog(int capacity, long seq) {
+		this.ring = new UserChange[capacity];
+		this.endsUnit = new boolean[capacity];
+		this.lastSeq = seq;
+	}
+
+	@Override
+	public synchronized void changed(List<UserChange> changes) {
+		for (int i = 0; i < changes.size(); i++) {
+			UserChange change = changes.get(i);
+			if (change.getSeq() != lastSeq + 1) {
+				// a gap means we can no longer tell which changes are missing
+				count = 0;
+			}
+			ring[(int) (change.getSeq() % ring.length)] = change;
+			endsUnit[(int) (change.getSeq() % ring.length)] = i == changes.size() - 1;
+			lastSeq = change.getSeq();
+			count = Math.min(count + 1, ring.length);
+		}
+	}
+
+	@Override
+	public synchronized void replaced(long seq) {
+		count = 0;
+		lastSeq = seq;
+	}
+
+	/**
+	 * Gets the changes made after a sequence number
+	 * @param seq the sequence number of the last change the caller has
+	 * @param max the most changes to return, exceeded only to finish the changes published with the last one
+	 * @return the changes in order, or null if they are no longer kept or the caller is ahead of us
+	 */
+	public synchronized List<UserChange> since(long seq, int max) {
+		long firstSeq = lastSeq - count + 1;
+		if (seq < firstSeq - 1 || seq > lastSeq) {
+			return null;
+		}
+		long end = Math.min(lastSeq, seq + max);
+		while (end < lastSeq && !endsUnit[(int) (end % ring.length)]) {
+			end++;
+		}
+		List<UserChange> changes = new ArrayList<UserChange>((int) (end - seq));
+		for (long s = seq + 1; s <= end; s++) {
+			changes.add(ring[(int) (s % ring.length)]);
+		}
+		return changes;
+	}
+
+	/**
+	 * Gets the sequence number of the last change in the log
+	 * @return the last sequence number
+	 */
+	public synchronized long getLastSeq() {
+		return lastSeq;
+	}
+}
@@ -1,3 +1,4 @@
+import java.util.Objects;
 import java.io.Serializable;
 public class ServerInfo implements Comparable<ServerInfo>,Serializable{
     static public final long serialVersionUID = 239423409294L;
@@ -7,6 +8,12 @@ public class ServerInfo implements Comparable<ServerInfo>,Serializable{
         this.address = address;
     }
 
+    public ServerInfo(int pid, String address, int shard){
+        this.pid = pid;
+        this.address = address;
+        this.shard = shard;
+    }
+
     public int getPID(){
         return pid;
     }
@@ -23,14 +30,27 @@ public class ServerInfo implements Comparable<ServerInfo>,Serializable{
         this.address = newAddress;
     }
 
+    /**
+     * Gets the shard of the user database this server holds, each shard has its own leader
+     * @return the shard id
+     */
+    public int getShard(){
+        return shard;
+    }
+
+    public void setShard(int shard){
+        this.shard = shard;
+    }
+
     private int pid = -1;
     private String address = null;
+    private int shard = 0;
 
     @Override
     public int compareTo(ServerInfo other){
         if(other.pid > pid) return -1;
         if(other.pid < pid) return  1;
-        if(other.address == address){
+        if(Objects.equals(other.address, address)){
             return 0;
         }
 
@@ -38,6 +58,18 @@ public class ServerInfo implements Comparable<ServerInfo>,Serializable{
         throw new RuntimeException("PID allocation failed: Two distinct servers have the same PID, cannot run election");
     }
 
+    @Override
+    public boolean equals(Object other){
+        if(!(other instanceof ServerInfo)) return false;
+        ServerInfo that = (ServerInfo) other;
+        return pid == that.pid && Objects.equals(address, that.address);
+    }
+
+    @Override
+    public int hashCode(){
+        return 31 * pid + Objects.hashCode(address);
+    }
+
     //trash langauge requires us to do this
     //private void writeObject(java.io.ObjectOutputStream out) throws IOException{
     //}
@@ -0,0 +1,122 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.UUID;
+
+/**
+ * Consistent hashing of users onto shards. Every shard owns many points on a ring of 32 bit
+ * positions and a login name belongs to the shard owning the first point at or after its position,
+ * so adding a shard only moves the users that now fall before its points.
+ *
+ * A UUID carries the position of the login name it was created for in its top 32 bits, so a user
+ * can be found by UUID on the same shard as by login name. A user renamed onto another shard keeps
+ * its UUID and has to be looked for on the other shards.
+ */
+public class ShardRing {
+	private static final int VIRTUAL_NODES = 128;
+
+	private final SortedSet<Integer> shards;
+	private final long[] points;
+	private final int[] owners;
+
+	/**
+	 * Constructs the ring of the given shards
+	 * @param shardIds the ids of the shards
+	 */
+	public ShardRing(Collection<Integer> shardIds) {
+		this.shards = Collections.unmodifiableSortedSet(new TreeSet<Integer>(shardIds));
+		long[] keyed = new long[shards.size() * VIRTUAL_NODES];
+		int i = 0;
+		for (int shard : shards) {
+			for (int v = 0; v < VIRTUAL_NODES; v++) {
+				// the position in the top bits sorts the points, the shard rides along below it, and
+				// flipping the sign bit makes the signed sort order them as unsigned
+				keyed[i++] = (position("shard-" + shard + "-" + v) << 32 | (shard & 0xFFFFFFFFL)) ^ Long.MIN_VALUE;
+			}
+		}
+		Arrays.sort(keyed);
+		points = new long[keyed.length];
+		owners = new int[keyed.length];
+		for (i = 0; i < keyed.length; i++) {
+			points[i] = (keyed[i] ^ Long.MIN_VALUE) >>> 32;
+			owners[i] = (int) keyed[i];
+		}
+	}
+
+	/**
+	 * Gets the shards on the ring
+	 * @return the shard ids in order
+	 */
+	public SortedSet<Integer> getShards() {
+		return shards;
+	}
+
+	/**
+	 * Gets the shard a login name belongs to
+	 * @param loginName the login name
+	 * @return the shard id
+	 */
+	public int shardOf(String loginName) {
+		return shardAt(position(loginName));
+	}
+
+	/**
+	 * Gets the shard a UUID was created on, the shard of the login name it was created for
+	 * @param uuid the uuid
+	 * @return the shard id
+	 */
+	public int shardOf(UUID uuid) {
+		return shardAt(uuid.getMostSignificantBits() >>> 32);
+	}
+
+	/**
+	 * Finds the owner of a position
+	 * @param position a position on the ring
+	 * @return the shard owning the first point at or after the position
+	 */
+	private int shardAt(long position) {
+		if (owners.length == 0) {
+			return 0;
+		}
+		int i = Arrays.binarySearch(points, position);
+		if (i < 0) {
+			i = -i - 1;
+		}
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * Creates a random UUID that belongs to the same shard as a login name
+	 * @param loginName the login name the UUID is for
+	 * @return the new UUID
+	 */
+	public static UUID newUUID(String loginName) {
+		UUID random = UUID.randomUUID();
+		long high = position(loginName) << 32 | (random.getMostSignificantBits() & 0xFFFFFFFFL);
+		return new UUID(high, random.getLeastSignificantBits());
+	}
+
+	/**
+	 * Hashes a string onto the ring. The hash only depends on the UTF-8 bytes of the string so
+	 * every server and client places it the same way.
+	 * @param key the string to hash
+	 * @return the position, between 0 and 2^32 - 1
+	 */
+	static long position(String key) {
+		// FNV-1a followed by the murmur3 finalizer to spread similar keys
+		int h = 0x811C9DC5;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			h ^= b & 0xFF;
+			h *= 0x01000193;
+		}
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h & 0xFFFFFFFFL;
+	}
+}
@@ -0,0 +1,204 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes checkpoints of the user database in a compact binary format. Every user is written
+ * once, both indexes are rebuilt from it on load.
+ *
+ * The file starts with a magic number, the format version, the sequence number of the last change in
+ * the checkpoint and the number of users, followed by the users and a CRC32 of everything before it.
+ * A user is its UUID as two longs, the login name, real name and password as length-prefixed UTF-8
+ * (-1 for null) and its creation and last modification times in epoch milliseconds.
+ */
+public class SnapshotFile {
+	private static final int MAGIC = 0x49445353; // "IDSS"
+	private static final int VERSION = 1;
+
+	/**
+	 * The users read back from a checkpoint
+	 */
+	public static class Contents {
+		private final long seq;
+		private final List<User> users;
+
+		private Contents(long seq, List<User> users) {
+			this.seq = seq;
+			this.users = users;
+		}
+
+		/**
+		 * Gets the sequence number of the last change included in the checkpoint
+		 * @return the sequence number
+		 */
+		public long getSeq() {
+			return seq;
+		}
+
+		/**
+		 * Gets the users in the checkpoint
+		 * @return the users
+		 */
+		public List<User> getUsers() {
+			return users;
+		}
+	}
+
+	private SnapshotFile() {
+	}
+
+	/**
+	 * Writes a checkpoint and syncs it to disk. The checkpoint is written next to the file and renamed
+	 * over it once complete, so a crash part way through leaves the previous checkpoint intact.
+	 * @param file the file to write
+	 * @param seq the sequence number of the last change included in users
+	 * @param users the users to write
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public static long write(File file, long seq, Collection<User> users) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		long size = writeTo(tmp, seq, users);
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		File dir = file.getAbsoluteFile().getParentFile();
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform can sync a directory, the rename is still atomic
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a checkpoint to the given file and syncs it
+	 * @param file the file to write
+	 * @param seq the sequence number of the last change included in users
+	 * @param users the users to write
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	private static long writeTo(File file, long seq, Collection<User> users) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			CRC32 crc = new CRC32();
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fos, 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(seq);
+			out.writeInt(users.size());
+			for (User user : users) {
+				out.writeLong(user.getUUID().getMostSignificantBits());
+				out.writeLong(user.getUUID().getLeastSignificantBits());
+				writeString(out, user.getLoginName());
+				writeString(out, user.getRealName());
+				writeString(out, user.getPassword());
+				out.writeLong(user.getTimeCreated().toEpochMilli());
+				out.writeLong(user.getTimeLastModified().toEpochMilli());
+			}
+			out.flush();
+			long size = out.size();
+			// the checksum itself is written past the CheckedOutputStream
+			DataOutputStream trailer = new DataOutputStream(new BufferedOutputStream(fos));
+			trailer.writeInt((int) crc.getValue());
+			trailer.flush();
+			fos.getFD().sync();
+			return size + 4;
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Reads a checkpoint by mapping it into memory
+	 * @param file the file to read
+	 * @return the users and sequence number in the checkpoint
+	 * @throws IOException if the file is not a checkpoint, is of an unknown version or is corrupt
+	 */
+	public static Contents read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < 24 || size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is not a user checkpoint");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a user checkpoint");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " has unsupported checkpoint version " + version);
+			}
+
+			ByteBuffer body = buffer.duplicate();
+			body.position(0).limit((int) size - 4);
+			CRC32 crc = new CRC32();
+			crc.update(body);
+			if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+				throw new IOException(file + " failed its checksum");
+			}
+
+			long seq = buffer.getLong();
+			int count = buffer.getInt();
+			List<User> users = new ArrayList<User>(count);
+			byte[] scratch = new byte[256];
+			for (int i = 0; i < count; i++) {
+				UUID uuid = new UUID(buffer.getLong(), buffer.getLong());
+				String loginName = readString(buffer, scratch);
+				String realName = readString(buffer, scratch);
+				String password = readString(buffer, scratch);
+				Instant created = Instant.ofEpochMilli(buffer.getLong());
+				Instant modified = Instant.ofEpochMilli(buffer.getLong());
+				users.add(new User(loginName, uuid, realName, password, created, modified));
+			}
+			return new Contents(seq, users);
+		}
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string
+	 * @param out the stream to write to
+	 * @param value the string to write, may be null
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString
+	 * @param buffer the buffer to read from
+	 * @param scratch a buffer to reuse for short strings
+	 * @return the string, possibly null
+	 */
+	private static String readString(ByteBuffer buffer, byte[] scratch) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = length <= scratch.length ? scratch : new byte[length];
+		buffer.get(bytes, 0, length);
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,39 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a backup asked for a read it is too far behind the leader to answer. The caller should
+ * read from the leader or another backup instead.
+ */
+public class StaleReplicaException extends RemoteException {
+	static public final long serialVersionUID = 7730416621195407L;
+
+	private final long seq;
+	private final long stalenessMillis;
+
+	/**
+	 * Constructs the exception
+	 * @param seq the version of the backup
+	 * @param stalenessMillis how long ago the backup last caught up with the leader
+	 */
+	public StaleReplicaException(long seq, long stalenessMillis) {
+		super("Replica is at version " + seq + ", last caught up with the leader " + stalenessMillis + " ms ago");
+		this.seq = seq;
+		this.stalenessMillis = stalenessMillis;
+	}
+
+	/**
+	 * Gets the version of the backup
+	 * @return the sequence number of the last change it applied
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets how far behind the backup was
+	 * @return milliseconds since it last caught up with the leader
+	 */
+	public long getStalenessMillis() {
+		return stalenessMillis;
+	}
+}
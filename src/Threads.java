@@ -0,0 +1,145 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates the threads that block on other servers: heartbeats, election and victory messages,
+ * replication and registration calls. On a JDK with virtual threads (21 and later) every task gets a
+ * virtual thread of its own, which costs a few hundred bytes instead of a platform thread's stack, so a
+ * server with hundreds of peers does not run out of threads while calls to dead peers time out. The
+ * code still builds for JDK 11, so virtual threads are reached through reflection and daemon platform
+ * threads are used when they are not available.
+ */
+public class Threads {
+	private static final Method OF_VIRTUAL = find("java.lang.Thread", "ofVirtual");
+	private static final Method NAME = find("java.lang.Thread$Builder", "name", String.class);
+	private static final Method FACTORY = find("java.lang.Thread$Builder", "factory");
+	private static final Method PER_TASK = find("java.util.concurrent.Executors", "newThreadPerTaskExecutor", ThreadFactory.class);
+
+	private Threads() {
+	}
+
+	/**
+	 * Tells if tasks run on virtual threads
+	 * @return true on JDK 21 and later
+	 */
+	public static boolean virtual() {
+		return OF_VIRTUAL != null && NAME != null && FACTORY != null && PER_TASK != null;
+	}
+
+	/**
+	 * Creates threads for blocking tasks
+	 * @param name the name of the threads
+	 * @return virtual threads if available, daemon platform threads otherwise
+	 */
+	public static ThreadFactory factory(String name) {
+		if (virtual()) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (ReflectiveOperationException e) {
+				// fall back to platform threads below
+			}
+		}
+		return runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Creates an executor that runs every task on a thread of its own, or on a cached pool of
+	 * platform threads without virtual threads
+	 * @param name the name of the threads
+	 * @return the executor
+	 */
+	public static ExecutorService newExecutor(String name) {
+		ThreadFactory threads = factory(name);
+		if (virtual()) {
+			try {
+				return (ExecutorService) PER_TASK.invoke(null, threads);
+			} catch (ReflectiveOperationException e) {
+				// fall back to a pool below
+			}
+		}
+		return Executors.newCachedThreadPool(threads);
+	}
+
+	/**
+	 * Runs a task on a thread of its own
+	 * @param name the name of the thread
+	 * @param task the task
+	 * @return the started thread
+	 */
+	public static Thread start(String name, Runnable task) {
+		Thread thread = factory(name).newThread(task);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Creates a scheduler whose only thread starts periodic tasks, the tasks themselves run elsewhere
+	 * @param name the name of the thread
+	 * @return the scheduler
+	 */
+	public static ScheduledExecutorService newScheduler(String name) {
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+		return scheduler;
+	}
+
+	/**
+	 * Runs a task periodically on a thread of its own, so a run blocked on another server delays
+	 * neither the scheduler nor other tasks. A run is skipped while the previous one has not finished.
+	 * @param scheduler the scheduler that starts the runs
+	 * @param name the name of the threads running the task
+	 * @param delayMillis the time before the first run
+	 * @param periodMillis the time between the starts of two runs
+	 * @param task the task
+	 * @return the schedule, cancel it to stop the task
+	 */
+	public static ScheduledFuture<?> every(ScheduledExecutorService scheduler, String name, long delayMillis, long periodMillis, Runnable task) {
+		ThreadFactory threads = factory(name);
+		AtomicBoolean running = new AtomicBoolean();
+		return scheduler.scheduleAtFixedRate(() -> {
+			if (!running.compareAndSet(false, true)) {
+				return;
+			}
+			threads.newThread(() -> {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Log.error(Log.Subsystem.SERVER, "{} failed", name, e);
+				} finally {
+					running.set(false);
+				}
+			}).start();
+		}, delayMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Finds a method that only exists on newer JDKs
+	 * @param className the class of the method
+	 * @param methodName the name of the method
+	 * @param parameterTypes the types of its parameters
+	 * @return the method, or null on JDKs without it
+	 */
+	private static Method find(String className, String methodName, Class<?>... parameterTypes) {
+		try {
+			return Class.forName(className).getMethod(methodName, parameterTypes);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+import java.io.Serializable;
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a leader started with a quorum when a write was applied and logged, but not enough
+ * backups confirmed it in time. The write is not undone: it is kept by the leader and reaches the
+ * backups later, unless the leader fails first. The caller should not retry it, a retried create
+ * finds the user already exists. The answer the call would have given is carried along.
+ */
+public class UnconfirmedWriteException extends RemoteException {
+	static public final long serialVersionUID = 5524218841390712L;
+
+	private final long seq;
+	private final int confirmed;
+	private final int quorum;
+	private final Serializable result;
+
+	/**
+	 * Constructs the exception
+	 * @param seq the sequence number of the write
+	 * @param confirmed the number of backups that confirmed it
+	 * @param quorum the number of backups that had to confirm it
+	 */
+	public UnconfirmedWriteException(long seq, int confirmed, int quorum) {
+		this(seq, confirmed, quorum, null);
+	}
+
+	/**
+	 * Constructs the exception
+	 * @param seq the sequence number of the write
+	 * @param confirmed the number of backups that confirmed it
+	 * @param quorum the number of backups that had to confirm it
+	 * @param result the answer of the write, such as the UUID of a created user
+	 */
+	public UnconfirmedWriteException(long seq, int confirmed, int quorum, Serializable result) {
+		super("Write #" + seq + " was only acknowledged by " + confirmed + " of " + quorum
+				+ " backups, it is kept by the leader but may be lost if it fails");
+		this.seq = seq;
+		this.confirmed = confirmed;
+		this.quorum = quorum;
+		this.result = result;
+	}
+
+	/**
+	 * Gets a copy of the exception carrying the answer of the write
+	 * @param result the answer the call would have given
+	 * @return the copy
+	 */
+	public UnconfirmedWriteException withResult(Serializable result) {
+		return new UnconfirmedWriteException(seq, confirmed, quorum, result);
+	}
+
+	/**
+	 * Gets the sequence number of the write, to compare with getVersion later
+	 * @return the sequence number
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets the number of backups that confirmed the write in time
+	 * @return the number of backups
+	 */
+	public int getConfirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * Gets the number of backups that had to confirm the write
+	 * @return the quorum
+	 */
+	public int getQuorum() {
+		return quorum;
+	}
+
+	/**
+	 * Gets the answer of the write: the UUID of a created user, the list of UUIDs of created users,
+	 * or whether the users were changed
+	 * @return the answer, null if none was attached
+	 */
+	public Serializable getResult() {
+		return result;
+	}
+}
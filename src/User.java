@@ -2,17 +2,18 @@ import java.time.Instant;
 import java.util.UUID;
 import java.io.Serializable;
 /**
- * Represents a User in the IdServer Database
+ * Represents a User in the IdServer Database. Users are never changed once created, a modification
+ * produces a new User so both indexes of the database can share the same instances safely.
  */
 public class User implements Serializable{
     static public final long serialVersionUID = 236423409294L;
 
-	private UUID uuid;
-    private String loginName;
-    private String realName;
-    private String password;
-    private Instant timeCreated = Instant.now();
-    private Instant timeLastModified = Instant.now();
+	private final UUID uuid;
+    private final String loginName;
+    private final String realName;
+    private final String password;
+    private final Instant timeCreated;
+    private final Instant timeLastModified;
 
     /**
      * Constructs a new User
@@ -22,10 +23,34 @@ public class User implements Serializable{
      * @param password the password of the new user
      */
     public User (String login, UUID userUUID, String real, String password){
+        this(login, userUUID, real, password, Instant.now(), Instant.now());
+    }
+
+    /**
+     * Constructs a User with known timestamps, used when copying or restoring users
+     * @param login the name of the user
+     * @param userUUID the uuid of the user
+     * @param real real name of the user
+     * @param password the password of the user
+     * @param timeCreated the Instant the user was created
+     * @param timeLastModified the Instant the user was last modified
+     */
+    public User (String login, UUID userUUID, String real, String password, Instant timeCreated, Instant timeLastModified){
         this.loginName = login;
         this.uuid = userUUID;
         this.realName = real;
         this.password = password;
+        this.timeCreated = timeCreated;
+        this.timeLastModified = timeLastModified;
+    }
+
+    /**
+     * Creates a copy of this user with a new login name
+     * @param newLogin the new login name
+     * @return the renamed user, modified now
+     */
+    public User rename(String newLogin){
+        return new User(newLogin, uuid, realName, password, timeCreated, Instant.now());
     }
 
     /**
@@ -52,6 +77,22 @@ public class User implements Serializable{
         return uuid;
     }
 
+    /**
+     * Gets the real name of the user
+     * @return real name of user
+     */
+    public String getRealName(){
+        return realName;
+    }
+
+    /**
+     * Getter for the time the user was created
+     * @return the Instant that the user was created
+     */
+    public Instant getTimeCreated(){
+        return timeCreated;
+    }
+
 
     @Override
     public String toString() {
@@ -65,12 +106,4 @@ public class User implements Serializable{
 	public Instant getTimeLastModified() {
 		return timeLastModified;
 	}
-
-    /**
-     * Setter for the time the user was modified
-     * @param timeLastModified Instant the user was last modified
-     */
-	public void setTimeLastModified(Instant timeLastModified) {
-		this.timeLastModified = timeLastModified;
-	}
 }
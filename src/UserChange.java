@@ -0,0 +1,61 @@
+import java.io.Serializable;
+
+/**
+ * A single change made to the user database. Changes are numbered in the order they were applied
+ * and carry the whole user so applying them again, or out of a log, always ends in the same state.
+ */
+public class UserChange implements Serializable {
+	static public final long serialVersionUID = 8837163520197L;
+
+	/**
+	 * The kind of change made to a user
+	 */
+	public enum Type {
+		CREATE, MODIFY, DELETE
+	}
+
+	private final long seq;
+	private final Type type;
+	private final User user;
+
+	/**
+	 * Constructs a change
+	 * @param seq the sequence number of the change
+	 * @param type the kind of change
+	 * @param user the user after a create or modify, or the removed user for a delete
+	 */
+	public UserChange(long seq, Type type, User user) {
+		this.seq = seq;
+		this.type = type;
+		this.user = user;
+	}
+
+	/**
+	 * Gets the sequence number of the change
+	 * @return the sequence number
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets the kind of change
+	 * @return the type of the change
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the user that was changed
+	 * @return the user after the change, or the removed user for a delete
+	 */
+	public User getUser() {
+		return user;
+	}
+
+	@Override
+	public String toString() {
+		return "#" + seq + " " + type + " " + user.getLoginName() + " " + user.getUUID();
+	}
+}
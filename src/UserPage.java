@@ -0,0 +1,81 @@
+import java.io.Serializable;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * One page of a listing of the users in login name order, with the cursor to ask for the next one.
+ * The cursor is the last login name of the page, so the pages of several shards can be merged.
+ */
+public class UserPage implements Serializable {
+	static public final long serialVersionUID = 4417021339854127061L;
+
+	/**
+	 * A user of the listing
+	 */
+	public static class Entry implements Serializable {
+		static public final long serialVersionUID = 7391150242817730418L;
+
+		private final String loginName;
+		private final UUID uuid;
+
+		/**
+		 * Constructs an entry
+		 * @param loginName the login name of the user
+		 * @param uuid the uuid of the user
+		 */
+		public Entry(String loginName, UUID uuid) {
+			this.loginName = loginName;
+			this.uuid = uuid;
+		}
+
+		/**
+		 * Gets the login name of the user
+		 * @return the login name
+		 */
+		public String getLoginName() {
+			return loginName;
+		}
+
+		/**
+		 * Gets the uuid of the user
+		 * @return the uuid
+		 */
+		public UUID getUUID() {
+			return uuid;
+		}
+
+		@Override
+		public String toString() {
+			return loginName + ": " + uuid;
+		}
+	}
+
+	private final List<Entry> entries;
+	private final String nextCursor;
+
+	/**
+	 * Constructs a page
+	 * @param entries the users of the page in login name order
+	 * @param nextCursor the cursor of the next page, null if this is the last one
+	 */
+	public UserPage(List<Entry> entries, String nextCursor) {
+		this.entries = entries;
+		this.nextCursor = nextCursor;
+	}
+
+	/**
+	 * Gets the users of the page
+	 * @return the users in login name order
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Gets the cursor to pass to list for the next page
+	 * @return the cursor, null if this is the last page
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+}
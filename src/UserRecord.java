@@ -0,0 +1,142 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * The answer to a lookup by login name or UUID: the public fields of the user if it exists, and the
+ * version of the database the answer is at least as recent as, so clients can tell how fresh a copy
+ * they keep is.
+ *
+ * Written field by field rather than by default serialization, which would also send the class
+ * descriptions and the Instants as objects of their own: a record is about 60 bytes plus its names.
+ */
+public class UserRecord implements Externalizable {
+	static public final long serialVersionUID = 5186609113425040276L;
+
+	private String loginName;
+	private String realName;
+	private UUID uuid;
+	private long timeCreated;
+	private long timeLastModified;
+	private long version;
+
+	/**
+	 * Constructs an empty record, used by deserialization
+	 */
+	public UserRecord() {
+	}
+
+	/**
+	 * Constructs the record of a user
+	 * @param user the user, or null if there is no such user
+	 * @param version the version of the database the user was read at
+	 */
+	public UserRecord(User user, long version) {
+		if (user != null) {
+			this.loginName = user.getLoginName();
+			this.realName = user.getRealName();
+			this.uuid = user.getUUID();
+			this.timeCreated = user.getTimeCreated().toEpochMilli();
+			this.timeLastModified = user.getTimeLastModified().toEpochMilli();
+		}
+		this.version = version;
+	}
+
+	/**
+	 * Tells if the user was found
+	 * @return true if the user exists
+	 */
+	public boolean exists() {
+		return uuid != null;
+	}
+
+	/**
+	 * Gets the login name of the user
+	 * @return the login name, null if the user does not exist
+	 */
+	public String getLoginName() {
+		return loginName;
+	}
+
+	/**
+	 * Gets the real name of the user
+	 * @return the real name, null if the user does not exist
+	 */
+	public String getRealName() {
+		return realName;
+	}
+
+	/**
+	 * Gets the uuid of the user
+	 * @return the uuid, null if the user does not exist
+	 */
+	public UUID getUUID() {
+		return uuid;
+	}
+
+	/**
+	 * Gets when the user was created
+	 * @return the Instant the user was created, null if the user does not exist
+	 */
+	public Instant getTimeCreated() {
+		return exists() ? Instant.ofEpochMilli(timeCreated) : null;
+	}
+
+	/**
+	 * Gets when the user was last modified
+	 * @return the Instant the user was last modified, null if the user does not exist
+	 */
+	public Instant getTimeLastModified() {
+		return exists() ? Instant.ofEpochMilli(timeLastModified) : null;
+	}
+
+	/**
+	 * Gets the version of the database the record was read at, every change up to it is reflected
+	 * @return the sequence number of the last change the server had applied
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public void writeExternal(ObjectOutput out) throws IOException {
+		out.writeLong(version);
+		out.writeBoolean(exists());
+		if (!exists()) {
+			return;
+		}
+		out.writeLong(uuid.getMostSignificantBits());
+		out.writeLong(uuid.getLeastSignificantBits());
+		out.writeUTF(loginName);
+		out.writeBoolean(realName != null);
+		if (realName != null) {
+			out.writeUTF(realName);
+		}
+		out.writeLong(timeCreated);
+		out.writeLong(timeLastModified);
+	}
+
+	@Override
+	public void readExternal(ObjectInput in) throws IOException {
+		version = in.readLong();
+		if (!in.readBoolean()) {
+			return;
+		}
+		uuid = new UUID(in.readLong(), in.readLong());
+		loginName = in.readUTF();
+		realName = in.readBoolean() ? in.readUTF() : null;
+		timeCreated = in.readLong();
+		timeLastModified = in.readLong();
+	}
+
+	@Override
+	public String toString() {
+		if (!exists()) {
+			return "User does not exist!";
+		}
+		return "Login Name: " + loginName + " Real Name: " + realName + " UUID: " + uuid;
+	}
+}
@@ -0,0 +1,721 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the user database of an IdServer. Reads go straight to concurrent maps and never block,
+ * writes only lock the stripes of the login names they touch.
+ *
+ * The UUID index is the primary copy of every user and the login name index is a secondary index
+ * over the same immutable User instances. Writers update the UUID index first when adding a user
+ * and last when removing one, so a user found by login name can always be found by UUID.
+ *
+ * Every write is published to the registered listeners as a numbered UserChange while the stripes
+ * of the write are still held, so listeners see the changes of any one user in the order they happened.
+ */
+public class UserStore {
+	private static final int STRIPES = 64;
+
+	/**
+	 * Receives the changes made to a store
+	 */
+	public interface ChangeListener {
+		/**
+		 * Called with every change in sequence order. Must not call back into the store.
+		 * @param changes the changes that were applied together
+		 */
+		void changed(List<UserChange> changes);
+
+		/**
+		 * Called when the whole store was replaced and earlier changes no longer apply
+		 * @param seq the sequence number the store continues from
+		 */
+		default void replaced(long seq) {
+		}
+	}
+
+	private volatile ConcurrentHashMap<String, User> lookupUsers = new ConcurrentHashMap<String, User>();
+	private volatile ConcurrentHashMap<UUID, User> reverseLookupUsers = new ConcurrentHashMap<UUID, User>();
+	// the login names in order for listings, kept next to lookupUsers under the same stripes
+	private volatile ConcurrentSkipListSet<String> sortedLoginNames = new ConcurrentSkipListSet<String>();
+	private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+	private final Object publishLock = new Object();
+	private volatile long seq = 0;
+	// the sequence number of the last change each thread published, so a writer waits on its own change
+	private final ThreadLocal<Long> lastPublished = ThreadLocal.withInitial(() -> 0L);
+	// the uuids of users being copied to another shard, changed under the stripes of their login names
+	private final Set<UUID> moving = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Creates an empty user store
+	 */
+	public UserStore() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * Gets the stripe index guarding a login name
+	 * @param loginName the login name to find the stripe for
+	 * @return index into locks
+	 */
+	private static int stripe(String loginName) {
+		int h = loginName.hashCode();
+		return (h ^ (h >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * Locks the stripes of the given login names in index order so two writers can never deadlock
+	 * @param loginNames the login names about to be written
+	 * @return the stripe indexes that were locked, to be passed to unlock
+	 */
+	private int[] lock(String... loginNames) {
+		int[] held = new int[loginNames.length];
+		for (int i = 0; i < loginNames.length; i++) {
+			held[i] = stripe(loginNames[i]);
+		}
+		Arrays.sort(held);
+		int last = -1;
+		for (int index : held) {
+			if (index != last) {
+				locks[index].lock();
+			}
+			last = index;
+		}
+		return held;
+	}
+
+	/**
+	 * Releases stripes taken by lock
+	 * @param held the stripe indexes returned by lock
+	 */
+	private void unlock(int[] held) {
+		int last = -1;
+		for (int index : held) {
+			if (index != last) {
+				locks[index].unlock();
+			}
+			last = index;
+		}
+	}
+
+	/**
+	 * Finds a user by login name
+	 * @param loginName the login name of the user
+	 * @return the user or null if there is no such user
+	 */
+	public User lookup(String loginName) {
+		return lookupUsers.get(loginName);
+	}
+
+	/**
+	 * Finds a user by UUID
+	 * @param uuid the uuid of the user
+	 * @return the user or null if there is no such user
+	 */
+	public User reverseLookup(UUID uuid) {
+		return reverseLookupUsers.get(uuid);
+	}
+
+	/**
+	 * Lists users in login name order without locking, users changed while the list is made may or
+	 * may not be in it
+	 * @param after the login name to list from, not included, or null to start at the first
+	 * @param prefix only list login names starting with this, may be empty
+	 * @param limit the most users to list
+	 * @return the users
+	 */
+	public List<User> page(String after, String prefix, int limit) {
+		List<User> page = new ArrayList<User>(Math.min(limit, 1024));
+		NavigableSet<String> from = after == null || after.compareTo(prefix) < 0
+				? sortedLoginNames.tailSet(prefix, true) : sortedLoginNames.tailSet(after, false);
+		for (String loginName : from) {
+			if (page.size() >= limit || !loginName.startsWith(prefix)) {
+				break;
+			}
+			User user = lookupUsers.get(loginName);
+			if (user != null) {
+				page.add(user);
+			}
+		}
+		return page;
+	}
+
+	/**
+	 * Indexes a user by login name. Callers must hold the stripe of the login name.
+	 * @param user the user
+	 */
+	private void putLogin(User user) {
+		lookupUsers.put(user.getLoginName(), user);
+		sortedLoginNames.add(user.getLoginName());
+	}
+
+	/**
+	 * Drops a user from the login name index unless the login name now belongs to another user.
+	 * Callers must hold the stripe of the login name.
+	 * @param user the user
+	 */
+	private void removeLogin(User user) {
+		if (lookupUsers.remove(user.getLoginName(), user)) {
+			sortedLoginNames.remove(user.getLoginName());
+		}
+	}
+
+	/**
+	 * Creates a new user unless the login name is already taken
+	 * @param loginName the login name of the new user
+	 * @param realName the real name of the new user
+	 * @param password the password of the new user
+	 * @return the UUID of the new user or null if the login name is taken
+	 */
+	public UUID create(String loginName, String realName, String password) {
+		int[] held = lock(loginName);
+		try {
+			if (lookupUsers.containsKey(loginName)) {
+				return null;
+			}
+			UUID uuid = ShardRing.newUUID(loginName);
+			while (reverseLookupUsers.containsKey(uuid)) {
+				uuid = ShardRing.newUUID(loginName);
+			}
+			User user = new User(loginName, uuid, realName, password);
+			reverseLookupUsers.put(uuid, user);
+			putLogin(user);
+			publish(UserChange.Type.CREATE, user);
+			return uuid;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Renames a user if the password matches
+	 * @param oldLoginName the current login name
+	 * @param newLoginName the new login name
+	 * @param password the password of the user
+	 * @return true if the user was renamed
+	 */
+	public boolean modify(String oldLoginName, String newLoginName, String password) {
+		int[] held = lock(oldLoginName, newLoginName);
+		try {
+			User user = lookupUsers.get(oldLoginName);
+			if (user == null || !user.getPassword().equals(password) || moving.contains(user.getUUID())) {
+				return false;
+			}
+			if (oldLoginName.equals(newLoginName)) {
+				return true;
+			}
+			if (lookupUsers.containsKey(newLoginName)) {
+				return false;
+			}
+			User renamed = user.rename(newLoginName);
+			reverseLookupUsers.put(renamed.getUUID(), renamed);
+			putLogin(renamed);
+			removeLogin(user);
+			publish(UserChange.Type.MODIFY, renamed);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Removes a user if the password matches
+	 * @param loginName the login name of the user
+	 * @param password the password of the user
+	 * @return true if the user was removed
+	 */
+	public boolean delete(String loginName, String password) {
+		int[] held = lock(loginName);
+		try {
+			User user = lookupUsers.get(loginName);
+			if (user == null || !user.getPassword().equals(password) || moving.contains(user.getUUID())) {
+				return false;
+			}
+			removeLogin(user);
+			reverseLookupUsers.remove(user.getUUID());
+			publish(UserChange.Type.DELETE, user);
+			return true;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Creates many users at once. The users are published to the listeners as one list of changes.
+	 * @param newUsers the users to create
+	 * @return the UUID of each new user in order, null where the login name was taken
+	 */
+	public List<UUID> createAll(List<NewUser> newUsers) {
+		String[] loginNames = new String[newUsers.size()];
+		for (int i = 0; i < loginNames.length; i++) {
+			loginNames[i] = newUsers.get(i).getLoginName();
+		}
+		List<UUID> uuids = new ArrayList<UUID>(newUsers.size());
+		int[] held = lock(loginNames);
+		try {
+			List<UserChange.Type> types = new ArrayList<UserChange.Type>();
+			List<User> created = new ArrayList<User>();
+			for (NewUser newUser : newUsers) {
+				if (lookupUsers.containsKey(newUser.getLoginName())) {
+					uuids.add(null);
+					continue;
+				}
+				UUID uuid = ShardRing.newUUID(newUser.getLoginName());
+				while (reverseLookupUsers.containsKey(uuid)) {
+					uuid = ShardRing.newUUID(newUser.getLoginName());
+				}
+				User user = new User(newUser.getLoginName(), uuid, newUser.getRealName(), newUser.getPassword());
+				reverseLookupUsers.put(uuid, user);
+				putLogin(user);
+				types.add(UserChange.Type.CREATE);
+				created.add(user);
+				uuids.add(uuid);
+			}
+			publish(types, created);
+			return uuids;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Removes many users at once, each only if its password matches. The removed users are
+	 * published to the listeners as one list of changes.
+	 * @param passwords the password of each login name to remove
+	 * @return whether each login name was removed, in the iteration order of passwords
+	 */
+	public Map<String, Boolean> deleteAll(Map<String, String> passwords) {
+		Map<String, Boolean> deleted = new LinkedHashMap<String, Boolean>();
+		int[] held = lock(passwords.keySet().toArray(new String[0]));
+		try {
+			List<UserChange.Type> types = new ArrayList<UserChange.Type>();
+			List<User> removed = new ArrayList<User>();
+			for (Map.Entry<String, String> entry : passwords.entrySet()) {
+				User user = lookupUsers.get(entry.getKey());
+				if (user == null || !user.getPassword().equals(entry.getValue()) || moving.contains(user.getUUID())) {
+					deleted.put(entry.getKey(), false);
+					continue;
+				}
+				removeLogin(user);
+				reverseLookupUsers.remove(user.getUUID());
+				types.add(UserChange.Type.DELETE);
+				removed.add(user);
+				deleted.put(entry.getKey(), true);
+			}
+			publish(types, removed);
+			return deleted;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Adds users moved from another shard, keeping their UUIDs. A user replaces an older copy of
+	 * itself but never a different user holding the same login name.
+	 * @param moved the users to add
+	 * @return whether each user was added, in order
+	 */
+	public List<Boolean> putAll(List<User> moved) {
+		while (true) {
+			// lock the login names of the users and the ones their older copies have now
+			Map<UUID, User> previous = new HashMap<UUID, User>();
+			List<String> loginNames = new ArrayList<String>();
+			for (User user : moved) {
+				User current = reverseLookupUsers.get(user.getUUID());
+				previous.put(user.getUUID(), current);
+				loginNames.add(user.getLoginName());
+				if (current != null) {
+					loginNames.add(current.getLoginName());
+				}
+			}
+			int[] held = lock(loginNames.toArray(new String[0]));
+			try {
+				boolean moving = false;
+				for (Map.Entry<UUID, User> entry : previous.entrySet()) {
+					if (reverseLookupUsers.get(entry.getKey()) != entry.getValue()) {
+						moving = true;
+						break;
+					}
+				}
+				if (moving) {
+					continue;
+				}
+				List<Boolean> added = new ArrayList<Boolean>(moved.size());
+				List<UserChange.Type> types = new ArrayList<UserChange.Type>();
+				List<User> changed = new ArrayList<User>();
+				for (User user : moved) {
+					User holder = lookupUsers.get(user.getLoginName());
+					if (holder != null && !holder.getUUID().equals(user.getUUID())) {
+						added.add(false);
+						continue;
+					}
+					User current = reverseLookupUsers.get(user.getUUID());
+					if (current != null) {
+						removeLogin(current);
+					}
+					reverseLookupUsers.put(user.getUUID(), user);
+					putLogin(user);
+					types.add(current == null ? UserChange.Type.CREATE : UserChange.Type.MODIFY);
+					changed.add(user);
+					added.add(true);
+				}
+				publish(types, changed);
+				return added;
+			} finally {
+				unlock(held);
+			}
+		}
+	}
+
+	/**
+	 * Holds users that are about to be copied to another shard. Until endMove, modify and delete
+	 * refuse them as if the password did not match, so the copy the other shard gets is still the
+	 * user when removeAll drops it here and a user cannot be removed and then brought back.
+	 * @param candidates the users as they were read
+	 * @return the users that had not changed since and were not already being moved
+	 */
+	public List<User> beginMove(List<User> candidates) {
+		String[] loginNames = new String[candidates.size()];
+		for (int i = 0; i < loginNames.length; i++) {
+			loginNames[i] = candidates.get(i).getLoginName();
+		}
+		int[] held = lock(loginNames);
+		try {
+			List<User> claimed = new ArrayList<User>(candidates.size());
+			for (User user : candidates) {
+				if (reverseLookupUsers.get(user.getUUID()) == user && moving.add(user.getUUID())) {
+					claimed.add(user);
+				}
+			}
+			return claimed;
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Lets users held by beginMove be changed again, whether or not they were moved
+	 * @param moved the users returned by beginMove
+	 */
+	public void endMove(List<User> moved) {
+		for (User user : moved) {
+			moving.remove(user.getUUID());
+		}
+	}
+
+	/**
+	 * Removes users that moved to another shard, unless they changed since they were copied
+	 * @param moved the users as they were copied to the other shard
+	 * @return the number of users removed
+	 */
+	public int removeAll(List<User> moved) {
+		String[] loginNames = new String[moved.size()];
+		for (int i = 0; i < loginNames.length; i++) {
+			loginNames[i] = moved.get(i).getLoginName();
+		}
+		int[] held = lock(loginNames);
+		try {
+			List<UserChange.Type> types = new ArrayList<UserChange.Type>();
+			List<User> removed = new ArrayList<User>();
+			for (User user : moved) {
+				if (reverseLookupUsers.get(user.getUUID()) != user) {
+					continue;
+				}
+				removeLogin(user);
+				reverseLookupUsers.remove(user.getUUID());
+				types.add(UserChange.Type.DELETE);
+				removed.add(user);
+			}
+			publish(types, removed);
+			return removed.size();
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Applies a change made elsewhere, either replayed from a log or copied from another server.
+	 * Applying a change that is already reflected in the store leaves it unchanged. The change keeps
+	 * its sequence number and is published to the listeners.
+	 * @param change the change to apply
+	 */
+	public void apply(UserChange change) {
+		applyAll(Collections.singletonList(change));
+	}
+
+	/**
+	 * Applies changes made elsewhere in order, as apply does, and publishes them to the listeners
+	 * as one list
+	 * @param changes the changes to apply
+	 */
+	public void applyAll(List<UserChange> changes) {
+		if (changes.isEmpty()) {
+			return;
+		}
+		while (true) {
+			// lock the new login name of every change and the login name each user has now, the
+			// login names in between belong to earlier changes of the same list
+			Map<UUID, User> previous = new HashMap<UUID, User>();
+			List<String> loginNames = new ArrayList<String>();
+			for (UserChange change : changes) {
+				User user = change.getUser();
+				loginNames.add(user.getLoginName());
+				if (!previous.containsKey(user.getUUID())) {
+					User current = reverseLookupUsers.get(user.getUUID());
+					previous.put(user.getUUID(), current);
+					if (current != null) {
+						loginNames.add(current.getLoginName());
+					}
+				}
+			}
+			int[] held = lock(loginNames.toArray(new String[0]));
+			try {
+				boolean moved = false;
+				for (Map.Entry<UUID, User> entry : previous.entrySet()) {
+					if (reverseLookupUsers.get(entry.getKey()) != entry.getValue()) {
+						moved = true;
+						break;
+					}
+				}
+				if (moved) {
+					continue;
+				}
+				for (UserChange change : changes) {
+					User user = change.getUser();
+					User current = reverseLookupUsers.get(user.getUUID());
+					if (current != null) {
+						removeLogin(current);
+					}
+					if (change.getType() == UserChange.Type.DELETE) {
+						reverseLookupUsers.remove(user.getUUID());
+					} else {
+						reverseLookupUsers.put(user.getUUID(), user);
+						putLogin(user);
+					}
+				}
+				synchronized (publishLock) {
+					seq = Math.max(seq, changes.get(changes.size() - 1).getSeq());
+					notifyListeners(changes);
+				}
+				return;
+			} finally {
+				unlock(held);
+			}
+		}
+	}
+
+	/**
+	 * Numbers a change and hands it to the listeners. Callers must hold the stripes of the user.
+	 * @param type the kind of change
+	 * @param user the user after the change, or the removed user
+	 */
+	private void publish(UserChange.Type type, User user) {
+		publish(Collections.singletonList(type), Collections.singletonList(user));
+	}
+
+	/**
+	 * Numbers changes made together and hands them to the listeners as one list. Callers must hold
+	 * the stripes of the users.
+	 * @param types the kind of each change
+	 * @param changed the user after each change, or the removed user
+	 */
+	private void publish(List<UserChange.Type> types, List<User> changed) {
+		if (changed.isEmpty()) {
+			return;
+		}
+		synchronized (publishLock) {
+			List<UserChange> changes = new ArrayList<UserChange>(changed.size());
+			for (int i = 0; i < changed.size(); i++) {
+				changes.add(new UserChange(seq + 1 + i, types.get(i), changed.get(i)));
+			}
+			seq += changes.size();
+			lastPublished.set(seq);
+			notifyListeners(changes);
+		}
+	}
+
+	/**
+	 * Hands changes to every listener. Callers must hold publishLock.
+	 * @param changes the changes to hand out
+	 */
+	private void notifyListeners(List<UserChange> changes) {
+		for (ChangeListener listener : listeners) {
+			listener.changed(changes);
+		}
+	}
+
+	/**
+	 * Gets the sequence number of the last change published by the calling thread, the one a write
+	 * has to wait on even when other threads made later changes since
+	 * @return the sequence number, 0 if the thread never changed the store
+	 */
+	public long getLastPublishedSeq() {
+		return lastPublished.get();
+	}
+
+	/**
+	 * Registers a listener for every change made from now on
+	 * @param listener the listener to add
+	 */
+	public void addListener(ChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Gets the sequence number of the last change made to the store
+	 * @return the last sequence number, 0 if nothing was ever changed
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Gets the number of users in the store
+	 * @return the number of users
+	 */
+	public int size() {
+		return lookupUsers.size();
+	}
+
+	/**
+	 * Checks if a login name is taken
+	 * @param loginName the login name of the user
+	 * @return true if there is a user with this login name
+	 */
+	public boolean contains(String loginName) {
+		return lookupUsers.containsKey(loginName);
+	}
+
+	/**
+	 * Gets a live view of all login names
+	 * @return set of login names
+	 */
+	public Set<String> loginNames() {
+		return lookupUsers.keySet();
+	}
+
+	/**
+	 * Gets a live view of all UUIDs
+	 * @return set of UUIDs
+	 */
+	public Set<UUID> uuids() {
+		return reverseLookupUsers.keySet();
+	}
+
+	/**
+	 * Copies the login name index
+	 * @return map of login names to users
+	 */
+	public Map<String, User> copyLookupUsers() {
+		return new HashMap<String, User>(lookupUsers);
+	}
+
+	/**
+	 * Copies the UUID index
+	 * @return map of UUIDs to users
+	 */
+	public Map<UUID, User> copyReverseLookupUsers() {
+		return new HashMap<UUID, User>(reverseLookupUsers);
+	}
+
+	/**
+	 * Copies every user in the database
+	 * @return list of users
+	 */
+	public List<User> copyUsers() {
+		return new ArrayList<User>(reverseLookupUsers.values());
+	}
+
+	/**
+	 * Replaces the whole database, used when reloading from disk or copying from the leader.
+	 * Both indexes are rebuilt from the given users in one pass.
+	 * @param replacement every user that should be in the database
+	 * @param replacementSeq the sequence number of the last change included in replacement
+	 */
+	public void replace(Collection<User> replacement, long replacementSeq) {
+		int[] held = lockAll();
+		try {
+			if (reverseLookupUsers.isEmpty()) {
+				// nothing to clean up when starting from scratch, build both indexes in one pass
+				// into maps sized up front so they never have to grow
+				int capacity = Math.max(16, replacement.size() * 4 / 3 + 1);
+				ConcurrentHashMap<UUID, User> byUUID = new ConcurrentHashMap<UUID, User>(capacity);
+				ConcurrentHashMap<String, User> byLogin = new ConcurrentHashMap<String, User>(capacity);
+				for (User user : replacement) {
+					byUUID.put(user.getUUID(), user);
+					byLogin.put(user.getLoginName(), user);
+				}
+				reverseLookupUsers = byUUID;
+				lookupUsers = byLogin;
+				sortedLoginNames = new ConcurrentSkipListSet<String>(byLogin.keySet());
+				replaced(replacementSeq);
+				return;
+			}
+			Map<UUID, User> byUUID = new HashMap<UUID, User>();
+			for (User user : replacement) {
+				byUUID.put(user.getUUID(), user);
+			}
+			for (User user : byUUID.values()) {
+				User previous = reverseLookupUsers.put(user.getUUID(), user);
+				if (previous != null && !previous.getLoginName().equals(user.getLoginName())) {
+					lookupUsers.remove(previous.getLoginName(), previous);
+				}
+				lookupUsers.put(user.getLoginName(), user);
+			}
+			lookupUsers.values().removeIf(user -> byUUID.get(user.getUUID()) != user);
+			reverseLookupUsers.keySet().retainAll(byUUID.keySet());
+			sortedLoginNames = new ConcurrentSkipListSet<String>(lookupUsers.keySet());
+			replaced(replacementSeq);
+		} finally {
+			unlock(held);
+		}
+	}
+
+	/**
+	 * Tells the listeners the store was replaced. Callers must hold every stripe.
+	 * @param replacementSeq the sequence number the store continues from
+	 */
+	private void replaced(long replacementSeq) {
+		synchronized (publishLock) {
+			seq = replacementSeq;
+			for (ChangeListener listener : listeners) {
+				listener.replaced(replacementSeq);
+			}
+		}
+	}
+
+	/**
+	 * Waits for every write that is in progress to finish and publish its change
+	 */
+	public void awaitWriters() {
+		unlock(lockAll());
+	}
+
+	/**
+	 * Locks every stripe, for operations that rewrite the whole database
+	 * @return the stripe indexes that were locked, to be passed to unlock
+	 */
+	private int[] lockAll() {
+		int[] held = new int[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			held[i] = i;
+			locks[i].lock();
+		}
+		return held;
+	}
+}
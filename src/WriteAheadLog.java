@@ -0,0 +1,352 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every change made to a UserStore, so a checkpoint only has to be written once
+ * in a while instead of after every change. Writers append to an in-memory buffer and then call
+ * commit, which writes and fsyncs everything appended so far; writers committing at the same time
+ * share a single fsync.
+ *
+ * Each frame on disk is the length of the payload, its CRC32 and the payload itself: the number of
+ * changes followed by the changes. A torn frame at the end of the log is dropped when it is reopened.
+ * Strings are written as length-prefixed UTF-8 (-1 for null) as in SnapshotFile, so a change of any
+ * size can be logged: the log is written after the store was changed and must not fail then.
+ */
+public class WriteAheadLog implements UserStore.ChangeListener {
+	private static final int MAX_FRAME = 64 * 1024 * 1024;
+
+	private final File file;
+	private final File oldFile;
+	private FileChannel channel;
+
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private long appendedSeq = 0;
+	private long pendingBytes = 0;
+
+	private final Object syncLock = new Object();
+	private final LongAdder bytesWritten = Metrics.counter("idserver_wal_bytes_total");
+	private final Metrics.Histogram syncTime = Metrics.histogram("idserver_wal_fsync_seconds");
+	private volatile long durableSeq = 0;
+	private volatile long size = 0;
+
+	/**
+	 * Constructs a log, the file is not touched until open is called
+	 * @param file the file the log appends to
+	 */
+	public WriteAheadLog(File file) {
+		this.file = file;
+		this.oldFile = new File(file.getPath() + ".old");
+	}
+
+	/**
+	 * Replays the log into the store and opens it for appending. A log left behind by an unfinished
+	 * checkpoint is replayed first.
+	 * @param users the store to replay the log into
+	 * @return the number of changes replayed
+	 * @throws IOException
+	 */
+	public int open(UserStore users) throws IOException {
+		int replayed = 0;
+		if (oldFile.isFile()) {
+			replayed += replay(oldFile, users);
+		}
+		long valid = 0;
+		if (file.isFile()) {
+			replayed += replay(file, users);
+			valid = validLength(file);
+		}
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.truncate(valid);
+		channel.position(valid);
+		size = valid;
+		return replayed;
+	}
+
+	@Override
+	public void changed(List<UserChange> changes) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeInt(changes.size());
+			for (UserChange change : changes) {
+				writeChange(out, change);
+			}
+			out.flush();
+			byte[] bytes = payload.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+
+			synchronized (this) {
+				DataOutputStream frame = new DataOutputStream(pending);
+				frame.writeInt(bytes.length);
+				frame.writeInt((int) crc.getValue());
+				frame.write(bytes);
+				frame.flush();
+				pendingBytes += 8 + bytes.length;
+				appendedSeq = changes.get(changes.size() - 1).getSeq();
+			}
+		} catch (IOException e) {
+			// ByteArrayOutputStream does not throw
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Makes every change appended so far durable. Returns at once if another writer already
+	 * synced past our changes.
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		long target;
+		synchronized (this) {
+			target = appendedSeq;
+		}
+		if (durableSeq >= target) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (durableSeq >= target) {
+				return;
+			}
+			flush(true);
+		}
+	}
+
+	/**
+	 * Writes the pending buffer to the file. Callers must hold syncLock.
+	 * @param force true to fsync after writing
+	 * @throws IOException
+	 */
+	private void flush(boolean force) throws IOException {
+		byte[] bytes;
+		long seq;
+		synchronized (this) {
+			bytes = pending.toByteArray();
+			seq = appendedSeq;
+			pending.reset();
+			pendingBytes = 0;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		size += bytes.length;
+		bytesWritten.add(bytes.length);
+		if (force) {
+			long start = System.nanoTime();
+			channel.force(false);
+			syncTime.recordSince(start);
+		}
+		durableSeq = seq;
+	}
+
+	/**
+	 * Starts a new log file for a checkpoint. Changes appended after this call go to the new file,
+	 * the previous file is kept until the checkpoint calls finishCheckpoint.
+	 * @throws IOException
+	 */
+	public void startCheckpoint() throws IOException {
+		synchronized (syncLock) {
+			flush(true);
+			if (oldFile.exists()) {
+				// an earlier checkpoint failed, keep everything since that one in the old file
+				try (FileChannel old = FileChannel.open(oldFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+					channel.position(0);
+					long copied = 0;
+					while (copied < size) {
+						copied += channel.transferTo(copied, size - copied, old);
+					}
+					old.force(false);
+				}
+				channel.truncate(0);
+				channel.position(0);
+			} else {
+				channel.close();
+				if (!file.renameTo(oldFile)) {
+					throw new IOException("Unable to rotate " + file);
+				}
+				channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			}
+			size = 0;
+		}
+	}
+
+	/**
+	 * Drops the log from before the last startCheckpoint once the checkpoint is safely on disk
+	 */
+	public void finishCheckpoint() {
+		oldFile.delete();
+	}
+
+	/**
+	 * Gets the number of bytes written to the current log file
+	 * @return the size of the log in bytes
+	 */
+	public long size() {
+		synchronized (this) {
+			return size + pendingBytes;
+		}
+	}
+
+	/**
+	 * Flushes and closes the log
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		synchronized (syncLock) {
+			flush(true);
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes a change to a stream
+	 * @param out the stream to write to
+	 * @param change the change to write
+	 * @throws IOException
+	 */
+	static void writeChange(DataOutputStream out, UserChange change) throws IOException {
+		User user = change.getUser();
+		out.writeLong(change.getSeq());
+		out.writeByte(change.getType().ordinal());
+		out.writeLong(user.getUUID().getMostSignificantBits());
+		out.writeLong(user.getUUID().getLeastSignificantBits());
+		writeString(out, user.getLoginName());
+		writeString(out, user.getRealName());
+		writeString(out, user.getPassword());
+		out.writeLong(user.getTimeCreated().toEpochMilli());
+		out.writeLong(user.getTimeLastModified().toEpochMilli());
+	}
+
+	/**
+	 * Writes a length-prefixed UTF-8 string
+	 * @param out the stream to write to
+	 * @param value the string to write, may be null
+	 * @throws IOException
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString
+	 * @param in the stream to read from
+	 * @return the string, possibly null
+	 * @throws IOException
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads a change written by writeChange
+	 * @param in the stream to read from
+	 * @return the change
+	 * @throws IOException
+	 */
+	static UserChange readChange(DataInputStream in) throws IOException {
+		long seq = in.readLong();
+		UserChange.Type type = UserChange.Type.values()[in.readByte()];
+		UUID uuid = new UUID(in.readLong(), in.readLong());
+		String loginName = readString(in);
+		String realName = readString(in);
+		String password = readString(in);
+		Instant created = Instant.ofEpochMilli(in.readLong());
+		Instant modified = Instant.ofEpochMilli(in.readLong());
+		return new UserChange(seq, type, new User(loginName, uuid, realName, password, created, modified));
+	}
+
+	/**
+	 * Applies every complete frame of a log file to the store
+	 * @param log the log file
+	 * @param users the store to apply the changes to
+	 * @return the number of changes applied
+	 * @throws IOException
+	 */
+	private static int replay(File log, UserStore users) throws IOException {
+		int replayed = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+			byte[] payload;
+			while ((payload = readFrame(in)) != null) {
+				DataInputStream frame = new DataInputStream(new ByteArrayInputStream(payload));
+				int count = frame.readInt();
+				for (int i = 0; i < count; i++) {
+					users.apply(readChange(frame));
+					replayed++;
+				}
+			}
+		}
+		return replayed;
+	}
+
+	/**
+	 * Finds the length of the complete frames at the start of a log file
+	 * @param log the log file
+	 * @return the offset just past the last complete frame
+	 * @throws IOException
+	 */
+	private static long validLength(File log) throws IOException {
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+			byte[] payload;
+			while ((payload = readFrame(in)) != null) {
+				valid += 8 + payload.length;
+			}
+		}
+		return valid;
+	}
+
+	/**
+	 * Reads the next frame of a log
+	 * @param in the stream to read from
+	 * @return the payload of the frame, or null at the end of the log or at a torn frame
+	 * @throws IOException
+	 */
+	private static byte[] readFrame(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0 || length > MAX_FRAME) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			if ((int) crc.getValue() != checksum) {
+				return null;
+			}
+			return payload;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+}
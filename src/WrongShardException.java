@@ -0,0 +1,28 @@
+import java.rmi.RemoteException;
+
+/**
+ * Thrown by a server asked about a login name that belongs to another shard. The caller should
+ * fetch the servers again with getServers and send the request to the owning shard.
+ */
+public class WrongShardException extends RemoteException {
+	static public final long serialVersionUID = 5184406372291157L;
+
+	private final int shard;
+
+	/**
+	 * Constructs the exception
+	 * @param shard the shard the login name belongs to
+	 */
+	public WrongShardException(int shard) {
+		super("Belongs to shard " + shard);
+		this.shard = shard;
+	}
+
+	/**
+	 * Gets the shard the request should have gone to
+	 * @return the shard id
+	 */
+	public int getShard() {
+		return shard;
+	}
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the frames of the binary protocol and a BinaryServer answering a BinaryClient over loopback.
+ * The server answers from a stand-in for IdServer, so no registry or database is needed.
+ */
+public class BinaryProtocolTest {
+	private static final long TIMEOUT_SECONDS = 10;
+	// gets of "slow" running on the stand-in now, and the most that ever ran at once
+	private static final AtomicInteger slowGets = new AtomicInteger();
+	private static final AtomicInteger mostSlowGets = new AtomicInteger();
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 * @throws IOException if the server could not be started
+	 */
+	public static void main(String[] args) throws IOException {
+		Check check = new Check("BinaryProtocolTest");
+		check.test("frameRoundTrip", BinaryProtocolTest::frameRoundTrip);
+		check.test("shortFrames", BinaryProtocolTest::shortFrames);
+		int port = freePort();
+		new BinaryServer(stubServer(), port).start();
+		check.test("pipelinedRequests", () -> pipelinedRequests(port));
+		check.test("inFlightCap", () -> inFlightCap(port));
+		check.test("oversizedResponse", () -> oversizedResponse(port));
+		check.test("redirects", () -> redirects(port));
+		check.test("oversizedRequest", () -> oversizedRequest(port));
+		check.finish();
+	}
+
+	/**
+	 * Writes every kind of field, more than the initial buffer holds, and reads them back
+	 * @throws BinaryProtocol.ProtocolException
+	 */
+	private static void frameRoundTrip() throws BinaryProtocol.ProtocolException {
+		UUID uuid = UUID.randomUUID();
+		String text = "r\u00e9sum\u00e9 ".repeat(50);
+		ByteBuffer frame = new BinaryProtocol.FrameWriter(42).putByte(BinaryProtocol.CREATE).putBoolean(true)
+				.putInt(-7).putLong(Long.MAX_VALUE).putString(text).putString(null).putString("")
+				.putUUID(uuid).putUUID(null).finish();
+		Check.equal(frame.remaining() - 4, frame.getInt(), "length prefix");
+
+		BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(frame.slice());
+		Check.equal(42, reader.getInt(), "id");
+		Check.equal(BinaryProtocol.CREATE, reader.getByte(), "opcode");
+		Check.equal(true, reader.getBoolean(), "boolean");
+		Check.equal(-7, reader.getInt(), "int");
+		Check.equal(Long.MAX_VALUE, reader.getLong(), "long");
+		Check.equal(text, reader.getString(), "string");
+		Check.equal(null, reader.getString(), "null string");
+		Check.equal("", reader.getString(), "empty string");
+		Check.equal(uuid, reader.getUUID(), "uuid");
+		Check.equal(null, reader.getUUID(), "null uuid");
+		Check.fails(BinaryProtocol.ProtocolException.class, reader::getByte);
+	}
+
+	/**
+	 * Checks reading past the end of a frame fails with a ProtocolException instead of a runtime exception
+	 */
+	private static void shortFrames() {
+		ByteBuffer longString = new BinaryProtocol.FrameWriter(1).putString("abcdef").finish();
+		longString.position(4);
+		// cut the frame in the middle of the string
+		longString.limit(longString.limit() - 3);
+		BinaryProtocol.FrameReader reader = new BinaryProtocol.FrameReader(longString.slice());
+		Check.fails(BinaryProtocol.ProtocolException.class, () -> {
+			reader.getInt();
+			reader.getString();
+		});
+		BinaryProtocol.FrameReader empty = new BinaryProtocol.FrameReader(ByteBuffer.allocate(3));
+		Check.fails(BinaryProtocol.ProtocolException.class, empty::getLong);
+		// a uuid that is there but cut short
+		BinaryProtocol.FrameReader shortUUID = new BinaryProtocol.FrameReader(ByteBuffer.wrap(new byte[] { 1, 0, 0 }));
+		Check.fails(BinaryProtocol.ProtocolException.class, shortUUID::getUUID);
+	}
+
+	/**
+	 * Sends many requests before reading any answer and checks each gets its own
+	 * @param port the port of the server
+	 * @throws Exception
+	 */
+	private static void pipelinedRequests(int port) throws Exception {
+		try (BinaryClient client = new BinaryClient("127.0.0.1", port)) {
+			List<CompletableFuture<String>> lookups = new ArrayList<CompletableFuture<String>>();
+			for (int i = 0; i < 500; i++) {
+				lookups.add(client.lookup("user" + i));
+			}
+			CompletableFuture<Long> version = client.getVersion();
+			CompletableFuture<Boolean> modified = client.modify("a", "b", "pw");
+			for (int i = 0; i < lookups.size(); i++) {
+				Check.equal("found user" + i, await(lookups.get(i)), "lookup " + i);
+			}
+			Check.equal(7L, await(version), "version");
+			Check.equal(true, await(modified), "modify");
+		}
+	}
+
+	/**
+	 * Sends many more slow requests than a connection may have on workers and checks they are all
+	 * answered, never more than the cap at once, and a lookup sent after them still is
+	 * @param port the port of the server
+	 * @throws Exception
+	 */
+	private static void inFlightCap(int port) throws Exception {
+		try (BinaryClient client = new BinaryClient("127.0.0.1", port)) {
+			List<CompletableFuture<String>> gets = new ArrayList<CompletableFuture<String>>();
+			for (int i = 0; i < 5 * BinaryServer.MAX_IN_FLIGHT; i++) {
+				gets.add(client.get("slow"));
+			}
+			CompletableFuture<String> after = client.lookup("after");
+			for (int i = 0; i < gets.size(); i++) {
+				Check.equal("slow", await(gets.get(i)), "get " + i);
+			}
+			Check.equal("found after", await(after), "lookup after the gets");
+			Check.isTrue(mostSlowGets.get() <= BinaryServer.MAX_IN_FLIGHT,
+					mostSlowGets.get() + " gets ran at once, more than " + BinaryServer.MAX_IN_FLIGHT);
+		}
+	}
+
+	/**
+	 * Asks for an answer larger than a frame between two lookups and checks it fails alone, the
+	 * lookups on the same connection are still answered
+	 * @param port the port of the server
+	 * @throws Exception
+	 */
+	private static void oversizedResponse(int port) throws Exception {
+		try (BinaryClient client = new BinaryClient("127.0.0.1", port)) {
+			CompletableFuture<String> before = client.lookup("before");
+			CompletableFuture<String> all = client.get("all");
+			CompletableFuture<String> after = client.lookup("after");
+			Check.equal("found before", await(before), "lookup before");
+			ExecutionException e = Check.fails(ExecutionException.class, () -> await(all));
+			Check.isTrue(e.getCause() instanceof IOException && e.getCause().getMessage().contains("LIST"),
+					"get all fails with an error pointing to LIST: " + e.getCause());
+			Check.equal("found after", await(after), "lookup after");
+			Check.equal("found later", await(client.lookup("later")), "lookup sent after the error");
+			Check.equal("small", await(client.get("small")), "a get that fits");
+		}
+	}
+
+	/**
+	 * Checks the server's refusals come back as redirects
+	 * @param port the port of the server
+	 * @throws Exception
+	 */
+	private static void redirects(int port) throws Exception {
+		try (BinaryClient client = new BinaryClient("127.0.0.1", port)) {
+			ExecutionException e = Check.fails(ExecutionException.class, () -> await(client.create("x", "X", "pw")));
+			BinaryClient.Redirect redirect = (BinaryClient.Redirect) e.getCause();
+			Check.equal("10.0.0.9", redirect.getLeader(), "leader");
+			e = Check.fails(ExecutionException.class, () -> await(client.delete("x", "pw")));
+			redirect = (BinaryClient.Redirect) e.getCause();
+			Check.equal(3, redirect.getShard(), "shard");
+		}
+	}
+
+	/**
+	 * Sends a frame longer than the protocol allows and checks the server drops the connection
+	 * @param port the port of the server
+	 * @throws IOException
+	 */
+	private static void oversizedRequest(int port) throws IOException {
+		try (Socket socket = new Socket("127.0.0.1", port)) {
+			socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+			// one write, the server may close the connection as soon as it has read the length
+			ByteBuffer header = ByteBuffer.allocate(9).putInt(BinaryProtocol.MAX_FRAME + 1).putInt(1).put(BinaryProtocol.LOOKUP);
+			socket.getOutputStream().write(header.array());
+			InputStream in = socket.getInputStream();
+			try {
+				Check.equal(-1, in.read(), "the connection is closed without an answer");
+			} catch (SocketException e) {
+				// reset rather than closed, the server still dropped it
+			}
+		}
+	}
+
+	/**
+	 * Waits for a response
+	 * @param future the response
+	 * @return the result
+	 * @throws Exception if the request failed or took too long
+	 */
+	private static <T> T await(CompletableFuture<T> future) throws Exception {
+		return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Makes a stand-in for IdServer: lookups find every user, get of "all" is larger than a frame,
+	 * get of "slow" takes a while, create is refused for not being the leader and delete for the wrong shard
+	 * @return the stand-in
+	 */
+	private static Id stubServer() {
+		String tooLarge = "x".repeat(BinaryProtocol.MAX_FRAME + 1);
+		return (Id) Proxy.newProxyInstance(Id.class.getClassLoader(), new Class<?>[] { Id.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "lookup":
+				return "found " + args[0];
+			case "get":
+				if (args[0].equals("slow")) {
+					mostSlowGets.accumulateAndGet(slowGets.incrementAndGet(), Math::max);
+					Thread.sleep(10);
+					slowGets.decrementAndGet();
+				}
+				return args[0].equals("all") ? tooLarge : args[0];
+			case "getVersion":
+				return 7L;
+			case "modify":
+				return true;
+			case "create":
+				throw new NotLeaderException(new ServerInfo(1, "10.0.0.9"));
+			case "delete":
+				throw new WrongShardException(3);
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/**
+	 * Finds a port nothing listens on
+	 * @return the port
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+
+/**
+ * A small test harness with no dependencies: a test class registers its tests from main, each is run
+ * and reported as it finishes, and finish exits with a failure status if any of them failed so make
+ * stops. A test fails by throwing, usually an AssertionError from one of the checks.
+ */
+public class Check {
+	private final String suite;
+	private int passed = 0;
+	private int failed = 0;
+
+	/**
+	 * A test to run
+	 */
+	public interface Test {
+		/**
+		 * Runs the test
+		 * @throws Exception if the test failed
+		 */
+		void run() throws Exception;
+	}
+
+	/**
+	 * Constructs a harness for the tests of one class
+	 * @param suite the name the tests are reported under
+	 */
+	public Check(String suite) {
+		this.suite = suite;
+	}
+
+	/**
+	 * Runs a test and reports it
+	 * @param name the name of the test
+	 * @param test the test
+	 */
+	public void test(String name, Test test) {
+		try {
+			test.run();
+			passed++;
+			System.out.println("PASS " + suite + "." + name);
+		} catch (Throwable e) {
+			failed++;
+			System.out.println("FAIL " + suite + "." + name + ": " + e);
+			e.printStackTrace(System.out);
+		}
+	}
+
+	/**
+	 * Reports the tests run and exits, with status 1 if any failed
+	 */
+	public void finish() {
+		System.out.println(suite + ": " + passed + " passed, " + failed + " failed");
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Checks two values are equal
+	 * @param expected the value expected
+	 * @param actual the value found
+	 * @param what what the value is, for the failure message
+	 */
+	public static void equal(Object expected, Object actual, String what) {
+		if (!Objects.equals(expected, actual)) {
+			throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+		}
+	}
+
+	/**
+	 * Checks a condition holds
+	 * @param condition the condition
+	 * @param what what should hold, for the failure message
+	 */
+	public static void isTrue(boolean condition, String what) {
+		if (!condition) {
+			throw new AssertionError(what);
+		}
+	}
+
+	/**
+	 * Checks a piece of code throws
+	 * @param type the exception expected
+	 * @param test the code
+	 * @return the exception thrown
+	 */
+	public static <T extends Throwable> T fails(Class<T> type, Test test) {
+		try {
+			test.run();
+		} catch (Throwable e) {
+			if (type.isInstance(e)) {
+				return type.cast(e);
+			}
+			throw new AssertionError("expected " + type.getSimpleName() + " but got " + e, e);
+		}
+		throw new AssertionError("expected " + type.getSimpleName() + " but nothing was thrown");
+	}
+
+	/**
+	 * Makes an empty directory that is removed when the tests exit
+	 * @return the directory
+	 * @throws IOException
+	 */
+	public static File tempDir() throws IOException {
+		File dir = Files.createTempDirectory("idserver-test").toFile();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dir)));
+		return dir;
+	}
+
+	/**
+	 * Removes a file or a directory and everything in it
+	 * @param file the file
+	 */
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,103 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a checkpoint returned by Checkpointer.request holds every change made before the request,
+ * including when many threads ask at once and share a checkpoint.
+ */
+public class CheckpointerTest {
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 200;
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("CheckpointerTest");
+		check.test("forcedRequestCoversEarlierChanges", CheckpointerTest::forcedRequestCoversEarlierChanges);
+		check.test("unforcedRequestWaitsForALargeLog", CheckpointerTest::unforcedRequestWaitsForALargeLog);
+		check.finish();
+	}
+
+	/**
+	 * Has many threads change the store and force a checkpoint at the same time, and checks the
+	 * checkpoint on disk once each request completes holds that thread's change
+	 * @throws Exception
+	 */
+	private static void forcedRequestCoversEarlierChanges() throws Exception {
+		File file = new File(Check.tempDir(), "users.snapshot");
+		UserStore users = new UserStore();
+		ReplicationLog changes = new ReplicationLog(1024, 0);
+		users.addListener(changes);
+		Checkpointer checkpointer = new Checkpointer(users, changes, null, file, 0);
+
+		CyclicBarrier start = new CyclicBarrier(THREADS);
+		List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			int thread = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int round = 0; round < ROUNDS; round++) {
+						start.await(10, TimeUnit.SECONDS);
+						users.create("user" + thread + "-" + round, null, "pw");
+						long seq = users.getLastPublishedSeq();
+						checkpointer.request(true).get();
+						long written = SnapshotFile.read(file).getSeq();
+						Check.isTrue(written >= seq, "checkpoint at #" + written + " returned to a request made at #" + seq);
+					}
+				} catch (Throwable e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+					start.reset();
+				}
+			}));
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (!failures.isEmpty()) {
+			throw new AssertionError(failures.get(0));
+		}
+	}
+
+	/**
+	 * Checks an unforced request does nothing while the log is small, and fails like a forced one when
+	 * the checkpoint cannot be written
+	 * @throws Exception
+	 */
+	private static void unforcedRequestWaitsForALargeLog() throws Exception {
+		File dir = Check.tempDir();
+		File file = new File(dir, "users.snapshot");
+		UserStore users = new UserStore();
+		ReplicationLog changes = new ReplicationLog(1024, 0);
+		users.addListener(changes);
+		WriteAheadLog log = new WriteAheadLog(new File(dir, "users.wal"));
+		log.open(users);
+		users.addListener(log);
+		Checkpointer checkpointer = new Checkpointer(users, changes, log, file, 1 << 20);
+		users.create("alice", "Alice", "pw");
+		log.commit();
+
+		checkpointer.request(false).get();
+		Check.isTrue(!file.exists(), "no checkpoint while the log is small");
+		checkpointer.request(true).get();
+		Check.equal(users.getSeq(), SnapshotFile.read(file).getSeq(), "seq of the forced checkpoint");
+
+		// the temporary file cannot be created where a directory is
+		new File(file.getPath() + ".tmp").mkdir();
+		Future<?> failed = checkpointer.request(true);
+		Check.fails(ExecutionException.class, failed::get);
+		log.close();
+	}
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests how IdServer starts from the files of an earlier run. The server keeps its state in static
+ * fields and in the working directory, so each test starts it as a process of its own in a new directory.
+ */
+public class IdServerTest {
+	private static final long TIMEOUT_SECONDS = 30;
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("IdServerTest");
+		check.test("damagedSnapshotIsKept", IdServerTest::damagedSnapshotIsKept);
+		check.test("readableSnapshotStarts", IdServerTest::readableSnapshotStarts);
+		check.finish();
+	}
+
+	/**
+	 * Damages the checkpoint of a database with a log next to it and checks the server refuses to
+	 * start instead of writing a checkpoint of the log alone over it
+	 * @throws Exception
+	 */
+	private static void damagedSnapshotIsKept() throws Exception {
+		File dir = Check.tempDir();
+		File snapshot = new File(dir, "users.snapshot");
+		writeDatabase(dir);
+		try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+			raf.seek(40);
+			int b = raf.read();
+			raf.seek(40);
+			raf.write(b ^ 1);
+		}
+		byte[] damaged = Files.readAllBytes(snapshot.toPath());
+
+		Process server = start(dir);
+		try {
+			Check.isTrue(server.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS), "the server exits");
+		} finally {
+			server.destroyForcibly().waitFor();
+		}
+		String output = output(dir);
+		Check.equal(1, server.exitValue(), "exit status, output: " + output);
+		Check.isTrue(output.contains("refusing to start"), "the refusal is logged: " + output);
+		Check.isTrue(Arrays.equals(damaged, Files.readAllBytes(snapshot.toPath())), "the checkpoint is left as it was");
+		Check.isTrue(!new File(dir, "users.snapshot.tmp").exists(), "no checkpoint was started");
+	}
+
+	/**
+	 * Checks the same database undamaged is loaded and the server keeps running, so the refusal
+	 * above is down to the damage
+	 * @throws Exception
+	 */
+	private static void readableSnapshotStarts() throws Exception {
+		File dir = Check.tempDir();
+		writeDatabase(dir);
+		Process server = start(dir);
+		try {
+			Check.isTrue(!server.waitFor(3, TimeUnit.SECONDS), "the server keeps running");
+		} finally {
+			server.destroyForcibly().waitFor();
+		}
+		String output = output(dir);
+		Check.isTrue(output.contains("reloaded 2 users"), "the checkpoint is loaded: " + output);
+		Check.isTrue(output.contains("replayed 1 changes"), "the log is replayed: " + output);
+	}
+
+	/**
+	 * Writes a checkpoint of two users and a log of one more change, as an earlier run leaves them
+	 * @param dir the working directory of the server
+	 * @throws IOException
+	 */
+	private static void writeDatabase(File dir) throws IOException {
+		Instant now = Instant.ofEpochMilli(System.currentTimeMillis());
+		List<User> users = Arrays.asList(new User("alice", UUID.randomUUID(), "Alice", "a", now, now),
+				new User("bob", UUID.randomUUID(), "Bob", "b", now, now));
+		SnapshotFile.write(new File(dir, "users.snapshot"), 2, users);
+
+		UserStore store = new UserStore();
+		store.replace(users, 2);
+		WriteAheadLog log = new WriteAheadLog(new File(dir, "users.wal"));
+		log.open(new UserStore());
+		store.addListener(log);
+		store.create("carol", "Carol", "c");
+		log.close();
+	}
+
+	/**
+	 * Starts a server in a directory, with the classes of the tests
+	 * @param dir the working directory of the server
+	 * @return the server process, its output goes to server.log in the directory
+	 * @throws IOException
+	 */
+	private static Process start(File dir) throws IOException {
+		List<String> classPath = new ArrayList<String>();
+		for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+			classPath.add(new File(entry).getAbsolutePath());
+		}
+		String java = new File(System.getProperty("java.home"), "bin/java").getPath();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", String.join(File.pathSeparator, classPath),
+				"IdServer", "-n", Integer.toString(freePort()));
+		return builder.directory(dir).redirectErrorStream(true).redirectOutput(new File(dir, "server.log")).start();
+	}
+
+	/**
+	 * Reads what a server started by start printed
+	 * @param dir the working directory of the server
+	 * @return the output
+	 * @throws IOException
+	 */
+	private static String output(File dir) throws IOException {
+		return new String(Files.readAllBytes(new File(dir, "server.log").toPath()), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Finds a port nothing listens on
+	 * @return the port
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests that a NearCache answers under both keys of a user, drops users the server reports changed
+ * even when the report arrives while a lookup of them is in flight, only admits new entries asked for
+ * more often than the ones they would evict, and stops answering once it is too old or too far behind.
+ */
+public class NearCacheTest {
+	private static final long LONG_MILLIS = 60000;
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("NearCacheTest");
+		check.test("nothingBeforeTheFirstInvalidation", NearCacheTest::nothingBeforeTheFirstInvalidation);
+		check.test("hitUnderBothKeys", NearCacheTest::hitUnderBothKeys);
+		check.test("missIsCachedUntilCreated", NearCacheTest::missIsCachedUntilCreated);
+		check.test("renameDropsBothKeys", NearCacheTest::renameDropsBothKeys);
+		check.test("invalidationWhileInFlight", NearCacheTest::invalidationWhileInFlight);
+		check.test("answerOlderThanTheCache", NearCacheTest::answerOlderThanTheCache);
+		check.test("admission", NearCacheTest::admission);
+		check.test("timeToLive", NearCacheTest::timeToLive);
+		check.test("lagCutoff", NearCacheTest::lagCutoff);
+		check.test("invalidateAll", NearCacheTest::invalidateAll);
+		check.finish();
+	}
+
+	/**
+	 * Makes a cache that has heard from the server at version 1
+	 * @param maxEntries the most answers kept
+	 * @param ttlMillis the longest an answer is kept
+	 * @param maxLagMillis the longest the cache answers without hearing from the server
+	 * @return the cache
+	 */
+	private static NearCache cache(int maxEntries, long ttlMillis, long maxLagMillis) {
+		NearCache cache = new NearCache(maxEntries, ttlMillis, maxLagMillis);
+		cache.apply(invalidation(1, Collections.<String>emptyList(), Collections.<UUID>emptyList()), System.nanoTime());
+		return cache;
+	}
+
+	/**
+	 * Makes the invalidation of some users
+	 * @param seq the version it brings the cache to
+	 * @param loginNames the login names changed
+	 * @param uuids the uuids changed
+	 * @return the invalidation
+	 */
+	private static CacheInvalidation invalidation(long seq, List<String> loginNames, List<UUID> uuids) {
+		return new CacheInvalidation(seq, false, loginNames, uuids);
+	}
+
+	/**
+	 * Makes the answer for a user
+	 * @param loginName the login name
+	 * @param uuid the uuid
+	 * @param version the version of the database it was read at
+	 * @return the answer
+	 */
+	private static UserRecord record(String loginName, UUID uuid, long version) {
+		return new UserRecord(new User(loginName, uuid, "Real " + loginName, "hash"), version);
+	}
+
+	/**
+	 * Checks nothing is kept or answered before the cache learned the version of the server
+	 */
+	private static void nothingBeforeTheFirstInvalidation() {
+		NearCache cache = new NearCache(16, LONG_MILLIS, LONG_MILLIS);
+		cache.put("alice", record("alice", UUID.randomUUID(), 5), cache.getEpoch());
+		Check.equal(0, cache.size(), "entries");
+		Check.equal(null, cache.get("alice"), "answer");
+	}
+
+	/**
+	 * Caches a user looked up by login name and finds it by uuid too
+	 */
+	private static void hitUnderBothKeys() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		UUID uuid = UUID.randomUUID();
+		Check.equal(null, cache.get("alice"), "answer before it was kept");
+		UserRecord alice = record("alice", uuid, 1);
+		cache.put("alice", alice, cache.getEpoch());
+		Check.equal(alice, cache.get("alice"), "answer by login name");
+		Check.equal(alice, cache.get(uuid), "answer by uuid");
+		Check.equal(1, cache.size(), "one entry for both keys");
+		Check.equal(2L, cache.getHits(), "hits");
+		Check.equal(1L, cache.getMisses(), "misses");
+	}
+
+	/**
+	 * Caches a user that does not exist, then checks the user replaces it once created
+	 */
+	private static void missIsCachedUntilCreated() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		UserRecord missing = new UserRecord(null, 1);
+		cache.put("bob", missing, cache.getEpoch());
+		Check.equal(missing, cache.get("bob"), "the miss is answered");
+
+		cache.apply(invalidation(2, Arrays.asList("bob"), Collections.<UUID>emptyList()), System.nanoTime());
+		Check.equal(null, cache.get("bob"), "the creation drops the miss");
+		UUID uuid = UUID.randomUUID();
+		UserRecord bob = record("bob", uuid, 2);
+		cache.put("bob", bob, cache.getEpoch());
+		Check.equal(bob, cache.get("bob"), "the created user is answered");
+	}
+
+	/**
+	 * Renames a cached user on the server and checks neither the old login name nor the uuid answer
+	 */
+	private static void renameDropsBothKeys() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		UUID uuid = UUID.randomUUID();
+		cache.put("alice", record("alice", uuid, 1), cache.getEpoch());
+		// the server reports the new login name and the uuid, never the old name
+		cache.apply(invalidation(2, Arrays.asList("alicia"), Arrays.asList(uuid)), System.nanoTime());
+		Check.equal(null, cache.get("alice"), "old login name");
+		Check.equal(null, cache.get(uuid), "uuid");
+		Check.equal(0, cache.size(), "entries");
+		Check.equal(1L, cache.getInvalidations(), "invalidations");
+	}
+
+	/**
+	 * Looks a user up, has the server report it changed before the answer arrives, and checks the
+	 * answer is not kept, while an answer for another user in flight at the same time is
+	 */
+	private static void invalidationWhileInFlight() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		UUID alice = UUID.randomUUID();
+		UUID bob = UUID.randomUUID();
+		long askedAt = cache.getEpoch();
+		// alice is renamed to alicia on the server while the lookups are in flight
+		cache.apply(invalidation(2, Arrays.asList("alicia"), Arrays.asList(alice)), System.nanoTime());
+		cache.put("alice", record("alice", alice, 2), askedAt);
+		cache.put("bob", record("bob", bob, 2), askedAt);
+		Check.equal(null, cache.get("alice"), "the old copy of alice is not kept");
+		Check.equal(null, cache.get(alice), "nor under her uuid");
+		Check.isTrue(cache.get("bob") != null, "bob was not changed and is kept");
+
+		// past the invalidations remembered every answer in flight is dropped
+		askedAt = cache.getEpoch();
+		for (int i = 0; i < 300; i++) {
+			cache.invalidate("other" + i);
+		}
+		cache.put("carol", record("carol", UUID.randomUUID(), 2), askedAt);
+		Check.equal(null, cache.get("carol"), "answer in flight across too many invalidations");
+	}
+
+	/**
+	 * Checks an answer read at a version older than the cache is not kept
+	 */
+	private static void answerOlderThanTheCache() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		cache.apply(invalidation(5, Collections.<String>emptyList(), Collections.<UUID>emptyList()), System.nanoTime());
+		cache.put("alice", record("alice", UUID.randomUUID(), 4), cache.getEpoch());
+		Check.equal(0, cache.size(), "entries");
+	}
+
+	/**
+	 * Fills the cache with users asked for often and checks a user asked for once cannot take the
+	 * place of one of them, but a user asked for more often can
+	 */
+	private static void admission() {
+		NearCache cache = cache(4, LONG_MILLIS, LONG_MILLIS);
+		for (int i = 0; i < 4; i++) {
+			String name = "hot" + i;
+			cache.put(name, record(name, UUID.randomUUID(), 1), cache.getEpoch());
+			for (int j = 0; j < 5; j++) {
+				cache.get(name);
+			}
+		}
+		Check.equal(4, cache.size(), "entries");
+
+		cache.get("cold");
+		cache.put("cold", record("cold", UUID.randomUUID(), 1), cache.getEpoch());
+		Check.equal(null, cache.get("cold"), "a user asked for once is not admitted");
+		for (int i = 0; i < 4; i++) {
+			Check.isTrue(cache.get("hot" + i) != null, "hot" + i + " is kept");
+		}
+		Check.equal(0L, cache.getEvictions(), "evictions");
+
+		for (int j = 0; j < 12; j++) {
+			cache.get("warm");
+		}
+		cache.put("warm", record("warm", UUID.randomUUID(), 1), cache.getEpoch());
+		Check.isTrue(cache.get("warm") != null, "a user asked for more often is admitted");
+		Check.equal(4, cache.size(), "entries");
+		Check.equal(1L, cache.getEvictions(), "evictions");
+	}
+
+	/**
+	 * Checks an answer is dropped once it is older than the time to live
+	 * @throws InterruptedException
+	 */
+	private static void timeToLive() throws InterruptedException {
+		NearCache cache = cache(16, 50, LONG_MILLIS);
+		cache.put("alice", record("alice", UUID.randomUUID(), 1), cache.getEpoch());
+		Check.isTrue(cache.get("alice") != null, "answered while fresh");
+		Thread.sleep(100);
+		Check.equal(null, cache.get("alice"), "answer after the time to live");
+		Check.equal(0, cache.size(), "the expired entry is removed");
+	}
+
+	/**
+	 * Checks the cache stops answering when it has not heard from the server for too long, and
+	 * answers again once it has
+	 * @throws InterruptedException
+	 */
+	private static void lagCutoff() throws InterruptedException {
+		NearCache cache = cache(16, LONG_MILLIS, 50);
+		cache.put("alice", record("alice", UUID.randomUUID(), 1), cache.getEpoch());
+		Thread.sleep(100);
+		Check.equal(null, cache.get("alice"), "answer while too far behind");
+		Check.equal(1, cache.size(), "the entry is kept");
+
+		// an invalidation with more to come does not count as having caught up
+		cache.apply(new CacheInvalidation(2, true, Collections.<String>emptyList(), Collections.<UUID>emptyList()), System.nanoTime());
+		Check.equal(null, cache.get("alice"), "answer part way through catching up");
+		cache.apply(invalidation(3, Collections.<String>emptyList(), Collections.<UUID>emptyList()), System.nanoTime());
+		Check.isTrue(cache.get("alice") != null, "answer once caught up");
+	}
+
+	/**
+	 * Checks the invalidation of every user empties the cache and drops the answers in flight
+	 */
+	private static void invalidateAll() {
+		NearCache cache = cache(16, LONG_MILLIS, LONG_MILLIS);
+		cache.put("alice", record("alice", UUID.randomUUID(), 1), cache.getEpoch());
+		long askedAt = cache.getEpoch();
+		cache.apply(new CacheInvalidation(9), System.nanoTime());
+		Check.equal(0, cache.size(), "entries");
+		Check.equal(9L, cache.getSeq(), "seq");
+		cache.put("bob", record("bob", UUID.randomUUID(), 9), askedAt);
+		Check.equal(0, cache.size(), "an answer in flight across the invalidation of every user");
+	}
+}
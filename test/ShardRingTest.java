@@ -0,0 +1,105 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests that a ShardRing places login names the same way wherever it is built, spreads them evenly,
+ * only moves names onto a shard that is added, and gives new UUIDs the shard of their login name.
+ */
+public class ShardRingTest {
+	private static final int NAMES = 30000;
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("ShardRingTest");
+		check.test("stablePlacement", ShardRingTest::stablePlacement);
+		check.test("balanced", ShardRingTest::balanced);
+		check.test("addingAShardOnlyMovesOntoIt", ShardRingTest::addingAShardOnlyMovesOntoIt);
+		check.test("newUUIDFollowsLoginName", ShardRingTest::newUUIDFollowsLoginName);
+		check.test("singleAndNoShards", ShardRingTest::singleAndNoShards);
+		check.finish();
+	}
+
+	/**
+	 * Builds the same ring from shard ids given in different orders and checks they agree
+	 */
+	private static void stablePlacement() {
+		ShardRing ring = new ShardRing(Arrays.asList(1, 2, 3));
+		ShardRing shuffled = new ShardRing(Arrays.asList(3, 1, 2));
+		for (int i = 0; i < NAMES; i++) {
+			String name = "user" + i;
+			Check.equal(ring.shardOf(name), shuffled.shardOf(name), name);
+			Check.isTrue(ring.getShards().contains(ring.shardOf(name)), name + " is placed on a shard of the ring");
+		}
+	}
+
+	/**
+	 * Checks every shard of three gets close to a third of the names
+	 */
+	private static void balanced() {
+		ShardRing ring = new ShardRing(Arrays.asList(1, 2, 3));
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (int i = 0; i < NAMES; i++) {
+			counts.merge(ring.shardOf("user" + i), 1, Integer::sum);
+		}
+		for (int shard : ring.getShards()) {
+			int count = counts.getOrDefault(shard, 0);
+			Check.isTrue(count > NAMES / 5 && count < NAMES / 2, "shard " + shard + " holds " + count + " of " + NAMES);
+		}
+	}
+
+	/**
+	 * Adds a fourth shard and checks the names that move all move onto it, about a quarter of them
+	 */
+	private static void addingAShardOnlyMovesOntoIt() {
+		ShardRing before = new ShardRing(Arrays.asList(1, 2, 3));
+		ShardRing after = new ShardRing(Arrays.asList(1, 2, 3, 4));
+		int moved = 0;
+		for (int i = 0; i < NAMES; i++) {
+			String name = "user" + i;
+			if (before.shardOf(name) != after.shardOf(name)) {
+				Check.equal(4, after.shardOf(name), name + " moved to");
+				moved++;
+			}
+		}
+		Check.isTrue(moved > NAMES / 8 && moved < NAMES * 3 / 8, moved + " of " + NAMES + " names moved");
+	}
+
+	/**
+	 * Checks a UUID made for a login name is on the shard of the login name, and is still random
+	 */
+	private static void newUUIDFollowsLoginName() {
+		ShardRing ring = new ShardRing(Arrays.asList(1, 2, 3, 4, 5));
+		Set<UUID> seen = new HashSet<UUID>();
+		for (int i = 0; i < NAMES; i++) {
+			String name = "user" + i;
+			UUID uuid = ShardRing.newUUID(name);
+			Check.equal(ring.shardOf(name), ring.shardOf(uuid), name);
+			Check.isTrue(seen.add(uuid), "uuid " + uuid + " was made twice");
+		}
+		// two UUIDs for the same login name share the shard bits only
+		UUID first = ShardRing.newUUID("alice");
+		UUID second = ShardRing.newUUID("alice");
+		Check.equal(first.getMostSignificantBits() >>> 32, second.getMostSignificantBits() >>> 32, "shard bits");
+		Check.isTrue(!first.equals(second), "the UUIDs of one login name differ");
+	}
+
+	/**
+	 * Checks a ring of one shard places everything on it, and a ring of none on shard 0
+	 */
+	private static void singleAndNoShards() {
+		ShardRing single = new ShardRing(Arrays.asList(7));
+		ShardRing none = new ShardRing(new HashSet<Integer>());
+		for (int i = 0; i < 1000; i++) {
+			Check.equal(7, single.shardOf("user" + i), "shard of user" + i);
+			Check.equal(0, none.shardOf("user" + i), "shard of user" + i + " without shards");
+		}
+		Check.equal(7, single.shardOf(UUID.randomUUID()), "shard of a random uuid");
+	}
+}
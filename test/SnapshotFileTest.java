@@ -0,0 +1,203 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Tests that a SnapshotFile reads back the users it was written with, refuses files that are not a
+ * complete checkpoint of its version, and replaces the previous checkpoint only once it is complete.
+ */
+public class SnapshotFileTest {
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("SnapshotFileTest");
+		check.test("roundTrip", SnapshotFileTest::roundTrip);
+		check.test("empty", SnapshotFileTest::empty);
+		check.test("replacesAtomically", SnapshotFileTest::replacesAtomically);
+		check.test("failedWriteKeepsPrevious", SnapshotFileTest::failedWriteKeepsPrevious);
+		check.test("badMagic", SnapshotFileTest::badMagic);
+		check.test("unsupportedVersion", SnapshotFileTest::unsupportedVersion);
+		check.test("corrupt", SnapshotFileTest::corrupt);
+		check.test("truncated", SnapshotFileTest::truncated);
+		check.finish();
+	}
+
+	/**
+	 * Makes a user with times to the millisecond, as they are written
+	 * @param loginName the login name
+	 * @param realName the real name, may be null
+	 * @return the user
+	 */
+	private static User user(String loginName, String realName) {
+		Instant created = Instant.ofEpochMilli(1500000000000L);
+		Instant modified = Instant.ofEpochMilli(1600000000000L);
+		return new User(loginName, UUID.randomUUID(), realName, "hash-" + loginName, created, modified);
+	}
+
+	/**
+	 * Checks two users have the same fields
+	 * @param expected the user written
+	 * @param actual the user read
+	 */
+	private static void sameUser(User expected, User actual) {
+		String name = expected.getLoginName();
+		Check.equal(expected.getLoginName(), actual.getLoginName(), name + " login name");
+		Check.equal(expected.getUUID(), actual.getUUID(), name + " uuid");
+		Check.equal(expected.getRealName(), actual.getRealName(), name + " real name");
+		Check.equal(expected.getPassword(), actual.getPassword(), name + " password");
+		Check.equal(expected.getTimeCreated(), actual.getTimeCreated(), name + " time created");
+		Check.equal(expected.getTimeLastModified(), actual.getTimeLastModified(), name + " time last modified");
+	}
+
+	/**
+	 * Writes users with missing, non-ASCII and long names and reads them back
+	 * @throws IOException
+	 */
+	private static void roundTrip() throws IOException {
+		File file = new File(Check.tempDir(), "users.snapshot");
+		List<User> users = Arrays.asList(user("alice", "Alice"), user("nameless", null),
+				user("ren\u00e9e", "Ren\u00e9e \u00c9lise"), user("long", "x".repeat(100000)));
+		long size = SnapshotFile.write(file, 42, users);
+		Check.equal(file.length(), size, "bytes written");
+
+		SnapshotFile.Contents contents = SnapshotFile.read(file);
+		Check.equal(42L, contents.getSeq(), "seq");
+		Check.equal(users.size(), contents.getUsers().size(), "users");
+		for (int i = 0; i < users.size(); i++) {
+			sameUser(users.get(i), contents.getUsers().get(i));
+		}
+	}
+
+	/**
+	 * Writes and reads a checkpoint without users
+	 * @throws IOException
+	 */
+	private static void empty() throws IOException {
+		File file = new File(Check.tempDir(), "users.snapshot");
+		SnapshotFile.write(file, 0, Collections.<User>emptyList());
+		SnapshotFile.Contents contents = SnapshotFile.read(file);
+		Check.equal(0L, contents.getSeq(), "seq");
+		Check.isTrue(contents.getUsers().isEmpty(), "no users");
+	}
+
+	/**
+	 * Writes a checkpoint over another and checks no temporary file is left behind
+	 * @throws IOException
+	 */
+	private static void replacesAtomically() throws IOException {
+		File dir = Check.tempDir();
+		File file = new File(dir, "users.snapshot");
+		SnapshotFile.write(file, 1, Collections.singletonList(user("old", "Old")));
+		SnapshotFile.write(file, 2, Collections.singletonList(user("new", "New")));
+
+		SnapshotFile.Contents contents = SnapshotFile.read(file);
+		Check.equal(2L, contents.getSeq(), "seq");
+		Check.equal("new", contents.getUsers().get(0).getLoginName(), "user");
+		Check.equal(Collections.singletonList("users.snapshot"), Arrays.asList(dir.list()), "files in the directory");
+	}
+
+	/**
+	 * Fails to write a checkpoint and checks the previous one can still be read
+	 * @throws IOException
+	 */
+	private static void failedWriteKeepsPrevious() throws IOException {
+		File file = new File(Check.tempDir(), "users.snapshot");
+		SnapshotFile.write(file, 1, Collections.singletonList(user("kept", "Kept")));
+		// the temporary file cannot be created where a directory is
+		new File(file.getPath() + ".tmp").mkdir();
+		Check.fails(IOException.class, () -> SnapshotFile.write(file, 2, new ArrayList<User>()));
+
+		SnapshotFile.Contents contents = SnapshotFile.read(file);
+		Check.equal(1L, contents.getSeq(), "seq of the previous checkpoint");
+		Check.equal("kept", contents.getUsers().get(0).getLoginName(), "user of the previous checkpoint");
+	}
+
+	/**
+	 * Refuses a file that does not start with the magic number
+	 * @throws IOException
+	 */
+	private static void badMagic() throws IOException {
+		File file = written();
+		overwriteInt(file, 0, 0xCAFEBABE);
+		IOException e = Check.fails(IOException.class, () -> SnapshotFile.read(file));
+		Check.isTrue(e.getMessage().contains("not a user checkpoint"), "message: " + e.getMessage());
+	}
+
+	/**
+	 * Refuses a checkpoint of another version
+	 * @throws IOException
+	 */
+	private static void unsupportedVersion() throws IOException {
+		File file = written();
+		overwriteInt(file, 4, 2);
+		IOException e = Check.fails(IOException.class, () -> SnapshotFile.read(file));
+		Check.isTrue(e.getMessage().contains("version 2"), "message: " + e.getMessage());
+	}
+
+	/**
+	 * Refuses a checkpoint with a byte changed in one of its users
+	 * @throws IOException
+	 */
+	private static void corrupt() throws IOException {
+		File file = written();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(40);
+			int b = raf.read();
+			raf.seek(40);
+			raf.write(b ^ 1);
+		}
+		IOException e = Check.fails(IOException.class, () -> SnapshotFile.read(file));
+		Check.isTrue(e.getMessage().contains("checksum"), "message: " + e.getMessage());
+	}
+
+	/**
+	 * Refuses checkpoints cut short, part way through the users or the header
+	 * @throws IOException
+	 */
+	private static void truncated() throws IOException {
+		File file = written();
+		long length = file.length();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(length - 10);
+		}
+		Check.fails(IOException.class, () -> SnapshotFile.read(file));
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(12);
+		}
+		Check.fails(IOException.class, () -> SnapshotFile.read(file));
+	}
+
+	/**
+	 * Writes a checkpoint of a few users
+	 * @return the file
+	 * @throws IOException
+	 */
+	private static File written() throws IOException {
+		File file = new File(Check.tempDir(), "users.snapshot");
+		SnapshotFile.write(file, 7, Arrays.asList(user("a", "A"), user("b", null), user("c", "C")));
+		return file;
+	}
+
+	/**
+	 * Overwrites an int in a file
+	 * @param file the file
+	 * @param offset where the int is
+	 * @param value the new value
+	 * @throws IOException
+	 */
+	private static void overwriteInt(File file, long offset, int value) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(offset);
+			raf.writeInt(value);
+		}
+	}
+}
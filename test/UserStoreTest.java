@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests how a UserStore hands users over to another shard: a user held by beginMove cannot be
+ * changed, a user renamed onto another shard ends up on exactly one of them, and a user removed
+ * while being moved is not brought back.
+ */
+public class UserStoreTest {
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("UserStoreTest");
+		check.test("heldUserCannotChange", UserStoreTest::heldUserCannotChange);
+		check.test("staleOrHeldUserIsNotClaimed", UserStoreTest::staleOrHeldUserIsNotClaimed);
+		check.test("renameAcrossShards", UserStoreTest::renameAcrossShards);
+		check.test("importKeepsOtherHolders", UserStoreTest::importKeepsOtherHolders);
+		check.test("movesRacingDeletes", UserStoreTest::movesRacingDeletes);
+		check.finish();
+	}
+
+	/**
+	 * Moves a user from one store to another the way IdServer renames a user onto another shard
+	 * @param from the store of the old login name
+	 * @param to the store of the new login name
+	 * @param oldLoginName the current login name
+	 * @param newLoginName the new login name
+	 * @param password the password of the user
+	 * @return true if the user was moved
+	 */
+	private static boolean move(UserStore from, UserStore to, String oldLoginName, String newLoginName, String password) {
+		User user = from.lookup(oldLoginName);
+		if (user == null || !user.getPassword().equals(password)) {
+			return false;
+		}
+		List<User> held = from.beginMove(Collections.singletonList(user));
+		if (held.isEmpty()) {
+			return false;
+		}
+		try {
+			if (!to.putAll(Collections.singletonList(user.rename(newLoginName))).get(0)) {
+				return false;
+			}
+			from.removeAll(held);
+			return true;
+		} finally {
+			from.endMove(held);
+		}
+	}
+
+	/**
+	 * Holds a user and checks modify and delete refuse it until it is let go
+	 */
+	private static void heldUserCannotChange() {
+		UserStore users = new UserStore();
+		users.create("alice", "Alice", "pw");
+		List<User> held = users.beginMove(Collections.singletonList(users.lookup("alice")));
+		Check.equal(1, held.size(), "users held");
+		Check.isTrue(!users.modify("alice", "alicia", "pw"), "modify refused while held");
+		Check.isTrue(!users.delete("alice", "pw"), "delete refused while held");
+		Check.equal(Collections.singletonMap("alice", false), users.deleteAll(Collections.singletonMap("alice", "pw")),
+				"deleteAll refused while held");
+		Check.isTrue(users.contains("alice"), "alice is still there");
+
+		users.endMove(held);
+		Check.isTrue(users.modify("alice", "alicia", "pw"), "modify after the move ended");
+	}
+
+	/**
+	 * Checks beginMove does not claim a user changed since it was read, or one already held
+	 */
+	private static void staleOrHeldUserIsNotClaimed() {
+		UserStore users = new UserStore();
+		users.create("alice", "Alice", "pw");
+		User read = users.lookup("alice");
+		users.modify("alice", "alicia", "pw");
+		Check.isTrue(users.beginMove(Collections.singletonList(read)).isEmpty(), "renamed since it was read");
+
+		User current = users.lookup("alicia");
+		List<User> held = users.beginMove(Collections.singletonList(current));
+		Check.equal(1, held.size(), "first move claims the user");
+		Check.isTrue(users.beginMove(Collections.singletonList(current)).isEmpty(), "second move claims nothing");
+		users.endMove(held);
+	}
+
+	/**
+	 * Renames a user onto the login name of another shard and checks it is found there by name and
+	 * UUID, the UUID still points at the shard it was created on, and the old shard dropped it
+	 */
+	private static void renameAcrossShards() {
+		ShardRing ring = new ShardRing(Arrays.asList(1, 2));
+		String oldName = nameOn(ring, 1, "old");
+		String newName = nameOn(ring, 2, "new");
+		UserStore one = new UserStore();
+		UserStore two = new UserStore();
+		UUID uuid = one.create(oldName, "Moved", "pw");
+		long seq = one.getSeq();
+
+		Check.isTrue(move(one, two, oldName, newName, "pw"), "moved");
+		Check.equal(null, one.lookup(oldName), "old login name on the old shard");
+		Check.equal(null, one.reverseLookup(uuid), "uuid on the old shard");
+		Check.equal(seq + 1, one.getSeq(), "the removal is one change on the old shard");
+		User moved = two.lookup(newName);
+		Check.equal(uuid, moved.getUUID(), "uuid kept");
+		Check.equal("Moved", moved.getRealName(), "real name kept");
+		Check.equal(moved, two.reverseLookup(uuid), "found by uuid on the new shard");
+		Check.equal(1, ring.shardOf(uuid), "the uuid still hashes to the shard it was created on");
+		Check.isTrue(!move(one, two, oldName, newName, "pw"), "a second move finds nobody");
+	}
+
+	/**
+	 * Checks an import does not replace a different user holding the login name
+	 */
+	private static void importKeepsOtherHolders() {
+		UserStore one = new UserStore();
+		UserStore two = new UserStore();
+		one.create("alice", "Alice", "pw");
+		UUID holder = two.create("taken", "Holder", "pw");
+
+		Check.isTrue(!move(one, two, "alice", "taken", "pw"), "the move is refused");
+		Check.equal(holder, two.lookup("taken").getUUID(), "the holder keeps the login name");
+		Check.isTrue(one.contains("alice"), "alice stays on the old shard");
+		Check.isTrue(one.delete("alice", "pw"), "alice can be changed again");
+	}
+
+	/**
+	 * Moves users while another thread deletes them and checks every user ends up in exactly one
+	 * place: on the old shard, on the new one, or deleted
+	 * @throws InterruptedException
+	 */
+	private static void movesRacingDeletes() throws InterruptedException {
+		int count = 2000;
+		UserStore one = new UserStore();
+		UserStore two = new UserStore();
+		List<UUID> uuids = new ArrayList<UUID>();
+		for (int i = 0; i < count; i++) {
+			uuids.add(one.create("user" + i, "User " + i, "pw"));
+		}
+		AtomicBoolean[] deleted = new AtomicBoolean[count];
+		for (int i = 0; i < count; i++) {
+			deleted[i] = new AtomicBoolean();
+		}
+		Thread deleter = new Thread(() -> {
+			for (int i = 0; i < count; i++) {
+				if (one.delete("user" + i, "pw")) {
+					deleted[i].set(true);
+				}
+			}
+		});
+		deleter.start();
+		for (int i = 0; i < count; i++) {
+			move(one, two, "user" + i, "moved" + i, "pw");
+		}
+		deleter.join();
+
+		for (int i = 0; i < count; i++) {
+			boolean onOne = one.reverseLookup(uuids.get(i)) != null;
+			boolean onTwo = two.reverseLookup(uuids.get(i)) != null;
+			Check.isTrue(!(onOne && onTwo), "user" + i + " is on both shards");
+			Check.equal(!deleted[i].get(), onOne || onTwo, "user" + i + " is somewhere unless it was deleted");
+		}
+	}
+
+	/**
+	 * Finds a login name on a shard
+	 * @param ring the ring
+	 * @param shard the shard
+	 * @param prefix the start of the login name
+	 * @return the first name made from the prefix and a number that belongs to the shard
+	 */
+	private static String nameOn(ShardRing ring, int shard, String prefix) {
+		for (int i = 0; ; i++) {
+			if (ring.shardOf(prefix + i) == shard) {
+				return prefix + i;
+			}
+		}
+	}
+}
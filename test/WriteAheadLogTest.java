@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.UUID;
+
+/**
+ * Tests that changes written to a WriteAheadLog come back when it is reopened, and that a torn or
+ * corrupt frame at the end of the log is dropped without losing the frames before it.
+ */
+public class WriteAheadLogTest {
+
+	/**
+	 * Runs the tests
+	 * @param args unused
+	 */
+	public static void main(String[] args) {
+		Check check = new Check("WriteAheadLogTest");
+		check.test("roundTrip", WriteAheadLogTest::roundTrip);
+		check.test("longAndNullStrings", WriteAheadLogTest::longAndNullStrings);
+		check.test("truncatedTail", WriteAheadLogTest::truncatedTail);
+		check.test("corruptTail", WriteAheadLogTest::corruptTail);
+		check.test("impossibleLengthTail", WriteAheadLogTest::impossibleLengthTail);
+		check.test("unfinishedCheckpoint", WriteAheadLogTest::unfinishedCheckpoint);
+		check.finish();
+	}
+
+	/**
+	 * Opens a log into a new store and logs the changes made to the store from then on
+	 * @param file the log file
+	 * @param users the store to replay into
+	 * @return the log
+	 * @throws IOException
+	 */
+	private static WriteAheadLog open(File file, UserStore users) throws IOException {
+		WriteAheadLog log = new WriteAheadLog(file);
+		log.open(users);
+		users.addListener(log);
+		return log;
+	}
+
+	/**
+	 * Replays a log into a new store and closes it
+	 * @param file the log file
+	 * @return the store
+	 * @throws IOException
+	 */
+	private static UserStore replay(File file) throws IOException {
+		UserStore users = new UserStore();
+		new WriteAheadLog(file).open(users);
+		return users;
+	}
+
+	/**
+	 * Creates, renames and removes users and replays them from the log
+	 * @throws IOException
+	 */
+	private static void roundTrip() throws IOException {
+		File file = new File(Check.tempDir(), "users.wal");
+		UserStore users = new UserStore();
+		WriteAheadLog log = open(file, users);
+		UUID alice = users.create("alice", "Alice", "a");
+		UUID bob = users.create("bob", "Bob", "b");
+		users.create("carol", "Carol", "c");
+		Check.isTrue(users.modify("bob", "robert", "b"), "bob renamed");
+		Check.isTrue(users.delete("carol", "c"), "carol removed");
+		log.commit();
+		log.close();
+
+		UserStore replayed = replay(file);
+		Check.equal(users.getSeq(), replayed.getSeq(), "seq");
+		Check.equal(2, replayed.size(), "users");
+		Check.equal(alice, replayed.lookup("alice").getUUID(), "alice's uuid");
+		Check.equal(bob, replayed.lookup("robert").getUUID(), "robert's uuid");
+		Check.equal("Bob", replayed.lookup("robert").getRealName(), "robert's real name");
+		Check.equal(null, replayed.lookup("bob"), "old login name");
+		Check.equal(null, replayed.lookup("carol"), "removed user");
+		// times are logged to the millisecond
+		Check.equal(users.lookup("alice").getTimeCreated().toEpochMilli(),
+				replayed.lookup("alice").getTimeCreated().toEpochMilli(), "time created");
+	}
+
+	/**
+	 * Logs a real name longer than writeUTF allows and a user without a real name
+	 * @throws IOException
+	 */
+	private static void longAndNullStrings() throws IOException {
+		File file = new File(Check.tempDir(), "users.wal");
+		UserStore users = new UserStore();
+		WriteAheadLog log = open(file, users);
+		// longer than the 64 KB writeUTF could take
+		String longName = "\u00e9".repeat(70000);
+		users.create("long", longName, "p");
+		users.create("nameless", null, "p");
+		log.commit();
+		log.close();
+
+		UserStore replayed = replay(file);
+		Check.equal(longName, replayed.lookup("long").getRealName(), "long real name");
+		Check.isTrue(replayed.contains("nameless"), "user without a real name");
+		Check.equal(null, replayed.lookup("nameless").getRealName(), "missing real name");
+	}
+
+	/**
+	 * Replays a log whose last frame was cut short by a crash
+	 * @throws IOException
+	 */
+	private static void truncatedTail() throws IOException {
+		checkTornTail((file, lastFrame) -> {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(raf.length() - 5);
+			}
+		});
+	}
+
+	/**
+	 * Replays a log whose last frame does not match its checksum
+	 * @throws IOException
+	 */
+	private static void corruptTail() throws IOException {
+		checkTornTail((file, lastFrame) -> {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(raf.length() - 3);
+				int b = raf.read();
+				raf.seek(raf.length() - 3);
+				raf.write(b ^ 0xff);
+			}
+		});
+	}
+
+	/**
+	 * Replays a log whose last frame claims to be longer than any frame can be
+	 * @throws IOException
+	 */
+	private static void impossibleLengthTail() throws IOException {
+		checkTornTail((file, lastFrame) -> {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.seek(lastFrame);
+				raf.writeInt(Integer.MAX_VALUE);
+			}
+		});
+	}
+
+	/**
+	 * A way to damage the end of a log
+	 */
+	private interface Damage {
+		/**
+		 * Damages the last frame of a log
+		 * @param file the log file
+		 * @param lastFrame the offset of the last frame
+		 * @throws IOException
+		 */
+		void apply(File file, long lastFrame) throws IOException;
+	}
+
+	/**
+	 * Damages the last frame of a log and checks the frames before it are replayed, the damaged one
+	 * is cut off, and changes logged after reopening are replayed after them
+	 * @param damage what to do to the end of the log
+	 * @throws IOException
+	 */
+	private static void checkTornTail(Damage damage) throws IOException {
+		File file = new File(Check.tempDir(), "users.wal");
+		UserStore users = new UserStore();
+		WriteAheadLog log = open(file, users);
+		users.create("first", "First", "p");
+		log.commit();
+		long firstFrame = file.length();
+		users.create("second", "Second", "p");
+		log.commit();
+		log.close();
+		damage.apply(file, firstFrame);
+
+		UserStore reopened = new UserStore();
+		log = open(file, reopened);
+		Check.isTrue(reopened.contains("first"), "the complete frame is replayed");
+		Check.isTrue(!reopened.contains("second"), "the damaged frame is dropped");
+		Check.equal(firstFrame, file.length(), "length after cutting the damaged frame");
+		reopened.create("third", "Third", "p");
+		log.commit();
+		log.close();
+
+		UserStore replayed = replay(file);
+		Check.equal(2, replayed.size(), "users after appending past the cut");
+		Check.isTrue(replayed.contains("first") && replayed.contains("third"), "first and third are replayed");
+	}
+
+	/**
+	 * Replays the log kept by a checkpoint that never finished before the current one
+	 * @throws IOException
+	 */
+	private static void unfinishedCheckpoint() throws IOException {
+		File file = new File(Check.tempDir(), "users.wal");
+		UserStore users = new UserStore();
+		WriteAheadLog log = open(file, users);
+		users.create("before", "Before", "p");
+		log.commit();
+		log.startCheckpoint();
+		users.create("after", "After", "p");
+		log.commit();
+		log.close();
+		Check.isTrue(new File(file.getPath() + ".old").isFile(), "the log from before the checkpoint is kept");
+
+		UserStore replayed = replay(file);
+		Check.isTrue(replayed.contains("before") && replayed.contains("after"), "both logs are replayed");
+		Check.equal(users.getSeq(), replayed.getSeq(), "seq");
+	}
+}